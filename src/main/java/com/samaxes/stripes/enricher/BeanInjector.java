@@ -0,0 +1,47 @@
+/*
+ * $Id$
+ *
+ * Copyright 2011 samaxes.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.samaxes.stripes.enricher;
+
+/**
+ * Base class of the injectors generated at runtime by {@link InjectorGenerator}. A generated injector reads and writes
+ * the accessible injection points of one class directly, without reflection. Injection points are identified by their
+ * index in the injector.
+ *
+ * @author Samuel Santos
+ * @version $Revision$
+ */
+public abstract class BeanInjector {
+
+    /**
+     * Reads the current value of a field injection point.
+     *
+     * @param target the object holding the field
+     * @param index the injection point index
+     * @return the current field value, boxed if primitive
+     */
+    public abstract Object get(Object target, int index);
+
+    /**
+     * Injects a value by setting the field or invoking the setter method.
+     *
+     * @param target the object on which the value is injected
+     * @param index the injection point index
+     * @param value the value to inject, boxed if primitive
+     */
+    public abstract void set(Object target, int index, Object value);
+}
@@ -17,14 +17,23 @@
  */
 package com.samaxes.stripes.enricher;
 
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.util.Collections;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+
 import javax.enterprise.context.spi.CreationalContext;
 import javax.enterprise.inject.spi.BeanManager;
 import javax.enterprise.inject.spi.InjectionTarget;
-import javax.naming.InitialContext;
+import javax.naming.Context;
 
 import net.sourceforge.stripes.action.ActionBean;
 import net.sourceforge.stripes.util.Log;
 
+import com.samaxes.stripes.enricher.InjectionStateRegistry.InjectionState;
+
 /**
  * Enricher that provide JSR-299 CDI field and method argument injection. It is used to lookup managed beans and inject
  * them into objects (often ActionBeans).
@@ -40,6 +49,48 @@ public class CDIInjectionEnricher {
 
     private static final String SERVLET_BEAN_MANAGER_JNDI_NAME = "java:comp/env/BeanManager";
 
+    /**
+     * Lazily filled in map of deployment class loader to its BeanManager. The BeanManager may itself hold the class
+     * loader, so the entry of a deployment must be removed when it is undeployed, see {@link #clear()}.
+     */
+    private static Map<ClassLoader, BeanManager> beanManagerMap = Collections
+            .synchronizedMap(new WeakHashMap<ClassLoader, BeanManager>());
+
+    /**
+     * Map of injected object to its creational context, until it is released. Objects are weakly referenced, so that
+     * the creational contexts of objects never released, e.g. because the request failed before completing, go away
+     * with them.
+     */
+    private static Map<InstanceReference, CreationalContext<Object>> creationalContextMap =
+            new ConcurrentHashMap<InstanceReference, CreationalContext<Object>>();
+
+    private static final ReferenceQueue<Object> creationalContextQueue = new ReferenceQueue<Object>();
+
+    /** Lazily filled in cache of Class to its BeanManager and injection target. */
+    private static final ClassCache<ManagedTarget> managedTargetCache = new ClassCache<ManagedTarget>();
+
+    /** Creates the injection target of a class, which validates all its injection points. */
+    private static final ClassCache.Loader<ManagedTarget> managedTargetLoader = new ClassCache.Loader<ManagedTarget>() {
+        @Override
+        @SuppressWarnings("unchecked")
+        public ManagedTarget load(Class<?> clazz) {
+            BeanManager beanManager = getBeanManager();
+            if (beanManager == null) {
+                return null;
+            }
+
+            InjectionTarget<Object> injectionTarget = (InjectionTarget<Object>) beanManager
+                    .createInjectionTarget(beanManager.createAnnotatedType(clazz));
+            return new ManagedTarget(beanManager, injectionTarget);
+        }
+    };
+
+    private static final InjectionMetrics.CacheCounter beanManagerCounter = InjectionMetrics
+            .registerCache("CDIBeanManager", beanManagerMap);
+
+    private static final InjectionMetrics.CacheCounter managedTargetCounter = InjectionMetrics
+            .registerCache("CDIManagedTarget", managedTargetCache);
+
     /**
      * Internal constructor; not to be called as this class provides static utilities only.
      */
@@ -48,19 +99,32 @@ public class CDIInjectionEnricher {
     }
 
     /**
-     * Lookup beans and inject them into objects.
+     * Lookup beans and inject them into objects. Session scoped ActionBeans are only injected once, see
+     * {@link InjectionStateRegistry}.
      *
      * @param bean the binding process target
      * @param injectAnnotationPresent whether @Inject is present in class or not
      */
     public static void bind(ActionBean bean, Boolean injectAnnotationPresent) {
-        log.debug("Running CDI dependency injection for instance of ", bean.getClass().getSimpleName());
+        log.debug("Running CDI dependency injection for instance of ", bean.getClass().getName());
 
         if (bean != null && injectAnnotationPresent != null && injectAnnotationPresent) {
-            BeanManager beanManager = lookupBeanManager();
+            InjectionState state = InjectionStateRegistry.getInstance().get(bean);
+            if (state != null && state.isCdiInjected()) {
+                return;
+            }
 
-            if (beanManager != null) {
-                injectNonContextualInstance(beanManager, bean);
+            ManagedTarget target = getManagedTarget(bean.getClass());
+
+            if (target != null) {
+                Object event = InjectionEvents.beginBind();
+                boolean success = false;
+                try {
+                    injectNonContextualInstance(target.beanManager, target.injectionTarget, bean);
+                    success = true;
+                } finally {
+                    InjectionEvents.endBind(event, "CDI", bean.getClass(), 1, success);
+                }
             } else {
                 // Better would be to raise an exception if @Inject is present in class and BeanManager cannot be found
                 log.error("BeanManager cannot be located in context. Either you are using an archive with no beans.xml"
@@ -73,14 +137,126 @@ public class CDIInjectionEnricher {
      * Inject non contextual object instance.
      *
      * @param manager the BeanManager
+     * @param injectionTarget the injection target of the object class
      * @param instance the object instance
      */
-    @SuppressWarnings("unchecked")
-    protected static void injectNonContextualInstance(BeanManager manager, Object instance) {
+    protected static void injectNonContextualInstance(BeanManager manager, InjectionTarget<Object> injectionTarget,
+            Object instance) {
         CreationalContext<Object> creationalContext = manager.createCreationalContext(null);
-        InjectionTarget<Object> injectionTarget = (InjectionTarget<Object>) manager.createInjectionTarget(manager
-                .createAnnotatedType(instance.getClass()));
-        injectionTarget.inject(instance, creationalContext);
+
+        Object event = InjectionEvents.beginCdiInject();
+        try {
+            injectionTarget.inject(instance, creationalContext);
+            InjectionEvents.endCdiInject(event, instance.getClass(), true);
+        } catch (RuntimeException e) {
+            InjectionEvents.endCdiInject(event, instance.getClass(), false);
+            creationalContext.release();
+            throw e;
+        }
+
+        // Session scoped ActionBeans keep their dependents until the session is destroyed
+        InjectionState state = InjectionStateRegistry.getInstance().get(instance);
+        if (state != null) {
+            state.setCdiInjected(creationalContext);
+            return;
+        }
+
+        expungeCreationalContexts();
+        CreationalContext<Object> previousContext = creationalContextMap.put(new InstanceReference(instance,
+                creationalContextQueue), creationalContext);
+        if (previousContext != null) {
+            previousContext.release();
+        }
+    }
+
+    /**
+     * Releases the creational context of an object injected by {@link #bind(ActionBean, Boolean)}, destroying the
+     * {@code @Dependent} objects injected into it. Must be called once the object is no longer used, usually at the end
+     * of the request, otherwise its creational context is dropped without being released once the object is garbage
+     * collected. Session scoped ActionBeans are not affected, their creational context is released by
+     * {@link InjectionStateRegistry#discard(Object)}.
+     *
+     * @param bean the injected object
+     */
+    public static void release(ActionBean bean) {
+        if (bean != null && !creationalContextMap.isEmpty()) {
+            CreationalContext<Object> creationalContext = creationalContextMap
+                    .remove(new InstanceReference(bean, null));
+
+            if (creationalContext != null) {
+                log.debug("Releasing CDI creational context for instance of ", bean.getClass().getName());
+                creationalContext.release();
+            }
+        }
+    }
+
+    /**
+     * Gets the number of creational contexts created for injected objects and not released yet.
+     *
+     * @return the number of outstanding creational contexts
+     */
+    public static int getOutstandingCreationalContextCount() {
+        expungeCreationalContexts();
+        return creationalContextMap.size();
+    }
+
+    private static void expungeCreationalContexts() {
+        for (Reference<?> reference = creationalContextQueue.poll(); reference != null; reference =
+                creationalContextQueue.poll()) {
+            creationalContextMap.remove(reference);
+        }
+    }
+
+    /**
+     * Gets the BeanManager and injection target of a class. The first time it is called for a particular class the
+     * injection target is created, which validates all its injection points, and cached for future usage. Concurrent
+     * first calls for the same class wait for a single creation.
+     *
+     * @param clazz the class of the instances to inject
+     * @return the class BeanManager and injection target, or {@code null} if the BeanManager cannot be found
+     */
+    private static ManagedTarget getManagedTarget(Class<?> clazz) {
+        ManagedTarget target = managedTargetCache.get(clazz);
+
+        if (target == null) {
+            managedTargetCounter.miss();
+            target = managedTargetCache.get(clazz, managedTargetLoader);
+        } else {
+            managedTargetCounter.hit();
+        }
+
+        return target;
+    }
+
+    /**
+     * Gets the BeanManager of the current deployment, looking it up the first time it is needed by a deployment.
+     * Deployments are identified by the thread context class loader.
+     *
+     * @return the BeanManager, or {@code null} if it cannot be found
+     */
+    protected static BeanManager getBeanManager() {
+        ClassLoader classLoader = Thread.currentThread().getContextClassLoader();
+        BeanManager beanManager = beanManagerMap.get(classLoader);
+
+        if (beanManager == null) {
+            beanManagerCounter.miss();
+            beanManager = lookupBeanManager();
+            if (beanManager != null) {
+                beanManagerMap.put(classLoader, beanManager);
+            }
+        } else {
+            beanManagerCounter.hit();
+        }
+
+        return beanManager;
+    }
+
+    /**
+     * Forgets the BeanManager of the current deployment. Must be called when the web application is undeployed, so
+     * that the BeanManager does not keep its class loader.
+     */
+    public static void clear() {
+        beanManagerMap.remove(Thread.currentThread().getContextClassLoader());
     }
 
     /**
@@ -89,14 +265,37 @@ public class CDIInjectionEnricher {
      * @return the BeanManager
      */
     protected static BeanManager lookupBeanManager() {
+        InjectionMetrics.getInstance().recordBeanManagerLookup();
+        Context context;
         try {
-            return (BeanManager) new InitialContext().lookup(STANDARD_BEAN_MANAGER_JNDI_NAME);
+            context = NamingContextProvider.getInstance().getContext();
+        } catch (Exception e) {
+            return null;
+        }
+
+        try {
+            return (BeanManager) context.lookup(STANDARD_BEAN_MANAGER_JNDI_NAME);
         } catch (Exception e) {
             try {
-                return (BeanManager) new InitialContext().lookup(SERVLET_BEAN_MANAGER_JNDI_NAME);
+                return (BeanManager) context.lookup(SERVLET_BEAN_MANAGER_JNDI_NAME);
             } catch (Exception se) {
                 return null;
             }
         }
     }
+
+    /**
+     * BeanManager and injection target of a class.
+     */
+    private static final class ManagedTarget {
+
+        private final BeanManager beanManager;
+
+        private final InjectionTarget<Object> injectionTarget;
+
+        ManagedTarget(BeanManager beanManager, InjectionTarget<Object> injectionTarget) {
+            this.beanManager = beanManager;
+            this.injectionTarget = injectionTarget;
+        }
+    }
 }
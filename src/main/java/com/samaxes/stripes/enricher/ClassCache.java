@@ -0,0 +1,145 @@
+/*
+ * $Id$
+ *
+ * Copyright 2011 samaxes.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.samaxes.stripes.enricher;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+/**
+ * <p>
+ * Cache of class metadata which does not keep the classes alive. Values are attached to their class through a
+ * {@link ClassValue}, so they are garbage collected together with the class, even if they reference it. When the
+ * enricher is installed in a shared or server class loader, the class loader of an undeployed web application can
+ * thus be collected.
+ * </p>
+ * <p>
+ * Values are computed at most once per class by {@link #get(Class, Loader)}: concurrent callers for the same class wait
+ * for the first one instead of examining the class too. Values must not reference the cache itself, nor any other
+ * object holding the {@link ClassValue}.
+ * </p>
+ *
+ * @param <V> the type of the cached values
+ * @author Samuel Santos
+ * @version $Revision$
+ */
+public final class ClassCache<V> {
+
+    private final ClassValue<Holder<V>> values = new ClassValue<Holder<V>>() {
+        @Override
+        protected Holder<V> computeValue(Class<?> type) {
+            return new Holder<V>();
+        }
+    };
+
+    /** Weakly referenced cached classes, only used to report the cache size. */
+    final Map<Class<?>, Boolean> classes = Collections.synchronizedMap(new WeakHashMap<Class<?>, Boolean>());
+
+    /**
+     * Gets the value cached for a class.
+     *
+     * @param clazz the class
+     * @return the cached value, or {@code null} if none
+     */
+    public V get(Class<?> clazz) {
+        return values.get(clazz).value;
+    }
+
+    /**
+     * Gets the value cached for a class, loading it if there is none. Only one thread loads the value of a class, the
+     * others wait for it. If the loader fails or returns {@code null}, nothing is cached and the next caller loads the
+     * value again.
+     *
+     * @param clazz the class
+     * @param loader computes the value of the class
+     * @return the cached or loaded value
+     */
+    public V get(Class<?> clazz, Loader<V> loader) {
+        Holder<V> holder = values.get(clazz);
+        V value = holder.value;
+
+        if (value == null) {
+            synchronized (holder) {
+                value = holder.value;
+                if (value == null) {
+                    value = loader.load(clazz);
+                    if (value != null) {
+                        holder.value = value;
+                        classes.put(clazz, Boolean.TRUE);
+                    }
+                }
+            }
+        }
+
+        return value;
+    }
+
+    /**
+     * Caches the value of a class, replacing any previous value.
+     *
+     * @param clazz the class
+     * @param value the value to cache
+     */
+    public void put(Class<?> clazz, V value) {
+        values.get(clazz).value = value;
+        classes.put(clazz, Boolean.TRUE);
+    }
+
+    /**
+     * Removes the value cached for a class.
+     *
+     * @param clazz the class
+     */
+    public void remove(Class<?> clazz) {
+        values.get(clazz).value = null;
+        classes.remove(clazz);
+    }
+
+    /**
+     * Gets the number of classes with a cached value which have not been garbage collected yet.
+     *
+     * @return the number of cached classes
+     */
+    public int size() {
+        return classes.size();
+    }
+
+    /**
+     * Computes the value of a class on a cache miss.
+     *
+     * @param <V> the type of the cached values
+     */
+    public interface Loader<V> {
+
+        /**
+         * Computes the value of a class.
+         *
+         * @param clazz the class
+         * @return the value, or {@code null} if it cannot be computed yet
+         */
+        V load(Class<?> clazz);
+    }
+
+    /**
+     * Value of a class, also used as the lock of its loading.
+     */
+    private static final class Holder<V> {
+
+        private volatile V value;
+    }
+}
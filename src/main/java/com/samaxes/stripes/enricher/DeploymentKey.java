@@ -0,0 +1,85 @@
+/*
+ * $Id$
+ *
+ * Copyright 2011 samaxes.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.samaxes.stripes.enricher;
+
+import java.lang.ref.WeakReference;
+
+/**
+ * Identifies a JNDI name within a deployment, since names such as {@code java:comp/env/...} or {@code java:module/...}
+ * resolve differently in each deployment. Deployments are identified by the thread context class loader, which is
+ * weakly referenced, so that the JVM wide caches keyed by deployment do not keep an undeployed web application alive.
+ *
+ * @author Samuel Santos
+ * @version $Revision$
+ */
+final class DeploymentKey {
+
+    private final WeakReference<ClassLoader> deployment;
+
+    private final String jndiName;
+
+    private final int hash;
+
+    private DeploymentKey(ClassLoader classLoader, String jndiName) {
+        this.deployment = new WeakReference<ClassLoader>(classLoader);
+        this.jndiName = jndiName;
+        this.hash = 31 * System.identityHashCode(classLoader) + jndiName.hashCode();
+    }
+
+    /**
+     * Creates the key of a JNDI name in the current deployment.
+     *
+     * @param jndiName the JNDI name
+     * @return the key of the JNDI name
+     */
+    static DeploymentKey current(String jndiName) {
+        return new DeploymentKey(Thread.currentThread().getContextClassLoader(), jndiName);
+    }
+
+    /**
+     * Whether this key belongs to the current deployment, or to a deployment already garbage collected.
+     *
+     * @return {@code true} if the key was created by the current deployment or its deployment was collected
+     */
+    boolean isCurrentOrCollected() {
+        ClassLoader classLoader = deployment.get();
+        return classLoader == null || classLoader == Thread.currentThread().getContextClassLoader();
+    }
+
+    String getJndiName() {
+        return jndiName;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (this == obj) {
+            return true;
+        }
+        if (!(obj instanceof DeploymentKey)) {
+            return false;
+        }
+        DeploymentKey other = (DeploymentKey) obj;
+        ClassLoader classLoader = deployment.get();
+        return classLoader != null && classLoader == other.deployment.get() && jndiName.equals(other.jndiName);
+    }
+
+    @Override
+    public int hashCode() {
+        return hash;
+    }
+}
@@ -17,18 +17,25 @@
  */
 package com.samaxes.stripes.enricher;
 
-import java.lang.reflect.Field;
-import java.lang.reflect.Method;
-import java.util.Collection;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Future;
 
-import javax.ejb.EJB;
 import javax.naming.Context;
-import javax.naming.InitialContext;
 import javax.naming.NamingException;
 
 import net.sourceforge.stripes.action.ActionBean;
 import net.sourceforge.stripes.util.Log;
 
+import com.samaxes.stripes.enricher.InjectionStateRegistry.InjectionState;
+
 /**
  * Enricher that provide EJB field and setter method injection. It is used to lookup EJBs and inject them into objects
  * (often ActionBeans).
@@ -40,6 +47,19 @@ public class EJBInjectionEnricher {
 
     private static final Log log = Log.getInstance(EJBInjectionEnricher.class);
 
+    /** Lazily filled in map of EJB reference, in a deployment, to the JNDI name under which it was found. */
+    private static Map<ReferenceKey, String> jndiNameMap = new ConcurrentHashMap<ReferenceKey, String>();
+
+    /** Lazily filled in map of deployment class loader to its application and module names. */
+    private static Map<ClassLoader, DeploymentNames> deploymentNamesMap = Collections
+            .synchronizedMap(new WeakHashMap<ClassLoader, DeploymentNames>());
+
+    private static final InjectionMetrics.CacheCounter jndiNameCounter = InjectionMetrics
+            .registerCache("EJBJndiName", jndiNameMap);
+
+    private static final InjectionMetrics.CacheCounter deploymentNamesCounter = InjectionMetrics
+            .registerCache("EJBDeploymentNames", deploymentNamesMap);
+
     /**
      * Internal constructor; not to be called as this class provides static utilities only.
      */
@@ -48,38 +68,147 @@ public class EJBInjectionEnricher {
     }
 
     /**
-     * Lookup beans and inject them into objects.
+     * Forgets the JNDI names resolved by the current deployment, as well as those of deployments already garbage
+     * collected. Must be called when the deployment shuts down.
+     */
+    public static void clear() {
+        for (Iterator<ReferenceKey> it = jndiNameMap.keySet().iterator(); it.hasNext();) {
+            if (it.next().isCurrentOrCollected()) {
+                it.remove();
+            }
+        }
+        deploymentNamesMap.remove(Thread.currentThread().getContextClassLoader());
+    }
+
+    /**
+     * Lookup beans and inject them into objects. Injection points already injected on a session scoped ActionBean are
+     * skipped, see {@link InjectionStateRegistry}. If parallel lookups are enabled, the EJBs are looked up concurrently
+     * before being injected in order, see {@link LookupExecutor}. Unavailable EJBs may be replaced by stubs, see
+     * {@link LookupGuard}.
      *
      * @param bean the binding process target
-     * @param fields fields on a class that are annotated for injection
-     * @param methods methods on a class that are annotated for injection
+     * @param injectionPoints fields and methods on a class that are annotated for injection, fields first
      * @throws Exception if the binding process produced unrecoverable errors
      */
-    public static void bind(ActionBean bean, Collection<Field> fields, Collection<Method> methods) throws Exception {
-        log.debug("Running @EJB dependency injection for instance of ", bean.getClass().getSimpleName());
-
-        // First inject any properties that are annotated
-        if (fields != null) {
-            for (Field field : fields) {
-                EJB ejbAnnotation = field.getAnnotation(EJB.class);
-                Object ejb = lookupEJB(field.getType(), ejbAnnotation.lookup(), ejbAnnotation.mappedName());
-                field.set(bean, ejb);
+    public static void bind(ActionBean bean, EJBInjectionPoint[] injectionPoints) throws Exception {
+        log.debug("Running @EJB dependency injection for instance of ", bean.getClass().getName());
+
+        InjectionState state = InjectionStateRegistry.getInstance().get(bean);
+        Object event = InjectionEvents.beginBind();
+        boolean success = false;
+        try {
+            List<Future<Object>> lookups = lookupInParallel(state, injectionPoints);
+
+            for (int i = 0; i < injectionPoints.length; i++) {
+                EJBInjectionPoint injectionPoint = injectionPoints[i];
+                if (state != null && state.isInjected(injectionPoint)) {
+                    continue;
+                }
+
+                Object ejb;
+                if (LazyReferenceFactory.getInstance().isLazy(injectionPoint)) {
+                    ejb = LazyReferenceFactory.getInstance().create(injectionPoint.getType(),
+                            createLookup(injectionPoint));
+                } else {
+                    try {
+                        if (lookups != null && lookups.get(i) != null) {
+                            ejb = LookupExecutor.getResult(lookups.get(i));
+                        } else {
+                            ejb = lookupEJB(injectionPoint.getType(), injectionPoint.getLookup(),
+                                    injectionPoint.getMappedName(), injectionPoint.isShareable());
+                        }
+                    } catch (NamingException e) {
+                        ejb = LookupGuard.getInstance().createStub(injectionPoint.getType(), e);
+                    }
+                }
+                injectionPoint.inject(bean, ejb);
+                // A stub is replaced by the EJB on the next request the session scoped ActionBean serves
+                if (state != null && !LookupGuard.isStub(ejb)) {
+                    state.setInjected(injectionPoint);
+                }
             }
+            success = true;
+        } finally {
+            InjectionEvents.endBind(event, "EJB", bean.getClass(), injectionPoints.length, success);
+        }
+    }
+
+    /**
+     * Looks up the EJBs of the injection points concurrently, if parallel lookups are enabled and there is more than
+     * one EJB to look up, at least one of them by a {@code java:global} name. EJBs without such a lookup or mapped
+     * name are looked up on the calling thread, since probing their JNDI name needs the naming context of the
+     * component. Injection points that are already injected or that receive a lazy reference are skipped.
+     *
+     * @param state the injection state of a session scoped ActionBean, or {@code null}
+     * @param injectionPoints fields and methods on a class that are annotated for injection
+     * @return the completed lookups, by injection point index, or {@code null} if the EJBs must be looked up in turn
+     * @throws InterruptedException if the thread is interrupted while waiting for the lookups
+     */
+    private static List<Future<Object>> lookupInParallel(InjectionState state, EJBInjectionPoint[] injectionPoints)
+            throws InterruptedException {
+        if (!LookupExecutor.getInstance().isEnabled() || injectionPoints.length < 2) {
+            return null;
         }
 
-        // Then inject any values using annotated methods
-        if (methods != null) {
-            for (Method method : methods) {
-                EJB ejbAnnotation = method.getAnnotation(EJB.class);
-                Object ejb = lookupEJB(method.getParameterTypes()[0], ejbAnnotation.lookup(),
-                        ejbAnnotation.mappedName());
-                method.invoke(bean, ejb);
+        List<Callable<Object>> lookups = new ArrayList<Callable<Object>>(injectionPoints.length);
+        int count = 0;
+        int portableCount = 0;
+        for (EJBInjectionPoint injectionPoint : injectionPoints) {
+            if ((state != null && state.isInjected(injectionPoint))
+                    || LazyReferenceFactory.getInstance().isLazy(injectionPoint)) {
+                lookups.add(null);
+            } else if (LookupExecutor.isPortable(getJndiName(injectionPoint))) {
+                lookups.add(createLookup(injectionPoint));
+                count++;
+                portableCount++;
+            } else {
+                lookups.add(LookupExecutor.onCallingThread(createLookup(injectionPoint)));
+                count++;
             }
         }
+
+        return count > 1 && portableCount > 0 ? LookupExecutor.getInstance().lookupAll(lookups) : null;
+    }
+
+    /**
+     * Gets the JNDI name given by the lookup or mapped name of an injection point.
+     *
+     * @param injectionPoint the injection point
+     * @return the JNDI name, or {@code null} if the name must be probed
+     */
+    private static String getJndiName(EJBInjectionPoint injectionPoint) {
+        if (injectionPoint.getLookup() != null && !"".equals(injectionPoint.getLookup())) {
+            return injectionPoint.getLookup();
+        }
+        if (injectionPoint.getMappedName() != null && !"".equals(injectionPoint.getMappedName())) {
+            return injectionPoint.getMappedName();
+        }
+
+        return null;
     }
 
     /**
-     * Lookup EJBs and return it.
+     * Creates the lookup of the EJB of an injection point, performed by a lazy reference or a parallel lookup.
+     *
+     * @param injectionPoint the injection point
+     * @return the EJB lookup
+     */
+    private static Callable<Object> createLookup(final EJBInjectionPoint injectionPoint) {
+        return new Callable<Object>() {
+            @Override
+            public Object call() throws Exception {
+                return lookupEJB(injectionPoint.getType(), injectionPoint.getLookup(), injectionPoint.getMappedName(),
+                        injectionPoint.isShareable());
+            }
+        };
+    }
+
+    /**
+     * Lookup EJBs and return it. The JNDI name under which the EJB is found is remembered, so later lookups of the same
+     * reference go straight to that name. The candidate names are only probed again if it stops resolving. When no
+     * candidate name resolves, the failure is remembered for a short time by the {@link LookupFailureCache}, if
+     * enabled. Lookups are guarded by the {@link LookupGuard}, and probing stops as soon as the naming server is
+     * unavailable.
      *
      * @param fieldType The EJB class type
      * @param lookup A portable lookup string containing the JNDI name for the target EJB component
@@ -88,18 +217,197 @@ public class EJBInjectionEnricher {
      * @throws Exception when no EJB found in JNDI
      */
     protected static Object lookupEJB(Class<?> fieldType, String lookup, String mappedName) throws Exception {
-        Context context = new InitialContext();
-        String appName = (String) context.lookup("java:app/AppName");
-        String moduleName = (String) context.lookup("java:module/ModuleName");
+        return lookupEJB(fieldType, lookup, mappedName, false);
+    }
+
+    /**
+     * Lookup EJBs and return it. If the reference is shareable and the {@link EJBReferenceCache} is enabled, the EJB is
+     * only looked up the first time and the cached reference is returned afterwards.
+     *
+     * @param fieldType The EJB class type
+     * @param lookup A portable lookup string containing the JNDI name for the target EJB component
+     * @param mappedName The product specific name of the EJB component to which this ejb reference should be mapped
+     * @param shareable whether the reference may be shared between instances
+     * @return EJB object
+     * @throws Exception when no EJB found in JNDI
+     * @see #lookupEJB(Class, String, String)
+     */
+    protected static Object lookupEJB(Class<?> fieldType, String lookup, String mappedName, boolean shareable)
+            throws Exception {
+        ReferenceKey key = new ReferenceKey(fieldType, lookup, mappedName);
+        LookupFailureCache.getInstance().check(key);
+        EJBReferenceCache referenceCache = EJBReferenceCache.getInstance();
+        String resolvedJndiName = jndiNameMap.get(key);
+        if (resolvedJndiName != null) {
+            jndiNameCounter.hit();
+        } else {
+            jndiNameCounter.miss();
+        }
+
+        if (resolvedJndiName != null && shareable) {
+            Object ejb = referenceCache.get(resolvedJndiName);
+            if (ejb != null) {
+                return ejb;
+            }
+        }
+
+        Context context = NamingContextProvider.getInstance().getContext();
+
+        if (resolvedJndiName != null) {
+            Object event = InjectionEvents.beginJndiLookup();
+            try {
+                Object ejb = LookupGuard.getInstance().lookup(context, resolvedJndiName);
+                InjectionMetrics.getInstance().recordEJBLookup(true);
+                InjectionEvents.endJndiLookup(event, resolvedJndiName, true);
+                if (shareable) {
+                    referenceCache.put(resolvedJndiName, ejb);
+                }
+
+                return ejb;
+            } catch (NamingException e) {
+                InjectionMetrics.getInstance().recordEJBLookup(false);
+                InjectionEvents.endJndiLookup(event, resolvedJndiName, false);
+                if (LookupGuard.isUnavailable(e)) {
+                    throw e;
+                }
+                log.debug("EJB no longer found in JNDI, probing again. JNDI name: ", resolvedJndiName);
+                jndiNameMap.remove(key);
+            }
+        }
+
         String[] jndiNames;
+        boolean probing = false;
 
         if (lookup != null && !"".equals(lookup)) {
             jndiNames = new String[] { lookup };
         } else if (mappedName != null && !"".equals(mappedName)) {
             jndiNames = new String[] { mappedName };
         } else {
+            jndiNames = getDeploymentNames(context).getCandidateNames(fieldType);
+            probing = true;
+        }
+
+        for (String jndiName : jndiNames) {
+            Object event = InjectionEvents.beginJndiLookup();
+            try {
+                Object ejb = LookupGuard.getInstance().lookup(context, jndiName);
+                recordLookup(probing, true);
+                InjectionEvents.endJndiLookup(event, jndiName, true);
+                log.debug("EJB found in JNDI. JNDI name: ", jndiName);
+                jndiNameMap.put(key, jndiName);
+                if (shareable) {
+                    referenceCache.put(jndiName, ejb);
+                }
+
+                return ejb;
+            } catch (NamingException e) {
+                recordLookup(probing, false);
+                InjectionEvents.endJndiLookup(event, jndiName, false);
+                // try next, unless the naming server is unavailable
+                if (LookupGuard.isUnavailable(e)) {
+                    throw e;
+                }
+            }
+        }
+
+        NamingException e = new NamingException("No EJB found in JNDI, tried the following names: "
+                + joinJndiNames(jndiNames));
+        LookupFailureCache.getInstance().put(key, e);
+        throw e;
+    }
+
+    /**
+     * Records the lookup of an EJB under a known name, or of one of its probed candidate names.
+     *
+     * @param probing whether the looked up name is a candidate name
+     * @param success {@code false} if the lookup failed with a {@code NamingException}
+     */
+    private static void recordLookup(boolean probing, boolean success) {
+        if (probing) {
+            InjectionMetrics.getInstance().recordEJBProbe(success);
+        } else {
+            InjectionMetrics.getInstance().recordEJBLookup(success);
+        }
+    }
+
+    /**
+     * Gets the application and module names of the current deployment, looking them up the first time they are needed
+     * by a deployment. Deployments are identified by the thread context class loader.
+     *
+     * @param context the naming context
+     * @return the current deployment names
+     * @throws NamingException if the names cannot be found in JNDI
+     */
+    private static DeploymentNames getDeploymentNames(Context context) throws NamingException {
+        ClassLoader classLoader = Thread.currentThread().getContextClassLoader();
+        DeploymentNames deploymentNames = deploymentNamesMap.get(classLoader);
+
+        if (deploymentNames == null) {
+            deploymentNamesCounter.miss();
+            String appName = (String) context.lookup("java:app/AppName");
+            String moduleName = (String) context.lookup("java:module/ModuleName");
+            deploymentNames = new DeploymentNames(appName, moduleName);
+            deploymentNamesMap.put(classLoader, deploymentNames);
+        } else {
+            deploymentNamesCounter.hit();
+        }
+
+        return deploymentNames;
+    }
+
+    /**
+     * Simple helper for printing the jndi names.
+     *
+     * @param strings JNDI names array to join
+     * @return comma separated JNDI names
+     */
+    private static String joinJndiNames(String[] strings) {
+        StringBuilder sb = new StringBuilder();
+
+        for (String string : strings) {
+            sb.append(string).append(", ");
+        }
+
+        return sb.toString();
+    }
+
+    /**
+     * Application and module names of a deployment, and the EJB candidate JNDI names already built for it.
+     */
+    private static final class DeploymentNames {
+
+        private final String appName;
+
+        private final String moduleName;
+
+        /** Candidate JNDI names by EJB type name. Keyed by name so the entry does not hold the class loader. */
+        private final Map<String, String[]> candidateNamesMap = new ConcurrentHashMap<String, String[]>();
+
+        DeploymentNames(String appName, String moduleName) {
+            this.appName = appName;
+            this.moduleName = moduleName;
+        }
+
+        /**
+         * Gets the JNDI names under which an EJB of the given type may be bound, in probing order.
+         *
+         * @param fieldType The EJB class type
+         * @return the candidate JNDI names
+         */
+        String[] getCandidateNames(Class<?> fieldType) {
+            String[] candidateNames = candidateNamesMap.get(fieldType.getName());
+
+            if (candidateNames == null) {
+                candidateNames = buildCandidateNames(fieldType);
+                candidateNamesMap.put(fieldType.getName(), candidateNames);
+            }
+
+            return candidateNames;
+        }
+
+        private String[] buildCandidateNames(Class<?> fieldType) {
             // @formatter:off
-            jndiNames = new String[] {
+            return new String[] {
                 "java:global/" + appName + "/" + moduleName + "/" + fieldType.getSimpleName() + "!" + fieldType.getName(),
                 "java:global/" + appName + "/" + moduleName + "/" + fieldType.getSimpleName() + "Bean!" + fieldType.getName(),
                 "java:global/" + appName + "/" + moduleName + "/" + fieldType.getSimpleName(),
@@ -130,34 +438,70 @@ public class EJBInjectionEnricher {
             };
             // @formatter:on
         }
+    }
 
-        for (String jndiName : jndiNames) {
-            try {
-                Object ejb = context.lookup(jndiName);
-                log.debug("EJB found in JNDI. JNDI name: ", jndiName);
+    /**
+     * Identifies an EJB reference by the deployment that uses it, its type and its annotation attributes, since the
+     * same reference may resolve to a different JNDI name in each deployment. Deployments are identified by the thread
+     * context class loader. The class loader and the type are weakly referenced, so that cached JNDI names and lookup
+     * failures do not keep an undeployed web application alive.
+     */
+    private static final class ReferenceKey {
 
-                return ejb;
-            } catch (NamingException e) {
-                // no-op, try next
-            }
+        private final WeakReference<ClassLoader> deployment;
+
+        private final WeakReference<Class<?>> type;
+
+        private final int hash;
+
+        private final String lookup;
+
+        private final String mappedName;
+
+        ReferenceKey(Class<?> type, String lookup, String mappedName) {
+            ClassLoader classLoader = Thread.currentThread().getContextClassLoader();
+            this.deployment = new WeakReference<ClassLoader>(classLoader);
+            this.type = new WeakReference<Class<?>>(type);
+            this.lookup = lookup;
+            this.mappedName = mappedName;
+
+            int result = System.identityHashCode(classLoader);
+            result = 31 * result + type.hashCode();
+            result = 31 * result + (lookup == null ? 0 : lookup.hashCode());
+            result = 31 * result + (mappedName == null ? 0 : mappedName.hashCode());
+            this.hash = result;
         }
 
-        throw new NamingException("No EJB found in JNDI, tried the following names: " + joinJndiNames(jndiNames));
-    }
+        /**
+         * Whether this key belongs to the current deployment, or to a deployment or type already garbage collected.
+         */
+        boolean isCurrentOrCollected() {
+            ClassLoader classLoader = deployment.get();
+            return classLoader == null || type.get() == null
+                    || classLoader == Thread.currentThread().getContextClassLoader();
+        }
 
-    /**
-     * Simple helper for printing the jndi names.
-     *
-     * @param strings JNDI names array to join
-     * @return comma separated JNDI names
-     */
-    private static String joinJndiNames(String[] strings) {
-        StringBuilder sb = new StringBuilder();
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj) {
+                return true;
+            }
+            if (!(obj instanceof ReferenceKey)) {
+                return false;
+            }
+            ReferenceKey other = (ReferenceKey) obj;
+            Class<?> clazz = type.get();
+            return clazz != null && clazz == other.type.get() && deployment.get() == other.deployment.get()
+                    && equal(lookup, other.lookup) && equal(mappedName, other.mappedName);
+        }
 
-        for (String string : strings) {
-            sb.append(string).append(", ");
+        @Override
+        public int hashCode() {
+            return hash;
         }
 
-        return sb.toString();
+        private static boolean equal(String a, String b) {
+            return a == null ? b == null : a.equals(b);
+        }
     }
 }
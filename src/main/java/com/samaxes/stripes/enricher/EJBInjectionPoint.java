@@ -0,0 +1,93 @@
+/*
+ * $Id$
+ *
+ * Copyright 2011 samaxes.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.samaxes.stripes.enricher;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+
+import javax.ejb.EJB;
+
+/**
+ * Field or setter method annotated with {@link EJB}. The annotation attributes are read once, when the injection point
+ * is created.
+ *
+ * @author Samuel Santos
+ * @version $Revision$
+ */
+public class EJBInjectionPoint extends InjectionPoint {
+
+    private final String lookup;
+
+    private final String mappedName;
+
+    private final boolean shareable;
+
+    /**
+     * Creates an injection point for a field annotated with {@link EJB}.
+     *
+     * @param field the annotated field
+     */
+    public EJBInjectionPoint(Field field) {
+        super(field);
+        EJB ejbAnnotation = field.getAnnotation(EJB.class);
+        this.lookup = ejbAnnotation.lookup();
+        this.mappedName = ejbAnnotation.mappedName();
+        this.shareable = !field.isAnnotationPresent(UncachedReference.class);
+    }
+
+    /**
+     * Creates an injection point for a setter method annotated with {@link EJB}.
+     *
+     * @param method the annotated method
+     */
+    public EJBInjectionPoint(Method method) {
+        super(method);
+        EJB ejbAnnotation = method.getAnnotation(EJB.class);
+        this.lookup = ejbAnnotation.lookup();
+        this.mappedName = ejbAnnotation.mappedName();
+        this.shareable = !method.isAnnotationPresent(UncachedReference.class);
+    }
+
+    /**
+     * Gets the portable lookup string containing the JNDI name for the target EJB component.
+     *
+     * @return the {@link EJB#lookup()} attribute value
+     */
+    public String getLookup() {
+        return lookup;
+    }
+
+    /**
+     * Gets the product specific name of the EJB component to which this reference should be mapped.
+     *
+     * @return the {@link EJB#mappedName()} attribute value
+     */
+    public String getMappedName() {
+        return mappedName;
+    }
+
+    /**
+     * Whether the injected reference may be shared between instances, i.e. the injection point is not annotated with
+     * {@link UncachedReference}.
+     *
+     * @return {@code true} if the reference may be cached by the {@link EJBReferenceCache}
+     */
+    public boolean isShareable() {
+        return shareable;
+    }
+}
@@ -0,0 +1,180 @@
+/*
+ * $Id$
+ *
+ * Copyright 2011 samaxes.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.samaxes.stripes.enricher;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * <p>
+ * Cache of EJB references, keyed by the JNDI name they were found under. Proxies of {@code @Stateless} and
+ * {@code @Singleton} session beans are thread-safe and can be shared, so once cached their injection becomes a plain
+ * field store instead of a JNDI lookup.
+ * </p>
+ * <p>
+ * The cache is disabled by default. References to {@code @Stateful} session beans must never be shared; they are
+ * excluded either by annotating the injection point with {@link UncachedReference} or by listing their JNDI names in
+ * the excluded names.
+ * </p>
+ * <p>
+ * Entries are scoped to the deployment that looked them up, identified by the thread context class loader, and are
+ * cleared when it shuts down, see {@link #clear()}.
+ * </p>
+ *
+ * @author Samuel Santos
+ * @version $Revision$
+ */
+public final class EJBReferenceCache {
+
+    private static final EJBReferenceCache instance = new EJBReferenceCache();
+
+    private final Map<DeploymentKey, Object> references = new ConcurrentHashMap<DeploymentKey, Object>();
+
+    private volatile boolean enabled;
+
+    private volatile Set<String> excludedNames = Collections.emptySet();
+
+    private EJBReferenceCache() {
+    }
+
+    /**
+     * Gets the cache used by the EJB enricher.
+     *
+     * @return the shared EJB reference cache
+     */
+    public static EJBReferenceCache getInstance() {
+        return instance;
+    }
+
+    /**
+     * Whether EJB references are cached.
+     *
+     * @return {@code true} if the cache is enabled
+     */
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Enables or disables the cache. Disabling it discards all cached references.
+     *
+     * @param enabled {@code true} to cache EJB references
+     */
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+        if (!enabled) {
+            references.clear();
+        }
+    }
+
+    /**
+     * Gets the JNDI names of references that are never cached.
+     *
+     * @return the excluded JNDI names
+     */
+    public Set<String> getExcludedNames() {
+        return excludedNames;
+    }
+
+    /**
+     * Sets the JNDI names of references that are never cached, typically {@code @Stateful} session beans.
+     *
+     * @param excludedNames the excluded JNDI names
+     */
+    public void setExcludedNames(Collection<String> excludedNames) {
+        Set<String> names = Collections.unmodifiableSet(new HashSet<String>(excludedNames));
+        this.excludedNames = names;
+        for (String name : names) {
+            for (Iterator<DeploymentKey> it = references.keySet().iterator(); it.hasNext();) {
+                if (it.next().getJndiName().equals(name)) {
+                    it.remove();
+                }
+            }
+        }
+    }
+
+    /**
+     * Whether the reference bound under a JNDI name may be cached.
+     *
+     * @param jndiName the JNDI name
+     * @return {@code true} if the cache is enabled and the name is not excluded
+     */
+    public boolean isCacheable(String jndiName) {
+        return enabled && !excludedNames.contains(jndiName);
+    }
+
+    /**
+     * Gets the reference cached for a JNDI name in the current deployment.
+     *
+     * @param jndiName the JNDI name
+     * @return the cached reference, or {@code null} if there is none
+     */
+    public Object get(String jndiName) {
+        if (references.isEmpty()) {
+            return null;
+        }
+        return references.get(DeploymentKey.current(jndiName));
+    }
+
+    /**
+     * Caches the reference found under a JNDI name in the current deployment, unless the name is not cacheable.
+     *
+     * @param jndiName the JNDI name
+     * @param reference the EJB reference
+     */
+    public void put(String jndiName, Object reference) {
+        if (isCacheable(jndiName)) {
+            references.put(DeploymentKey.current(jndiName), reference);
+        }
+    }
+
+    /**
+     * Discards the reference cached for a JNDI name in the current deployment.
+     *
+     * @param jndiName the JNDI name
+     */
+    public void remove(String jndiName) {
+        references.remove(DeploymentKey.current(jndiName));
+    }
+
+    /**
+     * Discards the references cached by the current deployment, as well as those of deployments already garbage
+     * collected. Must be called when the deployment shuts down.
+     */
+    public void clear() {
+        for (Iterator<DeploymentKey> it = references.keySet().iterator(); it.hasNext();) {
+            if (it.next().isCurrentOrCollected()) {
+                it.remove();
+            }
+        }
+    }
+
+    /**
+     * Gets the number of cached references.
+     *
+     * @return the number of entries
+     */
+    public int size() {
+        return references.size();
+    }
+}
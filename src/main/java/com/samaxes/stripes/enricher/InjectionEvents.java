@@ -0,0 +1,156 @@
+/*
+ * $Id$
+ *
+ * Copyright 2011 samaxes.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.samaxes.stripes.enricher;
+
+import net.sourceforge.stripes.util.Log;
+
+/**
+ * <p>
+ * Emits Java Flight Recorder events around each ActionBean injection, each enricher {@code bind}, each JNDI lookup and
+ * each CDI {@code inject} call: {@code com.samaxes.stripes.Injection}, {@code com.samaxes.stripes.Bind},
+ * {@code com.samaxes.stripes.JndiLookup} and {@code com.samaxes.stripes.CdiInject}.
+ * </p>
+ * <p>
+ * Events are only created while a flight recording enables them. Otherwise, or if the JVM has no flight recorder, the
+ * {@code begin} methods return {@code null} and the {@code end} methods do nothing. The events are only available on
+ * Java 11 and later, from the multi-release jar, see {@link JfrEvents}.
+ * </p>
+ *
+ * @author Samuel Santos
+ * @version $Revision$
+ */
+public final class InjectionEvents {
+
+    private static final Log log = Log.getInstance(InjectionEvents.class);
+
+    private static final boolean available = isFlightRecorderAvailable();
+
+    /**
+     * Internal constructor; not to be called as this class provides static utilities only.
+     */
+    private InjectionEvents() {
+        throw new UnsupportedOperationException("No instances permitted");
+    }
+
+    /**
+     * Begins an ActionBean injection event.
+     *
+     * @return the event, or {@code null} if no recording is running
+     */
+    public static Object beginInjection() {
+        return available ? JfrEvents.beginInjection() : null;
+    }
+
+    /**
+     * Ends and commits an ActionBean injection event.
+     *
+     * @param event the event returned by {@link #beginInjection()}
+     * @param beanClass the ActionBean class
+     * @param success whether the injection succeeded
+     */
+    public static void endInjection(Object event, Class<?> beanClass, boolean success) {
+        if (event != null) {
+            JfrEvents.endInjection(event, beanClass, success);
+        }
+    }
+
+    /**
+     * Begins an enricher bind event.
+     *
+     * @return the event, or {@code null} if no recording is running
+     */
+    public static Object beginBind() {
+        return available ? JfrEvents.beginBind() : null;
+    }
+
+    /**
+     * Ends and commits an enricher bind event.
+     *
+     * @param event the event returned by {@link #beginBind()}
+     * @param enricher the enricher name
+     * @param beanClass the ActionBean class
+     * @param injectionPoints the number of injection points
+     * @param success whether the binding succeeded
+     */
+    public static void endBind(Object event, String enricher, Class<?> beanClass, int injectionPoints,
+            boolean success) {
+        if (event != null) {
+            JfrEvents.endBind(event, enricher, beanClass, injectionPoints, success);
+        }
+    }
+
+    /**
+     * Begins a JNDI lookup event.
+     *
+     * @return the event, or {@code null} if no recording is running
+     */
+    static Object beginJndiLookup() {
+        return available ? JfrEvents.beginJndiLookup() : null;
+    }
+
+    /**
+     * Ends and commits a JNDI lookup event.
+     *
+     * @param event the event returned by {@link #beginJndiLookup()}
+     * @param jndiName the looked up name
+     * @param found whether the name was found
+     */
+    static void endJndiLookup(Object event, String jndiName, boolean found) {
+        if (event != null) {
+            JfrEvents.endJndiLookup(event, jndiName, found);
+        }
+    }
+
+    /**
+     * Begins a CDI inject event.
+     *
+     * @return the event, or {@code null} if no recording is running
+     */
+    static Object beginCdiInject() {
+        return available ? JfrEvents.beginCdiInject() : null;
+    }
+
+    /**
+     * Ends and commits a CDI inject event.
+     *
+     * @param event the event returned by {@link #beginCdiInject()}
+     * @param beanClass the injected object class
+     * @param success whether the injection succeeded
+     */
+    static void endCdiInject(Object event, Class<?> beanClass, boolean success) {
+        if (event != null) {
+            JfrEvents.endCdiInject(event, beanClass, success);
+        }
+    }
+
+    /**
+     * Whether the events can be created, i.e. {@link JfrEvents} can be loaded. Only fails if the JVM has no
+     * {@code jdk.jfr} module.
+     */
+    private static boolean isFlightRecorderAvailable() {
+        try {
+            Class.forName(JfrEvents.class.getName(), true, JfrEvents.class.getClassLoader());
+            return true;
+        } catch (ClassNotFoundException e) {
+            return false;
+        } catch (LinkageError e) {
+            log.info("Flight recorder not available, injection events are disabled");
+            return false;
+        }
+    }
+}
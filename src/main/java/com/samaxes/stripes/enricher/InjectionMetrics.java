@@ -0,0 +1,563 @@
+/*
+ * $Id$
+ *
+ * Copyright 2011 samaxes.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.samaxes.stripes.enricher;
+
+import java.lang.management.ManagementFactory;
+import java.lang.ref.WeakReference;
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.InstanceNotFoundException;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import net.sourceforge.stripes.util.Log;
+
+/**
+ * <p>
+ * Injection enricher metrics, exposed through JMX as {@code com.samaxes.stripes:type=InjectionEnricher,context=<context
+ * path>}. They report the number and latency of injections per ActionBean class, the JNDI and BeanManager lookups, and
+ * the size and hit ratio of the class metadata caches.
+ * </p>
+ * <p>
+ * Each deployment, identified by the thread context class loader, records its own metrics, so that the web
+ * applications sharing this library each report their own injections and lookups. The class metadata caches are shared
+ * by these web applications: their size is the same for all of them, only their hits and misses are per deployment.
+ * </p>
+ * <p>
+ * Metrics are disabled by default. Counters are {@link LongAdder}s so that concurrent requests do not contend on them,
+ * and recording only reads the thread context class loader and a couple of volatile fields when metrics are disabled.
+ * </p>
+ *
+ * @author Samuel Santos
+ * @version $Revision$
+ */
+public final class InjectionMetrics implements InjectionMetricsMXBean {
+
+    private static final Log log = Log.getInstance(InjectionMetrics.class);
+
+    /** Map of deployment class loader to its metrics. */
+    private static final Map<ClassLoader, InjectionMetrics> instances = Collections
+            .synchronizedMap(new WeakHashMap<ClassLoader, InjectionMetrics>());
+
+    /** Metrics of the deployment that recorded last, so that a single deployment does not lock on each record. */
+    private static volatile InjectionMetrics lastInstance;
+
+    /** Class metadata caches by name, shared by all the deployments. */
+    private static final Map<String, CacheCounter> cacheCounters = new ConcurrentHashMap<String, CacheCounter>();
+
+    private final WeakReference<ClassLoader> deployment;
+
+    /** Injection latency histograms by class name. Keyed by name so the metrics do not hold the class loader. */
+    private final Map<String, LatencyHistogram> injectionHistograms = new ConcurrentHashMap<String, LatencyHistogram>();
+
+    /** Hits and misses of the class metadata caches by cache name. */
+    private final Map<String, LongAdder[]> cacheCounts = new ConcurrentHashMap<String, LongAdder[]>();
+
+    private final LongAdder resourceLookups = new LongAdder();
+
+    private final LongAdder resourceLookupFailures = new LongAdder();
+
+    private final LongAdder ejbLookups = new LongAdder();
+
+    private final LongAdder ejbLookupFailures = new LongAdder();
+
+    private final LongAdder ejbProbes = new LongAdder();
+
+    private final LongAdder ejbProbeMisses = new LongAdder();
+
+    private final LongAdder beanManagerLookups = new LongAdder();
+
+    private volatile boolean enabled;
+
+    private InjectionMetrics(ClassLoader deployment) {
+        this.deployment = new WeakReference<ClassLoader>(deployment);
+    }
+
+    /**
+     * Gets the metrics of the injection enricher in the current deployment.
+     *
+     * @return the metrics of the current deployment
+     */
+    public static InjectionMetrics getInstance() {
+        ClassLoader classLoader = Thread.currentThread().getContextClassLoader();
+        InjectionMetrics instance = lastInstance;
+        if (instance != null && instance.deployment.get() == classLoader) {
+            return instance;
+        }
+
+        synchronized (instances) {
+            instance = instances.get(classLoader);
+            if (instance == null) {
+                instance = new InjectionMetrics(classLoader);
+                instances.put(classLoader, instance);
+            }
+        }
+        lastInstance = instance;
+
+        return instance;
+    }
+
+    /**
+     * Registers a class metadata cache whose size and hit ratio are reported by the metrics of every deployment.
+     *
+     * @param name the cache name
+     * @param cache the cache, only its size is read
+     * @return the counter on which hits and misses are recorded
+     */
+    public static CacheCounter registerCache(String name, Map<?, ?> cache) {
+        CacheCounter counter = new CacheCounter(name, cache);
+        cacheCounters.put(name, counter);
+        return counter;
+    }
+
+    /**
+     * Registers a class metadata cache whose size and hit ratio are reported by the metrics of every deployment.
+     *
+     * @param name the cache name
+     * @param cache the cache
+     * @return the counter on which hits and misses are recorded
+     */
+    public static CacheCounter registerCache(String name, ClassCache<?> cache) {
+        return registerCache(name, cache.classes);
+    }
+
+    /**
+     * Whether metrics are recorded.
+     *
+     * @return {@code true} if metrics are recorded
+     */
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Enables or disables the recording of metrics.
+     *
+     * @param enabled whether metrics are recorded
+     */
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    /**
+     * Registers the metrics MBean of a web application in the platform MBean server. Does nothing if it is already
+     * registered.
+     *
+     * @param contextPath the web application context path
+     */
+    public void register(String contextPath) {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            server.registerMBean(this, getObjectName(contextPath));
+        } catch (InstanceAlreadyExistsException e) {
+            log.debug("Injection enricher MBean already registered for ", contextPath);
+        } catch (JMException e) {
+            log.warn(e, "Unable to register the injection enricher MBean");
+        }
+    }
+
+    /**
+     * Unregisters the metrics MBean of a web application, so that the MBean server does not keep its class loader, and
+     * forgets the metrics of the current deployment.
+     *
+     * @param contextPath the web application context path
+     */
+    public void unregister(String contextPath) {
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(getObjectName(contextPath));
+        } catch (InstanceNotFoundException e) {
+            // no-op, metrics were not enabled
+        } catch (JMException e) {
+            log.warn(e, "Unable to unregister the injection enricher MBean");
+        }
+
+        ClassLoader classLoader = deployment.get();
+        synchronized (instances) {
+            if (instances.get(classLoader) == this) {
+                instances.remove(classLoader);
+            }
+        }
+        if (lastInstance == this) {
+            lastInstance = null;
+        }
+    }
+
+    /**
+     * Records the injection of an ActionBean.
+     *
+     * @param beanClass the ActionBean class
+     * @param nanos the time spent injecting it, in nanoseconds
+     */
+    public void recordInjection(Class<?> beanClass, long nanos) {
+        if (!enabled) {
+            return;
+        }
+
+        LatencyHistogram histogram = injectionHistograms.get(beanClass.getName());
+        if (histogram == null) {
+            histogram = new LatencyHistogram();
+            LatencyHistogram previous = injectionHistograms.putIfAbsent(beanClass.getName(), histogram);
+            if (previous != null) {
+                histogram = previous;
+            }
+        }
+
+        histogram.record(nanos);
+    }
+
+    /**
+     * Records the JNDI lookup of a @Resource.
+     *
+     * @param success {@code false} if the lookup failed with a {@code NamingException}
+     */
+    public void recordResourceLookup(boolean success) {
+        if (enabled) {
+            resourceLookups.increment();
+            if (!success) {
+                resourceLookupFailures.increment();
+            }
+        }
+    }
+
+    /**
+     * Records the JNDI lookup of an @EJB under a known name: its lookup or mapped name, or the name found by an earlier
+     * probe.
+     *
+     * @param success {@code false} if the lookup failed with a {@code NamingException}
+     */
+    public void recordEJBLookup(boolean success) {
+        if (enabled) {
+            ejbLookups.increment();
+            if (!success) {
+                ejbLookupFailures.increment();
+            }
+        }
+    }
+
+    /**
+     * Records the JNDI lookup of one of the candidate names probed for an @EJB.
+     *
+     * @param found {@code false} if the EJB is not bound under the candidate name
+     */
+    public void recordEJBProbe(boolean found) {
+        if (enabled) {
+            ejbProbes.increment();
+            if (!found) {
+                ejbProbeMisses.increment();
+            }
+        }
+    }
+
+    /**
+     * Records a CDI BeanManager JNDI lookup.
+     */
+    public void recordBeanManagerLookup() {
+        if (enabled) {
+            beanManagerLookups.increment();
+        }
+    }
+
+    @Override
+    public Map<String, InjectionStatistics> getInjectionStatistics() {
+        Map<String, InjectionStatistics> statistics = new TreeMap<String, InjectionStatistics>();
+
+        for (Map.Entry<String, LatencyHistogram> entry : injectionHistograms.entrySet()) {
+            statistics.put(entry.getKey(), entry.getValue().getStatistics());
+        }
+
+        return statistics;
+    }
+
+    @Override
+    public long getResourceLookupCount() {
+        return resourceLookups.sum();
+    }
+
+    @Override
+    public long getResourceLookupFailureCount() {
+        return resourceLookupFailures.sum();
+    }
+
+    @Override
+    public long getEJBLookupCount() {
+        return ejbLookups.sum();
+    }
+
+    @Override
+    public long getEJBLookupFailureCount() {
+        return ejbLookupFailures.sum();
+    }
+
+    @Override
+    public long getEJBProbeCount() {
+        return ejbProbes.sum();
+    }
+
+    @Override
+    public long getEJBProbeMissCount() {
+        return ejbProbeMisses.sum();
+    }
+
+    @Override
+    public long getBeanManagerLookupCount() {
+        return beanManagerLookups.sum();
+    }
+
+    @Override
+    public Map<String, CacheStatistics> getCacheStatistics() {
+        Map<String, CacheStatistics> statistics = new TreeMap<String, CacheStatistics>();
+
+        for (Map.Entry<String, CacheCounter> entry : cacheCounters.entrySet()) {
+            LongAdder[] counts = cacheCounts.get(entry.getKey());
+            statistics.put(entry.getKey(), new CacheStatistics(entry.getValue().cache.size(),
+                    counts == null ? 0 : counts[0].sum(), counts == null ? 0 : counts[1].sum()));
+        }
+
+        return statistics;
+    }
+
+    @Override
+    public void reset() {
+        injectionHistograms.clear();
+        cacheCounts.clear();
+        resourceLookups.reset();
+        resourceLookupFailures.reset();
+        ejbLookups.reset();
+        ejbLookupFailures.reset();
+        ejbProbes.reset();
+        ejbProbeMisses.reset();
+        beanManagerLookups.reset();
+    }
+
+    /**
+     * Gets the hit and miss counters of a cache.
+     *
+     * @param name the cache name
+     * @return the hit and miss counters
+     */
+    private LongAdder[] getCacheCounts(String name) {
+        LongAdder[] counts = cacheCounts.get(name);
+        if (counts == null) {
+            counts = new LongAdder[] { new LongAdder(), new LongAdder() };
+            LongAdder[] previous = cacheCounts.putIfAbsent(name, counts);
+            if (previous != null) {
+                counts = previous;
+            }
+        }
+
+        return counts;
+    }
+
+    private static ObjectName getObjectName(String contextPath) throws JMException {
+        return new ObjectName("com.samaxes.stripes:type=InjectionEnricher,context=" + ObjectName.quote(contextPath));
+    }
+
+    /**
+     * Hit and miss counters of a class metadata cache, recorded in the metrics of the current deployment.
+     */
+    public static final class CacheCounter {
+
+        private final String name;
+
+        private final Map<?, ?> cache;
+
+        CacheCounter(String name, Map<?, ?> cache) {
+            this.name = name;
+            this.cache = cache;
+        }
+
+        /**
+         * Records a cache hit.
+         */
+        public void hit() {
+            InjectionMetrics metrics = getInstance();
+            if (metrics.enabled) {
+                metrics.getCacheCounts(name)[0].increment();
+            }
+        }
+
+        /**
+         * Records a cache miss.
+         */
+        public void miss() {
+            InjectionMetrics metrics = getInstance();
+            if (metrics.enabled) {
+                metrics.getCacheCounts(name)[1].increment();
+            }
+        }
+    }
+
+    /**
+     * Snapshot of the statistics of a class metadata cache.
+     */
+    public static final class CacheStatistics {
+
+        private final int size;
+
+        private final long hits;
+
+        private final long misses;
+
+        CacheStatistics(int size, long hits, long misses) {
+            this.size = size;
+            this.hits = hits;
+            this.misses = misses;
+        }
+
+        public int getSize() {
+            return size;
+        }
+
+        public long getHits() {
+            return hits;
+        }
+
+        public long getMisses() {
+            return misses;
+        }
+
+        public double getHitRatio() {
+            long total = hits + misses;
+            return total == 0 ? 0 : (double) hits / total;
+        }
+    }
+
+    /**
+     * Snapshot of the injections of an ActionBean class. Latencies are in microseconds, percentiles are the upper
+     * bound of the power of two bucket they fall in, capped by the maximum latency.
+     */
+    public static final class InjectionStatistics {
+
+        private final long count;
+
+        private final long meanMicros;
+
+        private final long p50Micros;
+
+        private final long p90Micros;
+
+        private final long p99Micros;
+
+        private final long maxMicros;
+
+        InjectionStatistics(long count, long meanMicros, long p50Micros, long p90Micros, long p99Micros,
+                long maxMicros) {
+            this.count = count;
+            this.meanMicros = meanMicros;
+            this.p50Micros = p50Micros;
+            this.p90Micros = p90Micros;
+            this.p99Micros = p99Micros;
+            this.maxMicros = maxMicros;
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        public long getMeanMicros() {
+            return meanMicros;
+        }
+
+        public long getP50Micros() {
+            return p50Micros;
+        }
+
+        public long getP90Micros() {
+            return p90Micros;
+        }
+
+        public long getP99Micros() {
+            return p99Micros;
+        }
+
+        public long getMaxMicros() {
+            return maxMicros;
+        }
+    }
+
+    /**
+     * Latency histogram with power of two microsecond buckets, bucket {@code i} counting latencies below {@code 2^i}
+     * microseconds.
+     */
+    private static final class LatencyHistogram {
+
+        private static final int BUCKETS = 40;
+
+        private final LongAdder[] buckets = new LongAdder[BUCKETS];
+
+        private final LongAdder totalNanos = new LongAdder();
+
+        private final AtomicLong maxNanos = new AtomicLong();
+
+        LatencyHistogram() {
+            for (int i = 0; i < BUCKETS; i++) {
+                buckets[i] = new LongAdder();
+            }
+        }
+
+        void record(long nanos) {
+            long micros = TimeUnit.NANOSECONDS.toMicros(nanos);
+            int bucket = Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(micros));
+            buckets[bucket].increment();
+            totalNanos.add(nanos);
+
+            long max = maxNanos.get();
+            while (nanos > max && !maxNanos.compareAndSet(max, nanos)) {
+                max = maxNanos.get();
+            }
+        }
+
+        InjectionStatistics getStatistics() {
+            long[] counts = new long[BUCKETS];
+            long count = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                counts[i] = buckets[i].sum();
+                count += counts[i];
+            }
+
+            long meanMicros = count == 0 ? 0 : TimeUnit.NANOSECONDS.toMicros(totalNanos.sum() / count);
+            long maxMicros = TimeUnit.NANOSECONDS.toMicros(maxNanos.get());
+            return new InjectionStatistics(count, meanMicros, Math.min(percentile(counts, count, 0.5), maxMicros),
+                    Math.min(percentile(counts, count, 0.9), maxMicros),
+                    Math.min(percentile(counts, count, 0.99), maxMicros), maxMicros);
+        }
+
+        private static long percentile(long[] counts, long count, double percentile) {
+            long threshold = (long) Math.ceil(count * percentile);
+            long cumulative = 0;
+
+            for (int i = 0; i < BUCKETS; i++) {
+                cumulative += counts[i];
+                if (cumulative >= threshold && cumulative > 0) {
+                    return 1L << i;
+                }
+            }
+
+            return 0;
+        }
+    }
+}
@@ -0,0 +1,98 @@
+/*
+ * $Id$
+ *
+ * Copyright 2011 samaxes.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.samaxes.stripes.enricher;
+
+import java.util.Map;
+
+/**
+ * Management interface of the injection enricher metrics, see {@link InjectionMetrics}.
+ *
+ * @author Samuel Santos
+ * @version $Revision$
+ */
+public interface InjectionMetricsMXBean {
+
+    /**
+     * Gets the number of injections and their latency, by ActionBean class name.
+     *
+     * @return the injection statistics by class name
+     */
+    Map<String, InjectionMetrics.InjectionStatistics> getInjectionStatistics();
+
+    /**
+     * Gets the number of JNDI lookups performed by the @Resource enricher.
+     *
+     * @return the number of @Resource lookups
+     */
+    long getResourceLookupCount();
+
+    /**
+     * Gets the number of @Resource JNDI lookups which failed with a {@code NamingException}.
+     *
+     * @return the number of failed @Resource lookups
+     */
+    long getResourceLookupFailureCount();
+
+    /**
+     * Gets the number of @EJB JNDI lookups under a known name: the lookup or mapped name of the reference, or the name
+     * found by an earlier probe.
+     *
+     * @return the number of @EJB lookups
+     */
+    long getEJBLookupCount();
+
+    /**
+     * Gets the number of @EJB JNDI lookups under a known name which failed with a {@code NamingException}.
+     *
+     * @return the number of failed @EJB lookups
+     */
+    long getEJBLookupFailureCount();
+
+    /**
+     * Gets the number of candidate names looked up while probing the JNDI name of an @EJB.
+     *
+     * @return the number of probed names
+     */
+    long getEJBProbeCount();
+
+    /**
+     * Gets the number of probed candidate names under which the @EJB was not bound.
+     *
+     * @return the number of probe misses
+     */
+    long getEJBProbeMissCount();
+
+    /**
+     * Gets the number of CDI BeanManager JNDI lookups.
+     *
+     * @return the number of BeanManager lookups
+     */
+    long getBeanManagerLookupCount();
+
+    /**
+     * Gets the size and hit ratio of the class metadata caches, by cache name.
+     *
+     * @return the cache statistics by cache name
+     */
+    Map<String, InjectionMetrics.CacheStatistics> getCacheStatistics();
+
+    /**
+     * Resets all the counters. Cache sizes are not affected.
+     */
+    void reset();
+}
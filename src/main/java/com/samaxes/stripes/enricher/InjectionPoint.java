@@ -0,0 +1,197 @@
+/*
+ * $Id$
+ *
+ * Copyright 2011 samaxes.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.samaxes.stripes.enricher;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Field;
+import java.lang.reflect.Member;
+import java.lang.reflect.Method;
+
+/**
+ * <p>
+ * An annotated field or single argument setter method on which a value must be injected. Instances are created once per
+ * class, when the class is first examined, and are immutable afterwards so they can be shared by concurrent requests.
+ * </p>
+ * <p>
+ * Values are read and written through {@link MethodHandle}s linked when the injection point is created, which avoids
+ * the access checks, boxing and argument arrays of {@link Field#set(Object, Object)} and
+ * {@link Method#invoke(Object, Object...)} on every request. If a {@link BeanInjector} was generated for the class, it
+ * is used instead.
+ * </p>
+ *
+ * @author Samuel Santos
+ * @version $Revision$
+ */
+public abstract class InjectionPoint {
+
+    private static final MethodType GETTER_TYPE = MethodType.methodType(Object.class, Object.class);
+
+    private static final MethodType SETTER_TYPE = MethodType.methodType(void.class, Object.class, Object.class);
+
+    private final Field field;
+
+    private final Method method;
+
+    private final Class<?> type;
+
+    private final MethodHandle getter;
+
+    private final MethodHandle setter;
+
+    private BeanInjector injector;
+
+    private int injectorIndex;
+
+    /**
+     * Creates an injection point for an annotated field. The field must already be accessible.
+     *
+     * @param field the annotated field
+     */
+    protected InjectionPoint(Field field) {
+        this.field = field;
+        this.method = null;
+        this.type = field.getType();
+        try {
+            MethodHandles.Lookup lookup = MethodHandles.lookup();
+            this.getter = lookup.unreflectGetter(field).asType(GETTER_TYPE);
+            this.setter = lookup.unreflectSetter(field).asType(SETTER_TYPE);
+        } catch (IllegalAccessException e) {
+            throw new IllegalStateException("Field " + this + " is not accessible", e);
+        }
+    }
+
+    /**
+     * Creates an injection point for an annotated setter method. The method must already be accessible.
+     *
+     * @param method the annotated method
+     */
+    protected InjectionPoint(Method method) {
+        this.field = null;
+        this.method = method;
+        this.type = method.getParameterTypes()[0];
+        this.getter = null;
+        try {
+            this.setter = MethodHandles.lookup().unreflect(method).asType(SETTER_TYPE);
+        } catch (IllegalAccessException e) {
+            throw new IllegalStateException("Method " + this + " is not accessible", e);
+        }
+    }
+
+    /**
+     * Whether this injection point is a field or a setter method.
+     *
+     * @return {@code true} if this injection point is a field
+     */
+    public boolean isField() {
+        return field != null;
+    }
+
+    /**
+     * Gets the type of the value to inject, i.e. the field type or the setter method parameter type.
+     *
+     * @return the injected value type
+     */
+    public Class<?> getType() {
+        return type;
+    }
+
+    /**
+     * Gets the annotated field or method.
+     *
+     * @return the annotated member
+     */
+    public Member getMember() {
+        return field != null ? field : method;
+    }
+
+    /**
+     * Reads the current value of a field injection point.
+     *
+     * @param target the object holding the field
+     * @return the current field value
+     * @throws Exception if the field value could not be read
+     */
+    public Object getValue(Object target) throws Exception {
+        if (injector != null) {
+            return injector.get(target, injectorIndex);
+        }
+
+        try {
+            return (Object) getter.invokeExact(target);
+        } catch (Exception e) {
+            throw e;
+        } catch (Error e) {
+            throw e;
+        } catch (Throwable t) {
+            throw new IllegalStateException(t);
+        }
+    }
+
+    /**
+     * Injects a value by setting the field or invoking the setter method.
+     *
+     * @param target the object on which the value is injected
+     * @param value the value to inject
+     * @throws Exception if the value could not be injected
+     */
+    public void inject(Object target, Object value) throws Exception {
+        if (injector != null) {
+            injector.set(target, injectorIndex, value);
+            return;
+        }
+
+        try {
+            setter.invokeExact(target, value);
+        } catch (Exception e) {
+            throw e;
+        } catch (Error e) {
+            throw e;
+        } catch (Throwable t) {
+            throw new IllegalStateException(t);
+        }
+    }
+
+    /**
+     * Uses a generated injector instead of the reflective accessors. Must be called before the injection point is
+     * shared with other threads.
+     *
+     * @param injector the generated injector of the class
+     * @param index the index of this injection point in the injector
+     */
+    void useInjector(BeanInjector injector, int index) {
+        this.injector = injector;
+        this.injectorIndex = index;
+    }
+
+    /**
+     * Gets the generated injector used instead of the reflective accessors.
+     *
+     * @return the generated injector, or {@code null} if the reflective accessors are used
+     */
+    BeanInjector getInjector() {
+        return injector;
+    }
+
+    @Override
+    public String toString() {
+        Member member = getMember();
+        return member.getDeclaringClass().getName() + "." + member.getName();
+    }
+}
@@ -0,0 +1,191 @@
+/*
+ * $Id$
+ *
+ * Copyright 2011 samaxes.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.samaxes.stripes.enricher;
+
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.enterprise.context.spi.CreationalContext;
+
+import net.sourceforge.stripes.action.SessionScope;
+
+/**
+ * <p>
+ * Remembers which injection points of {@link SessionScope} ActionBeans are already satisfied. Stripes reuses session
+ * scoped ActionBeans across requests, so their @EJB and @Resource injection points are only injected on the first
+ * request that uses them, and CDI injection is only performed once.
+ * </p>
+ * <p>
+ * States are weakly keyed by ActionBean identity, so they go away with the session holding the ActionBean. The CDI
+ * creational context of a session scoped ActionBean is kept by its state until the session is destroyed, see
+ * {@link #discard(Object)}.
+ * </p>
+ *
+ * @author Samuel Santos
+ * @version $Revision$
+ */
+public final class InjectionStateRegistry {
+
+    private static final InjectionStateRegistry instance = new InjectionStateRegistry();
+
+    private static final ClassValue<Boolean> sessionScoped = new ClassValue<Boolean>() {
+        @Override
+        protected Boolean computeValue(Class<?> type) {
+            return type.isAnnotationPresent(SessionScope.class);
+        }
+    };
+
+    private final Map<InstanceReference, InjectionState> states =
+            new ConcurrentHashMap<InstanceReference, InjectionState>();
+
+    private final ReferenceQueue<Object> queue = new ReferenceQueue<Object>();
+
+    private InjectionStateRegistry() {
+    }
+
+    /**
+     * Gets the registry used by the enrichers.
+     *
+     * @return the shared injection state registry
+     */
+    public static InjectionStateRegistry getInstance() {
+        return instance;
+    }
+
+    /**
+     * Gets the injection state of an ActionBean, creating it on first use. Only session scoped ActionBeans have a
+     * state, since other ActionBeans are only injected once anyway.
+     *
+     * @param bean the ActionBean
+     * @return the ActionBean injection state, or {@code null} if it is not session scoped
+     */
+    public InjectionState get(Object bean) {
+        if (!sessionScoped.get(bean.getClass())) {
+            return null;
+        }
+
+        expunge();
+        InjectionState state = states.get(new InstanceReference(bean, null));
+
+        if (state == null) {
+            state = new InjectionState();
+            InjectionState previous = states.putIfAbsent(new InstanceReference(bean, queue), state);
+            if (previous != null) {
+                state = previous;
+            }
+        }
+
+        return state;
+    }
+
+    /**
+     * Forgets the injection state of an ActionBean and releases its CDI creational context, destroying the
+     * {@code @Dependent} objects injected into it. Must be called when the session holding the ActionBean is
+     * destroyed.
+     *
+     * @param bean the ActionBean
+     */
+    public void discard(Object bean) {
+        InjectionState state = states.remove(new InstanceReference(bean, null));
+
+        if (state != null) {
+            state.release();
+        }
+    }
+
+    /**
+     * Gets the number of ActionBeans with an injection state.
+     *
+     * @return the number of tracked ActionBeans
+     */
+    public int size() {
+        expunge();
+        return states.size();
+    }
+
+    private void expunge() {
+        for (Reference<?> reference = queue.poll(); reference != null; reference = queue.poll()) {
+            states.remove(reference);
+        }
+    }
+
+    /**
+     * Injection points already satisfied on a session scoped ActionBean.
+     */
+    public static final class InjectionState {
+
+        private final Set<InjectionPoint> injectionPoints = Collections
+                .newSetFromMap(new ConcurrentHashMap<InjectionPoint, Boolean>());
+
+        private CreationalContext<Object> creationalContext;
+
+        InjectionState() {
+        }
+
+        /**
+         * Whether an injection point was already injected.
+         *
+         * @param injectionPoint the injection point
+         * @return {@code true} if the injection point is satisfied
+         */
+        public boolean isInjected(InjectionPoint injectionPoint) {
+            return injectionPoints.contains(injectionPoint);
+        }
+
+        /**
+         * Marks an injection point as injected.
+         *
+         * @param injectionPoint the injection point
+         */
+        public void setInjected(InjectionPoint injectionPoint) {
+            injectionPoints.add(injectionPoint);
+        }
+
+        /**
+         * Whether CDI injection was already performed.
+         *
+         * @return {@code true} if the ActionBean went through CDI injection
+         */
+        public synchronized boolean isCdiInjected() {
+            return creationalContext != null;
+        }
+
+        /**
+         * Marks CDI injection as performed, keeping the creational context of the ActionBean until it is discarded.
+         *
+         * @param creationalContext the creational context of the injection
+         */
+        synchronized void setCdiInjected(CreationalContext<Object> creationalContext) {
+            if (this.creationalContext != null) {
+                this.creationalContext.release();
+            }
+            this.creationalContext = creationalContext;
+        }
+
+        synchronized void release() {
+            if (creationalContext != null) {
+                creationalContext.release();
+                creationalContext = null;
+            }
+        }
+    }
+}
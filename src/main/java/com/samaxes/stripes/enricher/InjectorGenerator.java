@@ -0,0 +1,452 @@
+/*
+ * $Id$
+ *
+ * Copyright 2011 samaxes.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.samaxes.stripes.enricher;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.reflect.Array;
+import java.lang.reflect.Field;
+import java.lang.reflect.Member;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import net.sourceforge.stripes.util.Log;
+
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.Label;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.Type;
+
+/**
+ * <p>
+ * Generates, for each class, a small {@link BeanInjector} subclass that writes injected values into the fields or calls
+ * the setter methods directly, so injection performs no reflection at all.
+ * </p>
+ * <p>
+ * Generation is disabled by default and requires ASM on the classpath. One injector is generated for the injection
+ * points declared by each class of the hierarchy, and defined next to that class, so it can access them:
+ * </p>
+ * <ul>
+ * <li>on Java 15 and later, as a hidden class nestmate of the declaring class, which can access all its members,
+ * including private ones;</li>
+ * <li>on Java 9 to 14, in the package of the declaring class through
+ * {@code MethodHandles.privateLookupIn(Class, Lookup).defineClass(byte[])}, which can access all but private
+ * members;</li>
+ * <li>on Java 8, in a class loader of its own, child of the class loader of the declaring class, which can only access
+ * public members of public classes.</li>
+ * </ul>
+ * <p>
+ * Final fields, and members whose type the injector cannot access, keep using their reflective accessor. If generation
+ * is not possible at all, every injection point of the class falls back to the reflective path.
+ * </p>
+ *
+ * @author Samuel Santos
+ * @version $Revision$
+ */
+public final class InjectorGenerator implements Opcodes {
+
+    private static final Log log = Log.getInstance(InjectorGenerator.class);
+
+    private static final InjectorGenerator instance = new InjectorGenerator();
+
+    private static final String INJECTOR_SUFFIX = "$$StripesInjector";
+
+    private static final String BEAN_INJECTOR = Type.getInternalName(BeanInjector.class);
+
+    /** Injectors can access the private members of the class declaring the injection points. */
+    private static final int PRIVATE_ACCESS = 2;
+
+    /** Injectors can access the non private members of the package of the class declaring the injection points. */
+    private static final int PACKAGE_ACCESS = 1;
+
+    /** Injectors can only access public members of public classes. */
+    private static final int PUBLIC_ACCESS = 0;
+
+    /** {@code MethodHandles.privateLookupIn(Class, Lookup)}, Java 9 and later. */
+    private static final Method privateLookupIn;
+
+    /** {@code Lookup.defineClass(byte[])}, Java 9 and later. */
+    private static final Method defineClass;
+
+    /** {@code Lookup.defineHiddenClass(byte[], boolean, ClassOption...)}, Java 15 and later. */
+    private static final Method defineHiddenClass;
+
+    /** {@code ClassOption.NESTMATE} option array. */
+    private static final Object nestmateOption;
+
+    private static final int accessLevel;
+
+    static {
+        Method privateLookupInMethod = null;
+        Method defineClassMethod = null;
+        Method defineHiddenClassMethod = null;
+        Object nestmate = null;
+        int level = PUBLIC_ACCESS;
+
+        try {
+            privateLookupInMethod = MethodHandles.class.getMethod("privateLookupIn", Class.class,
+                    MethodHandles.Lookup.class);
+            defineClassMethod = MethodHandles.Lookup.class.getMethod("defineClass", byte[].class);
+            level = PACKAGE_ACCESS;
+
+            Class<?> classOption = Class.forName("java.lang.invoke.MethodHandles$Lookup$ClassOption");
+            defineHiddenClassMethod = MethodHandles.Lookup.class.getMethod("defineHiddenClass", byte[].class,
+                    boolean.class, Array.newInstance(classOption, 0).getClass());
+            nestmate = Array.newInstance(classOption, 1);
+            Array.set(nestmate, 0, classOption.getField("NESTMATE").get(null));
+            level = PRIVATE_ACCESS;
+        } catch (Exception e) {
+            // older Java version
+        }
+
+        privateLookupIn = privateLookupInMethod;
+        defineClass = defineClassMethod;
+        defineHiddenClass = defineHiddenClassMethod;
+        nestmateOption = nestmate;
+        accessLevel = level;
+    }
+
+    private final AtomicInteger injectorCount = new AtomicInteger();
+
+    private volatile boolean enabled;
+
+    private InjectorGenerator() {
+    }
+
+    /**
+     * Gets the shared injector generator.
+     *
+     * @return the shared injector generator
+     */
+    public static InjectorGenerator getInstance() {
+        return instance;
+    }
+
+    /**
+     * Whether injectors are generated.
+     *
+     * @return {@code true} if injectors are generated
+     */
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Enables or disables injector generation. Only classes examined afterwards are affected.
+     *
+     * @param enabled {@code true} to generate injectors
+     */
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    /**
+     * Generates the injectors of a class and binds them to the injection points they can access. Does nothing if
+     * generation is disabled, if none of the injection points is accessible or if the injectors cannot be generated.
+     *
+     * @param clazz the class whose instances are injected
+     * @param injectionPoints the injection points of the class
+     */
+    public void generate(Class<?> clazz, List<? extends InjectionPoint> injectionPoints) {
+        if (!enabled) {
+            return;
+        }
+
+        Map<Class<?>, List<InjectionPoint>> accessiblePoints = new LinkedHashMap<Class<?>, List<InjectionPoint>>();
+        for (InjectionPoint injectionPoint : injectionPoints) {
+            if (isAccessible(injectionPoint.getMember(), injectionPoint.getType())) {
+                Class<?> declaringClass = injectionPoint.getMember().getDeclaringClass();
+                List<InjectionPoint> declaredPoints = accessiblePoints.get(declaringClass);
+                if (declaredPoints == null) {
+                    declaredPoints = new ArrayList<InjectionPoint>();
+                    accessiblePoints.put(declaringClass, declaredPoints);
+                }
+                declaredPoints.add(injectionPoint);
+            }
+        }
+        if (accessiblePoints.isEmpty()) {
+            log.debug("No injection point of ", clazz.getName(), " is accessible, using reflective injection");
+            return;
+        }
+
+        int generatedPoints = 0;
+        for (Map.Entry<Class<?>, List<InjectionPoint>> entry : accessiblePoints.entrySet()) {
+            List<InjectionPoint> declaredPoints = entry.getValue();
+            BeanInjector injector;
+            try {
+                injector = defineInjector(entry.getKey(), declaredPoints);
+            } catch (Throwable t) {
+                // e.g. ASM not on the classpath, security manager or verify errors
+                log.warn(t, "Cannot generate injector for ", entry.getKey().getName(), ", using reflective injection");
+                continue;
+            }
+
+            for (int i = 0; i < declaredPoints.size(); i++) {
+                declaredPoints.get(i).useInjector(injector, i);
+            }
+            generatedPoints += declaredPoints.size();
+        }
+        log.debug("Generated injectors for ", generatedPoints, " of ", injectionPoints.size(),
+                " injection points of ", clazz.getName());
+    }
+
+    /**
+     * Generates and instantiates the injector of the injection points declared by a class.
+     *
+     * @param declaringClass the class declaring the injection points
+     * @param injectionPoints the injection points declared by the class
+     * @return the injector
+     * @throws Exception if the injector cannot be defined
+     */
+    private BeanInjector defineInjector(Class<?> declaringClass, List<InjectionPoint> injectionPoints)
+            throws Exception {
+        String className = declaringClass.getName() + INJECTOR_SUFFIX + injectorCount.incrementAndGet();
+        byte[] bytecode = generateBytecode(className.replace('.', '/'), injectionPoints);
+        Class<?> injectorClass;
+
+        if (accessLevel == PUBLIC_ACCESS) {
+            injectorClass = new InjectorClassLoader(declaringClass.getClassLoader()).define(className, bytecode);
+        } else {
+            Object lookup = privateLookupIn.invoke(null, declaringClass, MethodHandles.lookup());
+            if (accessLevel == PRIVATE_ACCESS) {
+                lookup = defineHiddenClass.invoke(lookup, bytecode, true, nestmateOption);
+                injectorClass = ((MethodHandles.Lookup) lookup).lookupClass();
+            } else {
+                injectorClass = (Class<?>) defineClass.invoke(lookup, (Object) bytecode);
+            }
+        }
+
+        return (BeanInjector) injectorClass.getDeclaredConstructor().newInstance();
+    }
+
+    /**
+     * Whether the injector of the class declaring a member can access it directly.
+     *
+     * @param member the field or method
+     * @param type the injected value type
+     * @return {@code true} if the member and the injected type are accessible, and the member is not a final field
+     */
+    private static boolean isAccessible(Member member, Class<?> type) {
+        int modifiers = member.getModifiers();
+        Class<?> declaringClass = member.getDeclaringClass();
+
+        if (Modifier.isStatic(modifiers) || (member instanceof Field && Modifier.isFinal(modifiers))
+                || declaringClass.isInterface()) {
+            return false;
+        }
+
+        if (accessLevel == PUBLIC_ACCESS) {
+            return Modifier.isPublic(declaringClass.getModifiers()) && Modifier.isPublic(modifiers)
+                    && isAccessible(type, null);
+        } else if (accessLevel == PACKAGE_ACCESS && Modifier.isPrivate(modifiers)) {
+            return false;
+        }
+
+        return isAccessible(type, declaringClass);
+    }
+
+    /**
+     * Whether an injector defined in the package of a class can access a type.
+     *
+     * @param type the type
+     * @param packageMember the class next to which the injector is defined, {@code null} if it is defined elsewhere
+     * @return {@code true} if the type is public or in the same runtime package as the class
+     */
+    private static boolean isAccessible(Class<?> type, Class<?> packageMember) {
+        while (type.isArray()) {
+            type = type.getComponentType();
+        }
+        if (type.isPrimitive() || Modifier.isPublic(type.getModifiers())) {
+            return true;
+        }
+
+        return packageMember != null && type.getClassLoader() == packageMember.getClassLoader()
+                && getPackageName(type).equals(getPackageName(packageMember));
+    }
+
+    private static String getPackageName(Class<?> clazz) {
+        String name = clazz.getName();
+        int index = name.lastIndexOf('.');
+        return index == -1 ? "" : name.substring(0, index);
+    }
+
+    private static byte[] generateBytecode(String internalName, List<InjectionPoint> injectionPoints) {
+        ClassWriter cw = new ClassWriter(ClassWriter.COMPUTE_FRAMES | ClassWriter.COMPUTE_MAXS) {
+            @Override
+            protected String getCommonSuperClass(String type1, String type2) {
+                // Every branch returns, frames never merge values of different types
+                return "java/lang/Object";
+            }
+        };
+        cw.visit(V1_7, ACC_PUBLIC | ACC_FINAL | ACC_SUPER | ACC_SYNTHETIC, internalName, null, BEAN_INJECTOR, null);
+
+        MethodVisitor mv = cw.visitMethod(ACC_PUBLIC, "<init>", "()V", null, null);
+        mv.visitCode();
+        mv.visitVarInsn(ALOAD, 0);
+        mv.visitMethodInsn(INVOKESPECIAL, BEAN_INJECTOR, "<init>", "()V", false);
+        mv.visitInsn(RETURN);
+        mv.visitMaxs(0, 0);
+        mv.visitEnd();
+
+        generateGet(cw, injectionPoints);
+        generateSet(cw, injectionPoints);
+
+        cw.visitEnd();
+        return cw.toByteArray();
+    }
+
+    private static void generateGet(ClassWriter cw, List<InjectionPoint> injectionPoints) {
+        MethodVisitor mv = cw.visitMethod(ACC_PUBLIC, "get", "(Ljava/lang/Object;I)Ljava/lang/Object;", null, null);
+        mv.visitCode();
+        Label defaultLabel = new Label();
+        Label[] labels = newLabels(injectionPoints.size());
+        mv.visitVarInsn(ILOAD, 2);
+        mv.visitTableSwitchInsn(0, labels.length - 1, defaultLabel, labels);
+
+        for (int i = 0; i < labels.length; i++) {
+            mv.visitLabel(labels[i]);
+            Member member = injectionPoints.get(i).getMember();
+            if (member instanceof Field) {
+                Field field = (Field) member;
+                mv.visitVarInsn(ALOAD, 1);
+                mv.visitTypeInsn(CHECKCAST, Type.getInternalName(field.getDeclaringClass()));
+                mv.visitFieldInsn(GETFIELD, Type.getInternalName(field.getDeclaringClass()), field.getName(),
+                        Type.getDescriptor(field.getType()));
+                box(mv, field.getType());
+                mv.visitInsn(ARETURN);
+            } else {
+                mv.visitJumpInsn(GOTO, defaultLabel);
+            }
+        }
+
+        mv.visitLabel(defaultLabel);
+        throwIllegalArgument(mv);
+        mv.visitMaxs(0, 0);
+        mv.visitEnd();
+    }
+
+    private static void generateSet(ClassWriter cw, List<InjectionPoint> injectionPoints) {
+        MethodVisitor mv = cw.visitMethod(ACC_PUBLIC, "set", "(Ljava/lang/Object;ILjava/lang/Object;)V", null, null);
+        mv.visitCode();
+        Label defaultLabel = new Label();
+        Label[] labels = newLabels(injectionPoints.size());
+        mv.visitVarInsn(ILOAD, 2);
+        mv.visitTableSwitchInsn(0, labels.length - 1, defaultLabel, labels);
+
+        for (int i = 0; i < labels.length; i++) {
+            mv.visitLabel(labels[i]);
+            Member member = injectionPoints.get(i).getMember();
+            String owner = Type.getInternalName(member.getDeclaringClass());
+            Class<?> type = injectionPoints.get(i).getType();
+            mv.visitVarInsn(ALOAD, 1);
+            mv.visitTypeInsn(CHECKCAST, owner);
+            mv.visitVarInsn(ALOAD, 3);
+            unbox(mv, type);
+            if (member instanceof Field) {
+                mv.visitFieldInsn(PUTFIELD, owner, member.getName(), Type.getDescriptor(type));
+            } else {
+                Method method = (Method) member;
+                mv.visitMethodInsn(INVOKEVIRTUAL, owner, method.getName(), Type.getMethodDescriptor(method), false);
+                Class<?> returnType = method.getReturnType();
+                if (returnType == long.class || returnType == double.class) {
+                    mv.visitInsn(POP2);
+                } else if (returnType != void.class) {
+                    mv.visitInsn(POP);
+                }
+            }
+            mv.visitInsn(RETURN);
+        }
+
+        mv.visitLabel(defaultLabel);
+        throwIllegalArgument(mv);
+        mv.visitMaxs(0, 0);
+        mv.visitEnd();
+    }
+
+    private static Label[] newLabels(int size) {
+        Label[] labels = new Label[size];
+        for (int i = 0; i < size; i++) {
+            labels[i] = new Label();
+        }
+        return labels;
+    }
+
+    private static void throwIllegalArgument(MethodVisitor mv) {
+        mv.visitTypeInsn(NEW, "java/lang/IllegalArgumentException");
+        mv.visitInsn(DUP);
+        mv.visitMethodInsn(INVOKESPECIAL, "java/lang/IllegalArgumentException", "<init>", "()V", false);
+        mv.visitInsn(ATHROW);
+    }
+
+    private static void box(MethodVisitor mv, Class<?> type) {
+        if (type.isPrimitive()) {
+            Type wrapper = Type.getType(wrapperOf(type));
+            mv.visitMethodInsn(INVOKESTATIC, wrapper.getInternalName(), "valueOf",
+                    Type.getMethodDescriptor(wrapper, Type.getType(type)), false);
+        }
+    }
+
+    private static void unbox(MethodVisitor mv, Class<?> type) {
+        if (type.isPrimitive()) {
+            String wrapper = Type.getInternalName(wrapperOf(type));
+            mv.visitTypeInsn(CHECKCAST, wrapper);
+            mv.visitMethodInsn(INVOKEVIRTUAL, wrapper, type.getName() + "Value", "()" + Type.getDescriptor(type),
+                    false);
+        } else {
+            mv.visitTypeInsn(CHECKCAST, Type.getInternalName(type));
+        }
+    }
+
+    private static Class<?> wrapperOf(Class<?> type) {
+        if (type == boolean.class) {
+            return Boolean.class;
+        } else if (type == byte.class) {
+            return Byte.class;
+        } else if (type == char.class) {
+            return Character.class;
+        } else if (type == short.class) {
+            return Short.class;
+        } else if (type == int.class) {
+            return Integer.class;
+        } else if (type == long.class) {
+            return Long.class;
+        } else if (type == float.class) {
+            return Float.class;
+        }
+        return Double.class;
+    }
+
+    /**
+     * Class loader defining the injector of one class.
+     */
+    private static final class InjectorClassLoader extends ClassLoader {
+
+        InjectorClassLoader(ClassLoader parent) {
+            super(parent);
+        }
+
+        Class<?> define(String name, byte[] bytecode) {
+            return defineClass(name, bytecode, 0, bytecode.length);
+        }
+    }
+}
@@ -0,0 +1,57 @@
+/*
+ * $Id$
+ *
+ * Copyright 2011 samaxes.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.samaxes.stripes.enricher;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+
+/**
+ * Weak reference identifying an object by identity rather than equality, used as the key of maps that must not keep
+ * ActionBeans alive. A reference created without a queue is only meant for lookups.
+ *
+ * @author Samuel Santos
+ * @version $Revision$
+ */
+final class InstanceReference extends WeakReference<Object> {
+
+    private final int hash;
+
+    InstanceReference(Object instance, ReferenceQueue<Object> queue) {
+        super(instance, queue);
+        this.hash = System.identityHashCode(instance);
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (obj == this) {
+            return true;
+        }
+
+        if (!(obj instanceof InstanceReference)) {
+            return false;
+        }
+
+        Object instance = get();
+        return instance != null && instance == ((InstanceReference) obj).get();
+    }
+
+    @Override
+    public int hashCode() {
+        return hash;
+    }
+}
@@ -0,0 +1,64 @@
+/*
+ * $Id$
+ *
+ * Copyright 2011 samaxes.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.samaxes.stripes.enricher;
+
+/**
+ * Java Flight Recorder events of the injection enricher, used through {@link InjectionEvents}. This version is used on
+ * Java 8, which has no {@code jdk.jfr} API, and creates no event. The version compiled for Java 11 and later is in the
+ * {@code META-INF/versions/11} directory of the multi-release jar.
+ *
+ * @author Samuel Santos
+ * @version $Revision$
+ */
+final class JfrEvents {
+
+    /**
+     * Internal constructor; not to be called as this class provides static utilities only.
+     */
+    private JfrEvents() {
+        throw new UnsupportedOperationException("No instances permitted");
+    }
+
+    static Object beginInjection() {
+        return null;
+    }
+
+    static void endInjection(Object event, Class<?> beanClass, boolean success) {
+    }
+
+    static Object beginBind() {
+        return null;
+    }
+
+    static void endBind(Object event, String enricher, Class<?> beanClass, int injectionPoints, boolean success) {
+    }
+
+    static Object beginJndiLookup() {
+        return null;
+    }
+
+    static void endJndiLookup(Object event, String jndiName, boolean found) {
+    }
+
+    static Object beginCdiInject() {
+        return null;
+    }
+
+    static void endCdiInject(Object event, Class<?> beanClass, boolean success) {
+    }
+}
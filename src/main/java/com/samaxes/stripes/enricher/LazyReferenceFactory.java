@@ -0,0 +1,182 @@
+/*
+ * $Id$
+ *
+ * Copyright 2011 samaxes.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.samaxes.stripes.enricher;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.lang.reflect.Proxy;
+import java.util.concurrent.Callable;
+
+import net.sourceforge.stripes.exception.StripesRuntimeException;
+
+/**
+ * <p>
+ * Creates the lazy references injected in place of EJBs and resources. A lazy reference is a dynamic proxy of the
+ * injection point type that performs the JNDI lookup the first time one of its methods is invoked, and delegates to
+ * the looked up object afterwards. Event handlers that do not use a dependency do not pay for its lookup.
+ * </p>
+ * <p>
+ * Lazy references are disabled by default and only apply to injection points typed with a public interface. Because
+ * the lookup is deferred, a missing EJB or resource is reported by the first method invoked on the reference, wrapped
+ * in a {@link StripesRuntimeException}, instead of by the injection itself.
+ * </p>
+ *
+ * @author Samuel Santos
+ * @version $Revision$
+ */
+public final class LazyReferenceFactory {
+
+    private static final LazyReferenceFactory instance = new LazyReferenceFactory();
+
+    private volatile boolean enabled;
+
+    private LazyReferenceFactory() {
+    }
+
+    /**
+     * Gets the factory used by the EJB and resource enrichers.
+     *
+     * @return the shared lazy reference factory
+     */
+    public static LazyReferenceFactory getInstance() {
+        return instance;
+    }
+
+    /**
+     * Whether lazy references are injected.
+     *
+     * @return {@code true} if lazy references are enabled
+     */
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Enables or disables lazy references.
+     *
+     * @param enabled {@code true} to inject lazy references in interface typed injection points
+     */
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    /**
+     * Whether a lazy reference is injected in an injection point, i.e. lazy references are enabled and the injection
+     * point is typed with a public interface.
+     *
+     * @param injectionPoint the injection point
+     * @return {@code true} if the injection point receives a lazy reference
+     */
+    public boolean isLazy(InjectionPoint injectionPoint) {
+        Class<?> type = injectionPoint.getType();
+        return enabled && type.isInterface() && Modifier.isPublic(type.getModifiers());
+    }
+
+    /**
+     * Creates a lazy reference. The resolver is called at most once, with the thread context class loader of the
+     * current thread, so that the lookup is made against the deployment that created the reference.
+     *
+     * @param type the public interface implemented by the reference
+     * @param resolver looks up the referenced object
+     * @return the lazy reference
+     */
+    public Object create(Class<?> type, Callable<Object> resolver) {
+        return Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[] { type }, new LazyReferenceHandler(type,
+                resolver, Thread.currentThread().getContextClassLoader()));
+    }
+
+    /**
+     * Looks up the referenced object on the first invocation and delegates all invocations to it. {@code equals} and
+     * {@code hashCode} use the identity of the proxy and never trigger the lookup.
+     */
+    private static final class LazyReferenceHandler implements InvocationHandler {
+
+        private final Class<?> type;
+
+        private final ClassLoader classLoader;
+
+        private Callable<Object> resolver;
+
+        private volatile Object target;
+
+        LazyReferenceHandler(Class<?> type, Callable<Object> resolver, ClassLoader classLoader) {
+            this.type = type;
+            this.resolver = resolver;
+            this.classLoader = classLoader;
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            if (method.getDeclaringClass() == Object.class) {
+                if ("equals".equals(method.getName())) {
+                    return proxy == args[0];
+                } else if ("hashCode".equals(method.getName())) {
+                    return System.identityHashCode(proxy);
+                } else if ("toString".equals(method.getName()) && target == null) {
+                    return "Lazy reference to " + type.getName();
+                }
+            }
+
+            try {
+                return method.invoke(getTarget(), args);
+            } catch (InvocationTargetException e) {
+                throw e.getCause();
+            }
+        }
+
+        private Object getTarget() {
+            Object result = target;
+
+            if (result == null) {
+                synchronized (this) {
+                    result = target;
+                    if (result == null) {
+                        result = resolve();
+                        target = result;
+                        resolver = null;
+                    }
+                }
+            }
+
+            return result;
+        }
+
+        private Object resolve() {
+            Thread thread = Thread.currentThread();
+            ClassLoader previousClassLoader = thread.getContextClassLoader();
+            thread.setContextClassLoader(classLoader);
+
+            try {
+                Object result = resolver.call();
+                if (result == null) {
+                    throw new StripesRuntimeException("Lazy reference to " + type.getName() + " resolved to null");
+                }
+
+                return result;
+            } catch (RuntimeException e) {
+                throw e;
+            } catch (Exception e) {
+                throw new StripesRuntimeException("Unable to resolve lazy reference to " + type.getName(), e);
+            } finally {
+                thread.setContextClassLoader(previousClassLoader);
+            }
+        }
+    }
+}
@@ -0,0 +1,413 @@
+/*
+ * $Id$
+ *
+ * Copyright 2011 samaxes.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.samaxes.stripes.enricher;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import net.sourceforge.stripes.exception.StripesRuntimeException;
+import net.sourceforge.stripes.util.Log;
+
+/**
+ * <p>
+ * Runs the independent JNDI lookups of an ActionBean concurrently, so that a bean with several remote dependencies pays
+ * for the slowest lookup instead of for all of them in a row. The enrichers still inject the results one after another,
+ * in the order of the injection points, once all the lookups are done.
+ * </p>
+ * <p>
+ * Parallel lookups are disabled by default. When enabled, lookups run on a fixed number of daemon threads shared by all
+ * requests, which are virtual threads if the JVM supports them. Worker threads run each lookup with the thread context
+ * class loader and the lookup time budget of the request, see {@link LookupGuard}, and reuse their naming context for
+ * each deployment, see {@link NamingContextProvider}.
+ * </p>
+ * <p>
+ * Each deployment, identified by the thread context class loader, has its own executor, so that a deployment sets the
+ * number of its lookup threads and stops them without affecting the lookups of other deployments sharing this library.
+ * Idle worker threads terminate after {@value #KEEP_ALIVE_TIME} ms.
+ * </p>
+ * <p>
+ * Worker threads are not container managed threads, so the container does not give them the naming context of the web
+ * application: names in the {@code java:comp}, {@code java:module} and {@code java:app} namespaces do not resolve on
+ * them. Only lookups of {@code java:global} names may run on worker threads, see {@link #isPortable(String)}. The
+ * others are wrapped by {@link #onCallingThread(Callable)} and run on the calling thread while the worker threads
+ * perform the portable lookups. The calling thread also performs the first portable lookup if it has no other lookup
+ * to perform. Lookups are never queued beyond {@value #QUEUE_CAPACITY_PER_THREAD} per worker thread: lookups submitted
+ * while the queue is full run on the calling thread.
+ * </p>
+ *
+ * @author Samuel Santos
+ * @version $Revision$
+ */
+public final class LookupExecutor {
+
+    private static final Log log = Log.getInstance(LookupExecutor.class);
+
+    /** Map of deployment class loader to its lookup executor. */
+    private static final Map<ClassLoader, LookupExecutor> instances = Collections
+            .synchronizedMap(new WeakHashMap<ClassLoader, LookupExecutor>());
+
+    /** Executor of the deployment that looked up last, so that a single deployment does not lock on each bind. */
+    private static volatile LookupExecutor lastInstance;
+
+    /** Time, in milliseconds, an idle worker thread waits for a lookup before terminating. */
+    static final long KEEP_ALIVE_TIME = 60 * 1000L;
+
+    /** Number of lookups waiting for a worker thread, per worker thread, beyond which lookups are rejected. */
+    static final int QUEUE_CAPACITY_PER_THREAD = 16;
+
+    private static final String GLOBAL_NAMESPACE = "java:global/";
+
+    private final WeakReference<ClassLoader> deployment;
+
+    private volatile int parallelism;
+
+    private ExecutorService executor;
+
+    private LookupExecutor(ClassLoader deployment) {
+        this.deployment = new WeakReference<ClassLoader>(deployment);
+    }
+
+    /**
+     * Gets the executor used by the EJB and resource enrichers in the current deployment.
+     *
+     * @return the lookup executor of the current deployment
+     */
+    public static LookupExecutor getInstance() {
+        ClassLoader classLoader = Thread.currentThread().getContextClassLoader();
+        LookupExecutor instance = lastInstance;
+        if (instance != null && instance.deployment.get() == classLoader) {
+            return instance;
+        }
+
+        synchronized (instances) {
+            instance = instances.get(classLoader);
+            if (instance == null) {
+                instance = new LookupExecutor(classLoader);
+                instances.put(classLoader, instance);
+            }
+        }
+        lastInstance = instance;
+
+        return instance;
+    }
+
+    /**
+     * Stops the lookup threads of the current deployment and forgets its executor. Lookups of other deployments are not
+     * affected. Must be called when the deployment shuts down.
+     */
+    public static void clear() {
+        LookupExecutor instance = instances.remove(Thread.currentThread().getContextClassLoader());
+
+        if (instance != null) {
+            if (lastInstance == instance) {
+                lastInstance = null;
+            }
+            instance.shutdown();
+        }
+    }
+
+    /**
+     * Whether lookups run in parallel.
+     *
+     * @return {@code true} if parallel lookups are enabled
+     */
+    public boolean isEnabled() {
+        return parallelism > 0;
+    }
+
+    /**
+     * Gets the number of threads performing lookups.
+     *
+     * @return the number of lookup threads, {@code 0} if parallel lookups are disabled
+     */
+    public int getParallelism() {
+        return parallelism;
+    }
+
+    /**
+     * Sets the number of threads performing lookups, replacing the current threads.
+     *
+     * @param parallelism the number of lookup threads, {@code 0} to disable parallel lookups
+     */
+    public void setParallelism(int parallelism) {
+        if (parallelism < 0) {
+            throw new IllegalArgumentException("Parallelism must not be negative: " + parallelism);
+        }
+
+        synchronized (this) {
+            this.parallelism = parallelism;
+            shutdown();
+        }
+    }
+
+    /**
+     * Whether a JNDI name resolves the same on any thread, i.e. is in the {@code java:global} namespace.
+     *
+     * @param name the JNDI name, may be {@code null}
+     * @return {@code true} if the name may be looked up by a worker thread
+     */
+    public static boolean isPortable(String name) {
+        return name != null && name.startsWith(GLOBAL_NAMESPACE);
+    }
+
+    /**
+     * Marks a lookup that must run on the calling thread, because its name may not resolve on a worker thread.
+     *
+     * @param lookup the lookup
+     * @return the lookup to pass to {@link #lookupAll(List)}
+     */
+    public static Callable<Object> onCallingThread(Callable<Object> lookup) {
+        return new CallingThreadLookup(lookup);
+    }
+
+    /**
+     * Performs lookups concurrently and waits for all of them to complete. Lookups marked by
+     * {@link #onCallingThread(Callable)} run on the calling thread, the others on worker threads.
+     *
+     * @param lookups the lookups to perform, {@code null} elements are skipped
+     * @return the completed lookups, in the same order, with {@code null} for the skipped elements
+     * @throws InterruptedException if the calling thread is interrupted while waiting, in which case the pending
+     *         lookups are cancelled
+     */
+    public List<Future<Object>> lookupAll(List<Callable<Object>> lookups) throws InterruptedException {
+        List<Future<Object>> futures = new ArrayList<Future<Object>>(lookups.size());
+        List<FutureTask<Object>> callerTasks = new ArrayList<FutureTask<Object>>(lookups.size());
+        boolean callerBusy = false;
+        for (Callable<Object> lookup : lookups) {
+            callerBusy |= lookup instanceof CallingThreadLookup;
+        }
+
+        ExecutorService executor = getExecutor();
+        ClassLoader classLoader = Thread.currentThread().getContextClassLoader();
+        long deadline = LookupGuard.getInstance().getDeadline();
+
+        try {
+            for (Callable<Object> lookup : lookups) {
+                if (lookup == null) {
+                    futures.add(null);
+                } else if (lookup instanceof CallingThreadLookup || !callerBusy) {
+                    FutureTask<Object> task = new FutureTask<Object>(lookup);
+                    futures.add(task);
+                    callerTasks.add(task);
+                    callerBusy = true;
+                } else {
+                    futures.add(submit(executor, lookup, classLoader, deadline, callerTasks));
+                }
+            }
+
+            for (FutureTask<Object> task : callerTasks) {
+                task.run();
+            }
+
+            for (Future<Object> future : futures) {
+                if (future != null) {
+                    try {
+                        future.get();
+                    } catch (ExecutionException e) {
+                        // thrown by getResult
+                    }
+                }
+            }
+        } catch (InterruptedException e) {
+            for (Future<Object> future : futures) {
+                if (future != null) {
+                    future.cancel(true);
+                }
+            }
+            throw e;
+        }
+
+        return futures;
+    }
+
+    /**
+     * Gets the result of a completed lookup, throwing the exception of a failed lookup as is.
+     *
+     * @param future a lookup returned by {@link #lookupAll(List)}
+     * @return the looked up object
+     * @throws Exception the exception thrown by the lookup
+     */
+    public static Object getResult(Future<Object> future) throws Exception {
+        try {
+            return future.get();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof Exception) {
+                throw (Exception) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new StripesRuntimeException(cause);
+        }
+    }
+
+    /**
+     * Stops the lookup threads of this executor. New threads are started by the next parallel lookup, if still enabled.
+     */
+    public synchronized void shutdown() {
+        if (executor != null) {
+            executor.shutdownNow();
+            executor = null;
+        }
+    }
+
+    /**
+     * Submits a lookup to the worker threads, or leaves it to the calling thread if the queue is full.
+     */
+    private static Future<Object> submit(ExecutorService executor, Callable<Object> lookup, ClassLoader classLoader,
+            long deadline, List<FutureTask<Object>> callerTasks) {
+        try {
+            return executor.submit(new ContextualLookup(lookup, classLoader, deadline));
+        } catch (RejectedExecutionException e) {
+            log.debug("Lookup queue full, looking up on the calling thread");
+            FutureTask<Object> task = new FutureTask<Object>(lookup);
+            callerTasks.add(task);
+            return task;
+        }
+    }
+
+    private synchronized ExecutorService getExecutor() {
+        if (executor == null) {
+            int threads = Math.max(parallelism, 1);
+            ThreadPoolExecutor threadPool = new ThreadPoolExecutor(threads, threads, KEEP_ALIVE_TIME,
+                    TimeUnit.MILLISECONDS, new ArrayBlockingQueue<Runnable>(threads * QUEUE_CAPACITY_PER_THREAD),
+                    createThreadFactory("stripes-lookup"), new ThreadPoolExecutor.AbortPolicy());
+            // Idle threads terminate, so that the executor of a deployment that was not cleared can be collected
+            threadPool.allowCoreThreadTimeOut(true);
+            executor = threadPool;
+        }
+
+        return executor;
+    }
+
+    /**
+     * Creates the factory of the enricher threads. Virtual threads are created through reflection, since they are not
+     * available before Java 21. Threads are created without a context class loader, so that they do not keep the web
+     * application that started them alive, and close their naming contexts when they terminate.
+     *
+     * @param name the prefix of the thread names
+     * @return the thread factory
+     */
+    private static ThreadFactory createThreadFactory(final String name) {
+        ThreadFactory factory;
+
+        try {
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+            builder = builderClass.getMethod("name", String.class, long.class).invoke(builder, name + "-", 1L);
+            factory = (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+            log.debug("Running ", name, " threads as virtual threads");
+        } catch (Exception e) {
+            factory = null;
+            log.debug("Virtual threads not available, running ", name, " threads as platform threads");
+        }
+
+        final ThreadFactory virtualThreadFactory = factory;
+        final AtomicInteger threadNumber = new AtomicInteger();
+
+        return new ThreadFactory() {
+            @Override
+            public Thread newThread(final Runnable runnable) {
+                Runnable task = new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            runnable.run();
+                        } finally {
+                            NamingContextProvider.getInstance().closeThreadContexts();
+                        }
+                    }
+                };
+
+                Thread thread;
+                if (virtualThreadFactory != null) {
+                    thread = virtualThreadFactory.newThread(task);
+                } else {
+                    thread = new Thread(task, name + "-" + threadNumber.incrementAndGet());
+                    thread.setDaemon(true);
+                }
+                thread.setContextClassLoader(null);
+                return thread;
+            }
+        };
+    }
+
+    /**
+     * Lookup that must run on the calling thread.
+     */
+    private static final class CallingThreadLookup implements Callable<Object> {
+
+        private final Callable<Object> lookup;
+
+        CallingThreadLookup(Callable<Object> lookup) {
+            this.lookup = lookup;
+        }
+
+        @Override
+        public Object call() throws Exception {
+            return lookup.call();
+        }
+    }
+
+    /**
+     * Lookup performed with the thread context class loader and the lookup deadline of the request that submitted it.
+     */
+    private static final class ContextualLookup implements Callable<Object> {
+
+        private final Callable<Object> lookup;
+
+        private final ClassLoader classLoader;
+
+        private final long deadline;
+
+        ContextualLookup(Callable<Object> lookup, ClassLoader classLoader, long deadline) {
+            this.lookup = lookup;
+            this.classLoader = classLoader;
+            this.deadline = deadline;
+        }
+
+        @Override
+        public Object call() throws Exception {
+            Thread thread = Thread.currentThread();
+            thread.setContextClassLoader(classLoader);
+            LookupGuard.getInstance().setDeadline(deadline);
+
+            try {
+                return lookup.call();
+            } finally {
+                LookupGuard.getInstance().setDeadline(0L);
+                thread.setContextClassLoader(null);
+            }
+        }
+    }
+}
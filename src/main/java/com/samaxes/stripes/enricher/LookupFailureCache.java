@@ -0,0 +1,209 @@
+/*
+ * $Id$
+ *
+ * Copyright 2011 samaxes.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.samaxes.stripes.enricher;
+
+import java.lang.ref.WeakReference;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.naming.NamingException;
+
+/**
+ * <p>
+ * Bounded cache of failed JNDI lookups. While a failure is remembered, looking up the same reference again fails fast
+ * with the original diagnostic instead of probing JNDI again, so a missing or not yet deployed resource does not slow
+ * down every request that depends on it.
+ * </p>
+ * <p>
+ * The cache is disabled by default. Failures are only remembered for a short time to live, after which the next
+ * request performs the lookup again. Each failure belongs to the deployment that recorded it, identified by the thread
+ * context class loader, and is forgotten when that deployment shuts down, see {@link #clear()}. Keys must therefore
+ * identify the reference within a deployment, like {@link DeploymentKey}.
+ * </p>
+ *
+ * @author Samuel Santos
+ * @version $Revision$
+ */
+public final class LookupFailureCache {
+
+    /** Default time, in milliseconds, a failed lookup is remembered. Zero disables the cache. */
+    public static final long DEFAULT_TIME_TO_LIVE = 0L;
+
+    /** Default maximum number of failed lookups remembered. */
+    public static final int DEFAULT_MAX_ENTRIES = 1000;
+
+    private static final LookupFailureCache instance = new LookupFailureCache();
+
+    private final Map<Object, Failure> failures = new ConcurrentHashMap<Object, Failure>();
+
+    private volatile long timeToLive = DEFAULT_TIME_TO_LIVE;
+
+    private volatile int maxEntries = DEFAULT_MAX_ENTRIES;
+
+    private LookupFailureCache() {
+    }
+
+    /**
+     * Gets the cache shared by the EJB and resource enrichers.
+     *
+     * @return the shared lookup failure cache
+     */
+    public static LookupFailureCache getInstance() {
+        return instance;
+    }
+
+    /**
+     * Gets the time, in milliseconds, a failed lookup is remembered.
+     *
+     * @return the time to live in milliseconds
+     */
+    public long getTimeToLive() {
+        return timeToLive;
+    }
+
+    /**
+     * Sets the time, in milliseconds, a failed lookup is remembered. Zero disables the cache.
+     *
+     * @param timeToLive the time to live in milliseconds
+     */
+    public void setTimeToLive(long timeToLive) {
+        if (timeToLive < 0) {
+            throw new IllegalArgumentException("Time to live must not be negative: " + timeToLive);
+        }
+        this.timeToLive = timeToLive;
+        if (timeToLive == 0) {
+            failures.clear();
+        }
+    }
+
+    /**
+     * Gets the maximum number of failed lookups remembered.
+     *
+     * @return the maximum number of entries
+     */
+    public int getMaxEntries() {
+        return maxEntries;
+    }
+
+    /**
+     * Sets the maximum number of failed lookups remembered.
+     *
+     * @param maxEntries the maximum number of entries
+     */
+    public void setMaxEntries(int maxEntries) {
+        if (maxEntries < 0) {
+            throw new IllegalArgumentException("Maximum number of entries must not be negative: " + maxEntries);
+        }
+        this.maxEntries = maxEntries;
+    }
+
+    /**
+     * Fails fast if a lookup of the given reference failed recently.
+     *
+     * @param key the reference identifier
+     * @throws NamingException carrying the original diagnostic, if the lookup failed less than the time to live ago
+     */
+    public void check(Object key) throws NamingException {
+        if (key == null || failures.isEmpty()) {
+            return;
+        }
+
+        Failure failure = failures.get(key);
+        if (failure != null) {
+            if (failure.expiresAt - System.currentTimeMillis() > 0) {
+                NamingException e = new NamingException(failure.cause.getExplanation());
+                e.setRootCause(failure.cause);
+                throw e;
+            }
+            failures.remove(key);
+        }
+    }
+
+    /**
+     * Remembers a failed lookup.
+     *
+     * @param key the reference identifier
+     * @param cause the lookup failure
+     */
+    public void put(Object key, NamingException cause) {
+        long ttl = timeToLive;
+        if (key == null || ttl == 0) {
+            return;
+        }
+
+        long now = System.currentTimeMillis();
+        if (failures.size() >= maxEntries) {
+            purgeExpired(now);
+            if (failures.size() >= maxEntries) {
+                return;
+            }
+        }
+        failures.put(key, new Failure(cause, now + ttl, Thread.currentThread().getContextClassLoader()));
+    }
+
+    /**
+     * Forgets the failed lookups of the current deployment, as well as those of deployments already garbage collected.
+     * Must be called when the deployment shuts down.
+     */
+    public void clear() {
+        ClassLoader classLoader = Thread.currentThread().getContextClassLoader();
+
+        for (Iterator<Failure> it = failures.values().iterator(); it.hasNext();) {
+            ClassLoader deployment = it.next().deployment.get();
+            if (deployment == classLoader || deployment == null) {
+                it.remove();
+            }
+        }
+    }
+
+    /**
+     * Gets the number of failed lookups currently remembered, including expired ones not yet purged.
+     *
+     * @return the number of entries
+     */
+    public int size() {
+        return failures.size();
+    }
+
+    private void purgeExpired(long now) {
+        for (Iterator<Failure> it = failures.values().iterator(); it.hasNext();) {
+            if (it.next().expiresAt - now <= 0) {
+                it.remove();
+            }
+        }
+    }
+
+    /**
+     * A failed lookup, the time until it is remembered and the deployment that performed it.
+     */
+    private static final class Failure {
+
+        private final NamingException cause;
+
+        private final long expiresAt;
+
+        private final WeakReference<ClassLoader> deployment;
+
+        Failure(NamingException cause, long expiresAt, ClassLoader deployment) {
+            this.cause = cause;
+            this.expiresAt = expiresAt;
+            this.deployment = new WeakReference<ClassLoader>(deployment);
+        }
+    }
+}
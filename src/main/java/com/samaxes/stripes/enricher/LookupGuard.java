@@ -0,0 +1,466 @@
+/*
+ * $Id$
+ *
+ * Copyright 2011 samaxes.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.samaxes.stripes.enricher;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.lang.reflect.Proxy;
+import java.util.Hashtable;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.naming.CommunicationException;
+import javax.naming.Context;
+import javax.naming.NamingException;
+import javax.naming.ServiceUnavailableException;
+import javax.naming.TimeLimitExceededException;
+
+import net.sourceforge.stripes.exception.StripesRuntimeException;
+import net.sourceforge.stripes.util.Log;
+
+/**
+ * <p>
+ * Protects request threads from a slow or unreachable naming server. The JNDI lookups of the enrichers can be bounded
+ * by a timeout per lookup and by a time budget per bean, and each JNDI name has a circuit breaker which opens after a
+ * number of consecutive failures. While a circuit is open, lookups of its name fail immediately with a
+ * {@link ServiceUnavailableException}. Once the open time elapses, a single lookup is let through: the circuit closes
+ * if it succeeds and opens again if it fails.
+ * </p>
+ * <p>
+ * Timeouts, communication errors and unavailable services are failures, names that are not bound are not. Lookups
+ * always run on the calling thread, since names such as {@code java:comp/env/...} only resolve on container threads.
+ * The lookup timeout is passed to the naming provider through the read and connect timeout environment properties of
+ * the JDK LDAP, WildFly remote naming and WebLogic providers, see {@link #createTimeoutEnvironment(long)}, which cut
+ * short a remote lookup. Providers without such properties cannot be interrupted: a lookup failing after the timeout is
+ * reported as a {@link TimeLimitExceededException}, and a lookup succeeding after the timeout counts as a failure of
+ * its circuit. The bean budget is checked before each lookup.
+ * </p>
+ * <p>
+ * Circuit breakers belong to the deployment that looked the name up, identified by the thread context class loader.
+ * </p>
+ * <p>
+ * When a dependency is unavailable, its injection fails by default. With the {@link TripAction#STUB} action, injection
+ * points typed with a public interface receive a stub instead, which throws a {@link StripesRuntimeException} when
+ * used. Event handlers that do not need the dependency keep working. Stubs are never recorded as injected on session
+ * scoped ActionBeans, so the dependency replaces its stub on the next request once it is available again.
+ * </p>
+ *
+ * @author Samuel Santos
+ * @version $Revision$
+ */
+public final class LookupGuard {
+
+    /**
+     * What happens to an injection point whose dependency is unavailable.
+     */
+    public enum TripAction {
+
+        /** Fail the injection. */
+        FAIL_FAST,
+
+        /** Inject a stub that throws, if the injection point is typed with a public interface. */
+        STUB
+    }
+
+    private static final Log log = Log.getInstance(LookupGuard.class);
+
+    private static final LookupGuard instance = new LookupGuard();
+
+    private static final long DEFAULT_OPEN_TIME = 30 * 1000L;
+
+    /** Circuit breakers of the JNDI names which failed since they last succeeded, by deployment. */
+    private final Map<DeploymentKey, CircuitBreaker> circuitBreakers =
+            new ConcurrentHashMap<DeploymentKey, CircuitBreaker>();
+
+    /** Time by which the lookups of the bean being injected by the current thread must complete. */
+    private final ThreadLocal<Long> deadlines = new ThreadLocal<Long>();
+
+    private volatile long lookupTimeout;
+
+    private volatile long beanTimeout;
+
+    private volatile int failureThreshold;
+
+    private volatile long openTime = DEFAULT_OPEN_TIME;
+
+    private volatile TripAction tripAction = TripAction.FAIL_FAST;
+
+    private LookupGuard() {
+    }
+
+    /**
+     * Gets the guard used by the EJB and resource enrichers.
+     *
+     * @return the shared lookup guard
+     */
+    public static LookupGuard getInstance() {
+        return instance;
+    }
+
+    /**
+     * Whether lookups are guarded by timeouts or circuit breakers.
+     *
+     * @return {@code true} if a timeout or the circuit breakers are enabled
+     */
+    public boolean isEnabled() {
+        return lookupTimeout > 0 || beanTimeout > 0 || failureThreshold > 0;
+    }
+
+    /**
+     * Sets the time a single lookup may take. The naming contexts created from then on pass the timeout to the naming
+     * provider, see {@link NamingContextProvider#setEnvironment(Hashtable)}.
+     *
+     * @param lookupTimeout the lookup timeout in milliseconds, {@code 0} for no timeout
+     */
+    public void setLookupTimeout(long lookupTimeout) {
+        this.lookupTimeout = Math.max(lookupTimeout, 0L);
+        NamingContextProvider.getInstance().setEnvironment(
+                this.lookupTimeout > 0 ? createTimeoutEnvironment(this.lookupTimeout) : null);
+    }
+
+    /**
+     * Creates the environment properties which bound the time a lookup waits for the naming server, for the naming
+     * providers that support them. Other providers ignore them.
+     *
+     * @param timeout the timeout in milliseconds
+     * @return the naming context environment
+     */
+    static Hashtable<String, String> createTimeoutEnvironment(long timeout) {
+        String value = String.valueOf(timeout);
+        Hashtable<String, String> environment = new Hashtable<String, String>();
+        // JDK LDAP provider
+        environment.put("com.sun.jndi.ldap.connect.timeout", value);
+        environment.put("com.sun.jndi.ldap.read.timeout", value);
+        // WildFly remote naming
+        environment.put("jboss.naming.client.connect.timeout", value);
+        // WebLogic
+        environment.put("weblogic.jndi.connectTimeout", value);
+        environment.put("weblogic.jndi.responseReadTimeout", value);
+
+        return environment;
+    }
+
+    /**
+     * Sets the time all the lookups of a bean may take together.
+     *
+     * @param beanTimeout the bean lookup budget in milliseconds, {@code 0} for no budget
+     */
+    public void setBeanTimeout(long beanTimeout) {
+        this.beanTimeout = Math.max(beanTimeout, 0L);
+    }
+
+    /**
+     * Sets the number of consecutive failures of a JNDI name which opens its circuit.
+     *
+     * @param failureThreshold the number of failures, {@code 0} to disable the circuit breakers
+     */
+    public void setFailureThreshold(int failureThreshold) {
+        this.failureThreshold = Math.max(failureThreshold, 0);
+        if (failureThreshold <= 0) {
+            circuitBreakers.clear();
+        }
+    }
+
+    /**
+     * Sets the time a circuit stays open before a lookup is tried again.
+     *
+     * @param openTime the open time in milliseconds
+     */
+    public void setOpenTime(long openTime) {
+        this.openTime = Math.max(openTime, 0L);
+    }
+
+    /**
+     * Gets what happens to an injection point whose dependency is unavailable.
+     *
+     * @return the trip action
+     */
+    public TripAction getTripAction() {
+        return tripAction;
+    }
+
+    /**
+     * Sets what happens to an injection point whose dependency is unavailable.
+     *
+     * @param tripAction the trip action
+     */
+    public void setTripAction(TripAction tripAction) {
+        this.tripAction = tripAction;
+    }
+
+    /**
+     * Whether the circuit of a JNDI name in the current deployment is open, i.e. its lookups fail immediately.
+     *
+     * @param name the JNDI name
+     * @return {@code true} if the circuit is open
+     */
+    public boolean isOpen(String name) {
+        CircuitBreaker circuitBreaker = circuitBreakers.get(DeploymentKey.current(name));
+        return circuitBreaker != null && circuitBreaker.isOpen();
+    }
+
+    /**
+     * Starts the lookup budget of a bean injected by the current thread.
+     *
+     * @return the budget to restore with {@link #endBean(long)}
+     */
+    public long startBean() {
+        long previousDeadline = getDeadline();
+        if (beanTimeout > 0) {
+            setDeadline(System.currentTimeMillis() + beanTimeout);
+        }
+
+        return previousDeadline;
+    }
+
+    /**
+     * Ends the lookup budget of a bean injected by the current thread.
+     *
+     * @param previousDeadline the value returned by {@link #startBean()}
+     */
+    public void endBean(long previousDeadline) {
+        setDeadline(previousDeadline);
+    }
+
+    long getDeadline() {
+        Long deadline = deadlines.get();
+        return deadline == null ? 0L : deadline;
+    }
+
+    void setDeadline(long deadline) {
+        if (deadline > 0) {
+            deadlines.set(deadline);
+        } else {
+            deadlines.remove();
+        }
+    }
+
+    /**
+     * Looks up a JNDI name on the calling thread, unless its circuit is open or the lookup budget of the current bean
+     * is exhausted. A lookup failing after the lookup timeout fails with a {@link TimeLimitExceededException}.
+     *
+     * @param context the naming context of the current thread
+     * @param name the JNDI name
+     * @return the named object
+     * @throws NamingException if the lookup fails, a {@link TimeLimitExceededException} if it times out or the bean
+     *         budget is exhausted, or a {@link ServiceUnavailableException} if the circuit is open
+     */
+    public Object lookup(Context context, String name) throws NamingException {
+        if (!isEnabled()) {
+            return context.lookup(name);
+        }
+
+        DeploymentKey key = DeploymentKey.current(name);
+        CircuitBreaker circuitBreaker = circuitBreakers.get(key);
+        if (circuitBreaker != null && !circuitBreaker.allowLookup(openTime)) {
+            throw new ServiceUnavailableException("Lookups of " + name + " suspended after repeated failures");
+        }
+
+        checkBudget(name);
+        long timeout = lookupTimeout;
+        long start = System.currentTimeMillis();
+        try {
+            Object result = context.lookup(name);
+            if (timeout > 0 && System.currentTimeMillis() - start > timeout) {
+                log.debug("Lookup of ", name, " took more than ", timeout, " ms");
+                recordFailure(key, circuitBreaker);
+            } else {
+                closeCircuit(key, circuitBreaker);
+            }
+            return result;
+        } catch (NamingException e) {
+            long elapsed = System.currentTimeMillis() - start;
+            if (timeout > 0 && elapsed >= timeout && !(e instanceof TimeLimitExceededException)) {
+                TimeLimitExceededException timeLimitExceeded = new TimeLimitExceededException("Lookup of " + name
+                        + " took more than " + timeout + " ms");
+                timeLimitExceeded.setRootCause(e);
+                e = timeLimitExceeded;
+            }
+            if (isUnavailable(e)) {
+                recordFailure(key, circuitBreaker);
+            } else {
+                closeCircuit(key, circuitBreaker);
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Whether a lookup failed because the naming server or the looked up service is unavailable, rather than because
+     * the name is not bound.
+     *
+     * @param e the lookup failure
+     * @return {@code true} if the lookup timed out, could not reach the naming server or was suspended
+     */
+    public static boolean isUnavailable(NamingException e) {
+        return e instanceof TimeLimitExceededException || e instanceof ServiceUnavailableException
+                || e instanceof CommunicationException;
+    }
+
+    /**
+     * Creates the stub injected in place of an unavailable dependency, if the {@link TripAction#STUB} action is
+     * configured.
+     *
+     * @param type the injection point type
+     * @param cause the lookup failure
+     * @return the stub
+     * @throws NamingException the lookup failure, if the dependency is not unavailable or cannot be stubbed
+     */
+    public Object createStub(Class<?> type, NamingException cause) throws NamingException {
+        if (tripAction != TripAction.STUB || !isUnavailable(cause) || !type.isInterface()
+                || !Modifier.isPublic(type.getModifiers())) {
+            throw cause;
+        }
+
+        log.warn("Injecting a stub of unavailable ", type.getName(), ": ", cause.getMessage());
+        return Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[] { type }, new StubHandler(type, cause));
+    }
+
+    /**
+     * Whether an injected value is a stub created in place of an unavailable dependency. Stubs are replaced by the
+     * dependency on a later injection, once it is available again.
+     *
+     * @param value the injected value
+     * @return {@code true} if the value was created by {@link #createStub(Class, NamingException)}
+     */
+    public static boolean isStub(Object value) {
+        return value != null && Proxy.isProxyClass(value.getClass())
+                && Proxy.getInvocationHandler(value) instanceof StubHandler;
+    }
+
+    /**
+     * Closes the circuits of the current deployment, as well as those of deployments already garbage collected. Must be
+     * called when the deployment shuts down.
+     */
+    public void clear() {
+        for (Iterator<DeploymentKey> it = circuitBreakers.keySet().iterator(); it.hasNext();) {
+            if (it.next().isCurrentOrCollected()) {
+                it.remove();
+            }
+        }
+    }
+
+    private void checkBudget(String name) throws TimeLimitExceededException {
+        long deadline = getDeadline();
+
+        if (deadline > 0 && deadline - System.currentTimeMillis() <= 0) {
+            throw new TimeLimitExceededException("Lookup budget of the bean exhausted before looking up " + name);
+        }
+    }
+
+    private void recordFailure(DeploymentKey key, CircuitBreaker circuitBreaker) {
+        if (failureThreshold <= 0) {
+            return;
+        }
+
+        if (circuitBreaker == null) {
+            circuitBreaker = new CircuitBreaker();
+            CircuitBreaker previous = circuitBreakers.putIfAbsent(key, circuitBreaker);
+            if (previous != null) {
+                circuitBreaker = previous;
+            }
+        }
+
+        if (circuitBreaker.recordFailure(failureThreshold, openTime)) {
+            log.warn("Suspending lookups of ", key.getJndiName(), " for ", openTime, " ms after ", failureThreshold,
+                    " consecutive failures");
+        }
+    }
+
+    private void closeCircuit(DeploymentKey key, CircuitBreaker circuitBreaker) {
+        if (circuitBreaker != null && circuitBreakers.remove(key, circuitBreaker) && circuitBreaker.isOpen()) {
+            log.info("Resuming lookups of ", key.getJndiName());
+        }
+    }
+
+    /**
+     * Consecutive failures of a JNDI name, and the time until which its lookups are suspended.
+     */
+    private static final class CircuitBreaker {
+
+        private final AtomicInteger failures = new AtomicInteger();
+
+        /** End of the open time, {@code 0} while the circuit is closed. */
+        private final AtomicLong openUntil = new AtomicLong();
+
+        boolean isOpen() {
+            return openUntil.get() != 0;
+        }
+
+        /**
+         * Whether a lookup may proceed. Once the open time elapses, a single lookup is let through and the circuit
+         * stays open for the others until it completes.
+         */
+        boolean allowLookup(long openTime) {
+            long until = openUntil.get();
+            if (until == 0) {
+                return true;
+            }
+
+            long now = System.currentTimeMillis();
+            return now >= until && openUntil.compareAndSet(until, now + openTime);
+        }
+
+        /**
+         * Counts a failure.
+         *
+         * @return {@code true} if the failure opened the circuit
+         */
+        boolean recordFailure(int failureThreshold, long openTime) {
+            if (failures.incrementAndGet() < failureThreshold) {
+                return false;
+            }
+
+            return openUntil.getAndSet(System.currentTimeMillis() + openTime) == 0;
+        }
+    }
+
+    /**
+     * Throws on any invocation but {@code equals}, {@code hashCode} and {@code toString}.
+     */
+    private static final class StubHandler implements InvocationHandler {
+
+        private final Class<?> type;
+
+        private final NamingException cause;
+
+        StubHandler(Class<?> type, NamingException cause) {
+            this.type = type;
+            this.cause = cause;
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) {
+            if (method.getDeclaringClass() == Object.class) {
+                if ("equals".equals(method.getName())) {
+                    return proxy == args[0];
+                } else if ("hashCode".equals(method.getName())) {
+                    return System.identityHashCode(proxy);
+                } else if ("toString".equals(method.getName())) {
+                    return "Stub of unavailable " + type.getName();
+                }
+            }
+
+            throw new StripesRuntimeException(type.getName() + " is unavailable", cause);
+        }
+    }
+}
@@ -0,0 +1,220 @@
+/*
+ * $Id$
+ *
+ * Copyright 2011 samaxes.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.samaxes.stripes.enricher;
+
+import java.lang.ref.WeakReference;
+import java.util.Hashtable;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.naming.Context;
+import javax.naming.InitialContext;
+import javax.naming.NamingException;
+
+import net.sourceforge.stripes.util.Log;
+
+/**
+ * <p>
+ * Provides the naming contexts used by the enrichers to perform JNDI lookups. Instead of creating a new
+ * {@link InitialContext} for every lookup, each thread reuses the context it created for the current deployment, since
+ * {@code InitialContext} instances are not safe for concurrent access. Deployments are identified by the thread context
+ * class loader.
+ * </p>
+ * <p>
+ * Contexts are closed when their deployment shuts down, see {@link #close()}. Threads only hold JDK types, so pooled
+ * container threads do not keep this class loader alive after an undeploy.
+ * </p>
+ * <p>
+ * Contexts are created with an optional environment, see {@link #setEnvironment(Hashtable)}. Each thread replaces its
+ * context the next time it needs it after the environment changes.
+ * </p>
+ *
+ * @author Samuel Santos
+ * @version $Revision$
+ */
+public final class NamingContextProvider {
+
+    private static final Log log = Log.getInstance(NamingContextProvider.class);
+
+    private static final NamingContextProvider instance = new NamingContextProvider();
+
+    /** Naming contexts of the current thread, by deployment class loader. */
+    private final ThreadLocal<Map<ClassLoader, Context>> threadContexts = new ThreadLocal<Map<ClassLoader, Context>>();
+
+    /** Naming contexts not closed yet, with the deployment class loader and the environment they were created for. */
+    private final Map<Context, OpenContext> openContexts = new ConcurrentHashMap<Context, OpenContext>();
+
+    private final AtomicLong createdContexts = new AtomicLong();
+
+    /** Environment of the contexts created from now on, {@code null} for the default environment. */
+    private volatile Hashtable<?, ?> environment;
+
+    private NamingContextProvider() {
+    }
+
+    /**
+     * Gets the provider shared by all enrichers.
+     *
+     * @return the shared naming context provider
+     */
+    public static NamingContextProvider getInstance() {
+        return instance;
+    }
+
+    /**
+     * Sets the environment of the naming contexts. Contexts created with another environment are replaced the next time
+     * their thread needs them.
+     *
+     * @param environment the environment properties, {@code null} for the default environment
+     */
+    public void setEnvironment(Hashtable<?, ?> environment) {
+        this.environment = environment;
+    }
+
+    /**
+     * Gets the naming context of the current thread and deployment, creating it the first time.
+     *
+     * @return the naming context
+     * @throws NamingException if the initial context cannot be created
+     */
+    public Context getContext() throws NamingException {
+        ClassLoader classLoader = Thread.currentThread().getContextClassLoader();
+        Map<ClassLoader, Context> contexts = threadContexts.get();
+        Hashtable<?, ?> environment = this.environment;
+
+        if (contexts == null) {
+            contexts = new WeakHashMap<ClassLoader, Context>();
+            threadContexts.set(contexts);
+        }
+
+        Context context = contexts.get(classLoader);
+        if (context != null && !isCreatedWith(context, environment)) {
+            contexts.remove(classLoader);
+            closeContext(context);
+            context = null;
+        }
+
+        if (context == null) {
+            context = environment == null ? new InitialContext() : new InitialContext(environment);
+            contexts.put(classLoader, context);
+            openContexts.put(context, new OpenContext(classLoader, environment));
+            log.debug("Created naming context #", createdContexts.incrementAndGet(), " for thread ",
+                    Thread.currentThread().getName());
+        }
+
+        return context;
+    }
+
+    /**
+     * Gets the number of naming contexts created since the application started.
+     *
+     * @return the number of naming contexts created
+     */
+    public long getCreatedContextCount() {
+        return createdContexts.get();
+    }
+
+    /**
+     * Gets the number of naming contexts created and not closed yet.
+     *
+     * @return the number of open naming contexts
+     */
+    public int getOpenContextCount() {
+        return openContexts.size();
+    }
+
+    /**
+     * Closes the naming contexts of the current thread, for all deployments. Called by the enricher threads when they
+     * terminate.
+     */
+    public void closeThreadContexts() {
+        Map<ClassLoader, Context> contexts = threadContexts.get();
+        if (contexts == null) {
+            return;
+        }
+
+        threadContexts.remove();
+        for (Context context : contexts.values()) {
+            closeContext(context);
+        }
+    }
+
+    /**
+     * Closes all naming contexts created for the current deployment, as well as those of deployments already garbage
+     * collected. Must be called when the deployment shuts down.
+     */
+    public void close() {
+        ClassLoader classLoader = Thread.currentThread().getContextClassLoader();
+        int closedContexts = 0;
+
+        Map<ClassLoader, Context> contexts = threadContexts.get();
+        if (contexts != null) {
+            contexts.remove(classLoader);
+        }
+
+        for (Iterator<Map.Entry<Context, OpenContext>> it = openContexts.entrySet().iterator(); it.hasNext();) {
+            Map.Entry<Context, OpenContext> entry = it.next();
+            ClassLoader contextClassLoader = entry.getValue().classLoader.get();
+
+            if (contextClassLoader == classLoader || contextClassLoader == null) {
+                it.remove();
+                try {
+                    entry.getKey().close();
+                    closedContexts++;
+                } catch (NamingException e) {
+                    log.warn(e, "Failed to close naming context");
+                }
+            }
+        }
+
+        log.info("Closed ", closedContexts, " naming contexts, ", createdContexts.get(), " created in total");
+    }
+
+    private boolean isCreatedWith(Context context, Hashtable<?, ?> environment) {
+        OpenContext openContext = openContexts.get(context);
+        return openContext != null && openContext.environment == environment;
+    }
+
+    private void closeContext(Context context) {
+        if (openContexts.remove(context) != null) {
+            try {
+                context.close();
+            } catch (NamingException e) {
+                log.warn(e, "Failed to close naming context");
+            }
+        }
+    }
+
+    /**
+     * Deployment class loader and environment of an open naming context.
+     */
+    private static final class OpenContext {
+
+        private final WeakReference<ClassLoader> classLoader;
+
+        private final Hashtable<?, ?> environment;
+
+        OpenContext(ClassLoader classLoader, Hashtable<?, ?> environment) {
+            this.classLoader = new WeakReference<ClassLoader>(classLoader);
+            this.environment = environment;
+        }
+    }
+}
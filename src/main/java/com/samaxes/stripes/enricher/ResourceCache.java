@@ -0,0 +1,211 @@
+/*
+ * $Id$
+ *
+ * Copyright 2011 samaxes.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.samaxes.stripes.enricher;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * <p>
+ * Bounded cache of resources resolved by the {@code @Resource} enricher, keyed by their JNDI name. Typical resources
+ * such as {@code DataSource}s, connection factories and {@code env-entry} values do not change while the application is
+ * deployed, so once cached their injection becomes an in-memory copy instead of a JNDI lookup.
+ * </p>
+ * <p>
+ * Resources are cached for a configurable time to live. The cache is disabled by default, i.e. the time to live is
+ * zero. When the cache is full, expired entries are purged first and then the entries closest to expiry are evicted.
+ * </p>
+ * <p>
+ * Entries are scoped to the deployment that looked them up, identified by the thread context class loader, and are
+ * cleared when it shuts down, see {@link #clear()}.
+ * </p>
+ *
+ * @author Samuel Santos
+ * @version $Revision$
+ */
+public final class ResourceCache {
+
+    /** Default maximum number of resources cached. */
+    public static final int DEFAULT_MAX_ENTRIES = 1000;
+
+    private static final ResourceCache instance = new ResourceCache();
+
+    private final Map<DeploymentKey, Entry> resources = new ConcurrentHashMap<DeploymentKey, Entry>();
+
+    private volatile long timeToLive;
+
+    private volatile int maxEntries = DEFAULT_MAX_ENTRIES;
+
+    private ResourceCache() {
+    }
+
+    /**
+     * Gets the cache used by the resource enricher.
+     *
+     * @return the shared resource cache
+     */
+    public static ResourceCache getInstance() {
+        return instance;
+    }
+
+    /**
+     * Gets the time, in milliseconds, a resource is cached.
+     *
+     * @return the time to live in milliseconds
+     */
+    public long getTimeToLive() {
+        return timeToLive;
+    }
+
+    /**
+     * Sets the time, in milliseconds, a resource is cached. Zero disables the cache.
+     *
+     * @param timeToLive the time to live in milliseconds
+     */
+    public void setTimeToLive(long timeToLive) {
+        if (timeToLive < 0) {
+            throw new IllegalArgumentException("Time to live must not be negative: " + timeToLive);
+        }
+        this.timeToLive = timeToLive;
+        if (timeToLive == 0) {
+            resources.clear();
+        }
+    }
+
+    /**
+     * Gets the maximum number of resources cached.
+     *
+     * @return the maximum number of entries
+     */
+    public int getMaxEntries() {
+        return maxEntries;
+    }
+
+    /**
+     * Sets the maximum number of resources cached.
+     *
+     * @param maxEntries the maximum number of entries
+     */
+    public void setMaxEntries(int maxEntries) {
+        if (maxEntries < 0) {
+            throw new IllegalArgumentException("Maximum number of entries must not be negative: " + maxEntries);
+        }
+        this.maxEntries = maxEntries;
+    }
+
+    /**
+     * Gets the resource cached for a JNDI name in the current deployment.
+     *
+     * @param jndiName the JNDI name
+     * @return the cached resource, or {@code null} if there is none or it expired
+     */
+    public Object get(String jndiName) {
+        if (jndiName == null || resources.isEmpty()) {
+            return null;
+        }
+
+        DeploymentKey key = DeploymentKey.current(jndiName);
+        Entry entry = resources.get(key);
+        if (entry != null) {
+            if (entry.expiresAt - System.currentTimeMillis() > 0) {
+                return entry.resource;
+            }
+            resources.remove(key);
+        }
+
+        return null;
+    }
+
+    /**
+     * Caches the resource found under a JNDI name in the current deployment.
+     *
+     * @param jndiName the JNDI name
+     * @param resource the resource
+     */
+    public void put(String jndiName, Object resource) {
+        long ttl = timeToLive;
+        if (jndiName == null || resource == null || ttl == 0 || maxEntries == 0) {
+            return;
+        }
+
+        long now = System.currentTimeMillis();
+        if (resources.size() >= maxEntries) {
+            evict(now);
+        }
+        resources.put(DeploymentKey.current(jndiName), new Entry(resource, now + ttl));
+    }
+
+    /**
+     * Discards the resources cached by the current deployment, as well as those of deployments already garbage
+     * collected. Must be called when the deployment shuts down.
+     */
+    public void clear() {
+        for (Iterator<DeploymentKey> it = resources.keySet().iterator(); it.hasNext();) {
+            if (it.next().isCurrentOrCollected()) {
+                it.remove();
+            }
+        }
+    }
+
+    /**
+     * Gets the number of cached resources, including expired ones not yet purged.
+     *
+     * @return the number of entries
+     */
+    public int size() {
+        return resources.size();
+    }
+
+    /**
+     * Purges expired entries and, if the cache is still full, evicts the entry closest to expiry.
+     *
+     * @param now the current time in milliseconds
+     */
+    private void evict(long now) {
+        Map.Entry<DeploymentKey, Entry> eldest = null;
+
+        for (Iterator<Map.Entry<DeploymentKey, Entry>> it = resources.entrySet().iterator(); it.hasNext();) {
+            Map.Entry<DeploymentKey, Entry> candidate = it.next();
+            if (candidate.getValue().expiresAt - now <= 0) {
+                it.remove();
+            } else if (eldest == null || candidate.getValue().expiresAt - eldest.getValue().expiresAt < 0) {
+                eldest = candidate;
+            }
+        }
+
+        if (eldest != null && resources.size() >= maxEntries) {
+            resources.remove(eldest.getKey());
+        }
+    }
+
+    /**
+     * A cached resource and the time until it is cached.
+     */
+    private static final class Entry {
+
+        private final Object resource;
+
+        private final long expiresAt;
+
+        Entry(Object resource, long expiresAt) {
+            this.resource = resource;
+            this.expiresAt = expiresAt;
+        }
+    }
+}
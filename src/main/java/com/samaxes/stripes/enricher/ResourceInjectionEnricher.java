@@ -17,25 +17,29 @@
  */
 package com.samaxes.stripes.enricher;
 
-import java.lang.reflect.AnnotatedElement;
 import java.lang.reflect.Field;
-import java.lang.reflect.Method;
-import java.util.Collection;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
 
 import javax.annotation.Resource;
 import javax.naming.Context;
-import javax.naming.InitialContext;
+import javax.naming.NamingException;
 
 import net.sourceforge.stripes.action.ActionBean;
 import net.sourceforge.stripes.util.Log;
 
+import com.samaxes.stripes.enricher.InjectionStateRegistry.InjectionState;
+
 /**
  * <p>
  * Enricher that provide @Resource field and setter method injection. It is used to lookup resources and inject them
  * into objects (often ActionBeans).
  * </p>
  * <p>
- * Field resources will only be injected if the current value is NULL or primitive default value.
+ * Field resources will only be injected if the current value is NULL, primitive default value or a stub of an
+ * unavailable resource, see {@link LookupGuard}.
  * </p>
  *
  * @author Samuel Santos
@@ -55,55 +59,159 @@ public class ResourceInjectionEnricher {
     }
 
     /**
-     * Lookup resources and inject them into objects.
+     * Lookup resources and inject them into objects. Injection points already injected on a session scoped ActionBean
+     * are skipped, see {@link InjectionStateRegistry}. If parallel lookups are enabled, the resources are looked up
+     * concurrently before being injected in order, see {@link LookupExecutor}. Unavailable resources may be replaced
+     * by stubs, see {@link LookupGuard}.
      *
      * @param bean the binding process target
-     * @param fields fields on a class that are annotated for injection
-     * @param methods methods on a class that are annotated for injection
+     * @param injectionPoints fields and methods on a class that are annotated for injection, fields first
      * @throws Exception if the binding process produced unrecoverable errors
      */
-    public static void bind(ActionBean bean, Collection<Field> fields, Collection<Method> methods) throws Exception {
-        log.debug("Running @Resource dependency injection for instance of ", bean.getClass().getSimpleName());
-
-        // First inject any properties that are annotated
-        if (fields != null) {
-            for (Field field : fields) {
-                Object currentValue = field.get(bean);
-                if (shouldInject(field, currentValue)) {
-                    Object resource = resolveResource(field);
-                    field.set(bean, resource);
+    public static void bind(ActionBean bean, ResourceInjectionPoint[] injectionPoints) throws Exception {
+        log.debug("Running @Resource dependency injection for instance of ", bean.getClass().getName());
+
+        InjectionState state = InjectionStateRegistry.getInstance().get(bean);
+        Object event = InjectionEvents.beginBind();
+        boolean success = false;
+        try {
+            // Fields are only injected if they were not set yet, annotated methods are always invoked
+            boolean[] pending = new boolean[injectionPoints.length];
+            for (int i = 0; i < injectionPoints.length; i++) {
+                ResourceInjectionPoint injectionPoint = injectionPoints[i];
+                pending[i] = (state == null || !state.isInjected(injectionPoint))
+                        && (!injectionPoint.isField() || shouldInject(injectionPoint, injectionPoint.getValue(bean)));
+            }
+
+            List<Future<Object>> lookups = lookupInParallel(injectionPoints, pending);
+
+            for (int i = 0; i < injectionPoints.length; i++) {
+                ResourceInjectionPoint injectionPoint = injectionPoints[i];
+                if (state != null && state.isInjected(injectionPoint)) {
+                    continue;
+                }
+
+                if (pending[i]) {
+                    Object resource;
+                    if (LazyReferenceFactory.getInstance().isLazy(injectionPoint)) {
+                        resource = LazyReferenceFactory.getInstance().create(injectionPoint.getType(),
+                                createLookup(injectionPoint));
+                    } else {
+                        try {
+                            if (lookups != null && lookups.get(i) != null) {
+                                resource = LookupExecutor.getResult(lookups.get(i));
+                            } else {
+                                resource = resolveResource(injectionPoint);
+                            }
+                        } catch (NamingException e) {
+                            resource = LookupGuard.getInstance().createStub(injectionPoint.getType(), e);
+                        }
+                    }
+                    injectionPoint.inject(bean, resource);
+                    // A stub is replaced by the resource on the next request the session scoped ActionBean serves
+                    if (LookupGuard.isStub(resource)) {
+                        continue;
+                    }
+                }
+                if (state != null) {
+                    state.setInjected(injectionPoint);
                 }
             }
+            success = true;
+        } finally {
+            InjectionEvents.endBind(event, "Resource", bean.getClass(), injectionPoints.length, success);
         }
+    }
 
-        // Then inject any values using annotated methods
-        if (methods != null) {
-            for (Method method : methods) {
-                Object resource = resolveResource(method);
-                method.invoke(bean, resource);
+    /**
+     * Looks up the resources of the pending injection points concurrently, if parallel lookups are enabled and there
+     * is more than one resource to look up, at least one of them by a {@code java:global} name. Other resources, such
+     * as {@code java:comp/env} entries, are looked up on the calling thread. Injection points that receive a lazy
+     * reference are skipped.
+     *
+     * @param injectionPoints fields and methods on a class that are annotated for injection
+     * @param pending whether each injection point must be injected
+     * @return the completed lookups, by injection point index, or {@code null} if the resources must be looked up in
+     *         turn
+     * @throws InterruptedException if the thread is interrupted while waiting for the lookups
+     */
+    private static List<Future<Object>> lookupInParallel(ResourceInjectionPoint[] injectionPoints, boolean[] pending)
+            throws InterruptedException {
+        if (!LookupExecutor.getInstance().isEnabled() || injectionPoints.length < 2) {
+            return null;
+        }
+
+        List<Callable<Object>> lookups = new ArrayList<Callable<Object>>(injectionPoints.length);
+        int count = 0;
+        int portableCount = 0;
+        for (int i = 0; i < injectionPoints.length; i++) {
+            if (!pending[i] || LazyReferenceFactory.getInstance().isLazy(injectionPoints[i])) {
+                lookups.add(null);
+            } else if (LookupExecutor.isPortable(injectionPoints[i].getResourceName())) {
+                lookups.add(createLookup(injectionPoints[i]));
+                count++;
+                portableCount++;
+            } else {
+                lookups.add(LookupExecutor.onCallingThread(createLookup(injectionPoints[i])));
+                count++;
             }
         }
+
+        return count > 1 && portableCount > 0 ? LookupExecutor.getInstance().lookupAll(lookups) : null;
+    }
+
+    /**
+     * Creates the lookup of the resource of an injection point, performed by a lazy reference or a parallel lookup.
+     *
+     * @param injectionPoint the injection point
+     * @return the resource lookup
+     */
+    private static Callable<Object> createLookup(final ResourceInjectionPoint injectionPoint) {
+        return new Callable<Object>() {
+            @Override
+            public Object call() throws Exception {
+                return resolveResource(injectionPoint);
+            }
+        };
     }
 
     /**
-     * Looks up the JNDI resource for any given annotated element.
+     * Looks up the JNDI resource for any given injection point. Resolved resources are kept by the
+     * {@link ResourceCache}, if enabled, and failed lookups are remembered for a short time by the
+     * {@link LookupFailureCache}, if enabled. Lookups are guarded by the {@link LookupGuard}, which handles the
+     * failures due to an unavailable naming server on its own.
      *
-     * @param element any annotated element (field, method, etc.)
+     * @param injectionPoint an annotated field or method
      * @return the located resource
      * @throws Exception when no resource found in JNDI
      */
-    protected static Object resolveResource(AnnotatedElement element) throws Exception {
-        Context context = new InitialContext();
-        Object resolvedResource = null;
-
-        // This implementation is based on previous behavior in injectClass()
-        if (Field.class.isAssignableFrom(element.getClass())) {
-            resolvedResource = context.lookup(getResourceName((Field) element));
-        } else if (Method.class.isAssignableFrom(element.getClass())) {
-            resolvedResource = context.lookup(getResourceName(element.getAnnotation(Resource.class)));
+    protected static Object resolveResource(ResourceInjectionPoint injectionPoint) throws Exception {
+        String resourceName = injectionPoint.getResourceName();
+        Object resource = ResourceCache.getInstance().get(resourceName);
+        if (resource != null) {
+            return resource;
         }
 
-        return resolvedResource;
+        DeploymentKey failureKey = DeploymentKey.current(resourceName);
+        LookupFailureCache.getInstance().check(failureKey);
+        Context context = NamingContextProvider.getInstance().getContext();
+
+        Object event = InjectionEvents.beginJndiLookup();
+        try {
+            resource = LookupGuard.getInstance().lookup(context, resourceName);
+            InjectionMetrics.getInstance().recordResourceLookup(true);
+            InjectionEvents.endJndiLookup(event, resourceName, true);
+            ResourceCache.getInstance().put(resourceName, resource);
+
+            return resource;
+        } catch (NamingException e) {
+            InjectionMetrics.getInstance().recordResourceLookup(false);
+            InjectionEvents.endJndiLookup(event, resourceName, false);
+            if (!LookupGuard.isUnavailable(e)) {
+                LookupFailureCache.getInstance().put(failureKey, e);
+            }
+            throw e;
+        }
     }
 
     /**
@@ -144,14 +252,14 @@ public class ResourceInjectionEnricher {
         return null;
     }
 
-    private static boolean shouldInject(Field field, Object currentValue) {
-        Class<?> type = field.getType();
+    private static boolean shouldInject(InjectionPoint injectionPoint, Object currentValue) {
+        Class<?> type = injectionPoint.getType();
 
         if (type.isPrimitive() && isPrimitiveNull(currentValue)) {
-            log.debug("Primitive field " + field.getName() + " has been detected to have the default primitive value, "
+            log.debug("Primitive field " + injectionPoint + " has been detected to have the default primitive value, "
                     + "can not determine if it has already been injected. Re-injecting field.");
             return true;
-        } else if (currentValue == null) {
+        } else if (currentValue == null || LookupGuard.isStub(currentValue)) {
             return true;
         }
 
@@ -0,0 +1,64 @@
+/*
+ * $Id$
+ *
+ * Copyright 2011 samaxes.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.samaxes.stripes.enricher;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+
+import javax.annotation.Resource;
+
+/**
+ * Field or setter method annotated with {@link Resource}. The resource JNDI name is computed once, when the injection
+ * point is created.
+ *
+ * @author Samuel Santos
+ * @version $Revision$
+ */
+public class ResourceInjectionPoint extends InjectionPoint {
+
+    private final String resourceName;
+
+    /**
+     * Creates an injection point for a field annotated with {@link Resource}.
+     *
+     * @param field the annotated field
+     */
+    public ResourceInjectionPoint(Field field) {
+        super(field);
+        this.resourceName = ResourceInjectionEnricher.getResourceName(field);
+    }
+
+    /**
+     * Creates an injection point for a setter method annotated with {@link Resource}.
+     *
+     * @param method the annotated method
+     */
+    public ResourceInjectionPoint(Method method) {
+        super(method);
+        this.resourceName = ResourceInjectionEnricher.getResourceName(method.getAnnotation(Resource.class));
+    }
+
+    /**
+     * Gets the resource JNDI name.
+     *
+     * @return the resource JNDI name
+     */
+    public String getResourceName() {
+        return resourceName;
+    }
+}
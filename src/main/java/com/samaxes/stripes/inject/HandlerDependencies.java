@@ -0,0 +1,60 @@
+/*
+ * $Id$
+ *
+ * Copyright 2011 samaxes.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.samaxes.stripes.inject;
+
+import java.lang.annotation.Documented;
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * <p>
+ * Declares the dependencies used by an event handler. When handler scoped injection is enabled, see
+ * {@link InjectionEnricher#HANDLER_SCOPED}, requests to the handler only inject the listed @EJB and @Resource
+ * injection points, and only go through CDI injection if {@link #cdi()} is {@code true}. Handlers without this
+ * annotation get all the dependencies of their ActionBean.
+ * </p>
+ * <p>
+ * Dependencies are named after the annotated field, or after the property of the annotated setter method. They must
+ * include the dependencies used by the validation and {@code @After} methods run for the handler.
+ * </p>
+ *
+ * <pre>
+ * &#064;HandlerDependencies(value = "orderService", cdi = false)
+ * public Resolution view() {
+ * </pre>
+ *
+ * @author Samuel Santos
+ * @version $Revision$
+ */
+@Documented
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.METHOD)
+public @interface HandlerDependencies {
+
+    /**
+     * Names of the @EJB and @Resource fields or setter properties used by the handler.
+     */
+    String[] value() default {};
+
+    /**
+     * Whether the handler uses the @Inject dependencies of the ActionBean.
+     */
+    boolean cdi() default true;
+}
@@ -17,29 +17,39 @@
  */
 package com.samaxes.stripes.inject;
 
-import java.lang.reflect.Field;
 import java.lang.reflect.Method;
 import java.util.ArrayList;
 import java.util.Collection;
-import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
-
-import javax.annotation.Resource;
-import javax.ejb.EJB;
-import javax.inject.Inject;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
 
 import net.sourceforge.stripes.action.ActionBean;
 import net.sourceforge.stripes.action.Resolution;
+import net.sourceforge.stripes.config.ConfigurableComponent;
+import net.sourceforge.stripes.config.Configuration;
 import net.sourceforge.stripes.controller.ExecutionContext;
 import net.sourceforge.stripes.controller.Interceptor;
 import net.sourceforge.stripes.controller.Intercepts;
 import net.sourceforge.stripes.controller.LifecycleStage;
 import net.sourceforge.stripes.exception.StripesRuntimeException;
 import net.sourceforge.stripes.util.Log;
-import net.sourceforge.stripes.util.ReflectUtil;
 
 import com.samaxes.stripes.enricher.CDIInjectionEnricher;
+import com.samaxes.stripes.enricher.ClassCache;
 import com.samaxes.stripes.enricher.EJBInjectionEnricher;
+import com.samaxes.stripes.enricher.EJBReferenceCache;
+import com.samaxes.stripes.enricher.InjectionEvents;
+import com.samaxes.stripes.enricher.InjectionMetrics;
+import com.samaxes.stripes.enricher.InjectorGenerator;
+import com.samaxes.stripes.enricher.LazyReferenceFactory;
+import com.samaxes.stripes.enricher.LookupExecutor;
+import com.samaxes.stripes.enricher.LookupFailureCache;
+import com.samaxes.stripes.enricher.LookupGuard;
+import com.samaxes.stripes.enricher.ResourceCache;
 import com.samaxes.stripes.enricher.ResourceInjectionEnricher;
 
 /**
@@ -58,8 +68,10 @@ import com.samaxes.stripes.enricher.ResourceInjectionEnricher;
  * </p>
  * <p>
  * The first time that any of the injection methods in this class is called with a specific type of object, the object's
- * class is examined for annotated fields and methods. The discovered fields and methods are then cached for future
- * usage.
+ * class is examined for annotated fields and methods. The discovered fields and methods are then compiled into an
+ * {@link InjectionPlan} and cached for future usage. If the web application was built with the
+ * {@code stripes-injection-enricher-processor} annotation processor, the annotated fields and methods are read from
+ * the generated index instead.
  * </p>
  * <p>
  * To configure {@code InjectionEnricher}, add the following initialization parameters to your Stripes filter
@@ -74,39 +86,233 @@ import com.samaxes.stripes.enricher.ResourceInjectionEnricher;
  * </init-param>
  * }
  * </pre>
+ * <p>
+ * The following optional initialization parameters are also supported:
+ * </p>
+ * <ul>
+ * <li>{@value #LOOKUP_FAILURE_TTL} - time, in milliseconds, a failed JNDI lookup is remembered and fails fast (default
+ * {@value com.samaxes.stripes.enricher.LookupFailureCache#DEFAULT_TIME_TO_LIVE}, {@code 0} disables it)</li>
+ * <li>{@value #LOOKUP_FAILURE_MAX_ENTRIES} - maximum number of failed JNDI lookups remembered (default
+ * {@value com.samaxes.stripes.enricher.LookupFailureCache#DEFAULT_MAX_ENTRIES})</li>
+ * <li>{@value #RESOURCE_CACHE_TTL} - time, in milliseconds, a resolved @Resource is cached (default {@code 0}, i.e.
+ * disabled)</li>
+ * <li>{@value #RESOURCE_CACHE_MAX_ENTRIES} - maximum number of resolved @Resource cached (default
+ * {@value com.samaxes.stripes.enricher.ResourceCache#DEFAULT_MAX_ENTRIES})</li>
+ * <li>{@value #GENERATED_INJECTORS} - whether a bytecode injector is generated for each ActionBean class, requires ASM
+ * (default {@code false})</li>
+ * <li>{@value #EJB_REFERENCE_CACHE} - whether stateless and singleton EJB references are looked up once and shared
+ * (default {@code false})</li>
+ * <li>{@value #EJB_REFERENCE_CACHE_EXCLUDES} - comma separated JNDI names of EJB references that are never cached,
+ * typically stateful session beans</li>
+ * <li>{@value #LAZY_REFERENCES} - whether interface typed @EJB and @Resource injection points receive a proxy that
+ * looks up its target on first use, see {@link LazyReferenceFactory} (default {@code false})</li>
+ * <li>{@value #PARALLEL_LOOKUPS} - number of threads looking up the @EJB and @Resource dependencies of an ActionBean
+ * concurrently, see {@link LookupExecutor} (default {@code 0}, i.e. looked up one after another)</li>
+ * <li>{@value #LOOKUP_TIMEOUT} - time, in milliseconds, a single JNDI lookup may take, see {@link LookupGuard}
+ * (default {@code 0}, i.e. no timeout)</li>
+ * <li>{@value #BEAN_LOOKUP_TIMEOUT} - time, in milliseconds, all the JNDI lookups of an ActionBean may take (default
+ * {@code 0}, i.e. no timeout)</li>
+ * <li>{@value #CIRCUIT_BREAKER_THRESHOLD} - number of consecutive failures of a JNDI name after which its lookups are
+ * suspended (default {@code 0}, i.e. never suspended)</li>
+ * <li>{@value #CIRCUIT_BREAKER_OPEN_TIME} - time, in milliseconds, the lookups of a failing JNDI name are suspended
+ * (default {@code 30000})</li>
+ * <li>{@value #CIRCUIT_BREAKER_ACTION} - {@code FAIL_FAST} to fail the injection of an unavailable dependency, or
+ * {@code STUB} to inject a stub that throws when used (default {@code FAIL_FAST})</li>
+ * <li>{@value #METRICS} - whether injection metrics are recorded and exposed through JMX, see
+ * {@link InjectionMetrics} (default {@code false})</li>
+ * <li>{@value #HANDLER_SCOPED} - whether injection is delayed until the event handler is resolved, so that handlers
+ * annotated with {@link HandlerDependencies} only get the dependencies they declare (default {@code false})</li>
+ * <li>{@value #WARM_UP} - whether the injection plans of all the ActionBeans found by Stripes are compiled in parallel
+ * at startup instead of on their first request (default {@code false})</li>
+ * </ul>
  *
  * @author Samuel Santos
  * @version $Revision$
  */
-@Intercepts(LifecycleStage.ActionBeanResolution)
-public class InjectionEnricher implements Interceptor {
+@Intercepts({ LifecycleStage.ActionBeanResolution, LifecycleStage.HandlerResolution,
+        LifecycleStage.RequestComplete })
+public class InjectionEnricher implements Interceptor, ConfigurableComponent {
+
+    /** Configuration key for the time, in milliseconds, a failed JNDI lookup is remembered. */
+    public static final String LOOKUP_FAILURE_TTL = "InjectionEnricher.LookupFailureTTL";
+
+    /** Configuration key for the maximum number of failed JNDI lookups remembered. */
+    public static final String LOOKUP_FAILURE_MAX_ENTRIES = "InjectionEnricher.LookupFailureMaxEntries";
+
+    /** Configuration key for the time, in milliseconds, a resolved @Resource is cached. */
+    public static final String RESOURCE_CACHE_TTL = "InjectionEnricher.ResourceCacheTTL";
+
+    /** Configuration key for the maximum number of resolved @Resource cached. */
+    public static final String RESOURCE_CACHE_MAX_ENTRIES = "InjectionEnricher.ResourceCacheMaxEntries";
+
+    /** Configuration key to enable the generation of bytecode injectors for ActionBean classes. */
+    public static final String GENERATED_INJECTORS = "InjectionEnricher.GeneratedInjectors";
+
+    /** Configuration key to enable the cache of stateless and singleton EJB references. */
+    public static final String EJB_REFERENCE_CACHE = "InjectionEnricher.EJBReferenceCache";
+
+    /** Configuration key for the comma separated JNDI names of EJB references that are never cached. */
+    public static final String EJB_REFERENCE_CACHE_EXCLUDES = "InjectionEnricher.EJBReferenceCacheExcludes";
+
+    /** Configuration key to enable the injection of lazy EJB and resource references. */
+    public static final String LAZY_REFERENCES = "InjectionEnricher.LazyReferences";
+
+    /** Configuration key for the number of threads looking up the EJBs and resources of a bean in parallel. */
+    public static final String PARALLEL_LOOKUPS = "InjectionEnricher.ParallelLookups";
+
+    /** Configuration key for the time in milliseconds a single EJB or resource lookup may take. */
+    public static final String LOOKUP_TIMEOUT = "InjectionEnricher.LookupTimeout";
+
+    /** Configuration key for the time in milliseconds all the EJB and resource lookups of a bean may take. */
+    public static final String BEAN_LOOKUP_TIMEOUT = "InjectionEnricher.BeanLookupTimeout";
+
+    /** Configuration key for the number of consecutive failures of a JNDI name which suspends its lookups. */
+    public static final String CIRCUIT_BREAKER_THRESHOLD = "InjectionEnricher.CircuitBreakerThreshold";
+
+    /** Configuration key for the time in milliseconds the lookups of a failing JNDI name are suspended. */
+    public static final String CIRCUIT_BREAKER_OPEN_TIME = "InjectionEnricher.CircuitBreakerOpenTime";
+
+    /** Configuration key for what happens to the injection points of unavailable dependencies. */
+    public static final String CIRCUIT_BREAKER_ACTION = "InjectionEnricher.CircuitBreakerAction";
+
+    /** Configuration key to enable the injection metrics MBean. */
+    public static final String METRICS = "InjectionEnricher.Metrics";
+
+    /** Configuration key to enable handler scoped injection. */
+    public static final String HANDLER_SCOPED = "InjectionEnricher.HandlerScoped";
+
+    /** Configuration key to enable the compilation of all ActionBean injection plans at startup. */
+    public static final String WARM_UP = "InjectionEnricher.WarmUp";
 
     private static final Log log = Log.getInstance(InjectionEnricher.class);
 
-    /** Map of classes that have their fields parsed. */
-    private static Map<Class<?>, Boolean> parsedFieldMap = new ConcurrentHashMap<Class<?>, Boolean>();
+    /** Lazily filled in cache of Class to its compiled injection plan, which does not keep the classes alive. */
+    private static final ClassCache<InjectionPlan> injectionPlanCache = new ClassCache<InjectionPlan>();
+
+    private static final InjectionMetrics.CacheCounter injectionPlanCounter = InjectionMetrics
+            .registerCache("InjectionPlan", injectionPlanCache);
+
+    private boolean handlerScoped;
+
+    /**
+     * Reads the enricher initialization parameters from the Stripes configuration and loads the build time
+     * {@link InjectionIndex}, if any. If enabled, also compiles the injection plans of all the ActionBeans.
+     *
+     * @param configuration the Stripes configuration
+     * @throws Exception if a parameter value is invalid
+     */
+    @Override
+    public void init(Configuration configuration) throws Exception {
+        Long lookupFailureTTL = getLongProperty(configuration, LOOKUP_FAILURE_TTL);
+        if (lookupFailureTTL != null) {
+            LookupFailureCache.getInstance().setTimeToLive(lookupFailureTTL);
+        }
+
+        Long lookupFailureMaxEntries = getLongProperty(configuration, LOOKUP_FAILURE_MAX_ENTRIES);
+        if (lookupFailureMaxEntries != null) {
+            LookupFailureCache.getInstance().setMaxEntries(lookupFailureMaxEntries.intValue());
+        }
+
+        Long resourceCacheTTL = getLongProperty(configuration, RESOURCE_CACHE_TTL);
+        if (resourceCacheTTL != null) {
+            ResourceCache.getInstance().setTimeToLive(resourceCacheTTL);
+        }
+
+        Long resourceCacheMaxEntries = getLongProperty(configuration, RESOURCE_CACHE_MAX_ENTRIES);
+        if (resourceCacheMaxEntries != null) {
+            ResourceCache.getInstance().setMaxEntries(resourceCacheMaxEntries.intValue());
+        }
+
+        Boolean generatedInjectors = getBooleanProperty(configuration, GENERATED_INJECTORS);
+        if (generatedInjectors != null) {
+            InjectorGenerator.getInstance().setEnabled(generatedInjectors);
+        }
+
+        Boolean ejbReferenceCache = getBooleanProperty(configuration, EJB_REFERENCE_CACHE);
+        if (ejbReferenceCache != null) {
+            EJBReferenceCache.getInstance().setEnabled(ejbReferenceCache);
+        }
+
+        List<String> ejbReferenceCacheExcludes = getListProperty(configuration, EJB_REFERENCE_CACHE_EXCLUDES);
+        if (ejbReferenceCacheExcludes != null) {
+            EJBReferenceCache.getInstance().setExcludedNames(ejbReferenceCacheExcludes);
+        }
+
+        Boolean lazyReferences = getBooleanProperty(configuration, LAZY_REFERENCES);
+        if (lazyReferences != null) {
+            LazyReferenceFactory.getInstance().setEnabled(lazyReferences);
+        }
+
+        Long parallelLookups = getLongProperty(configuration, PARALLEL_LOOKUPS);
+        if (parallelLookups != null) {
+            LookupExecutor.getInstance().setParallelism(parallelLookups.intValue());
+        }
+
+        Long lookupTimeout = getLongProperty(configuration, LOOKUP_TIMEOUT);
+        if (lookupTimeout != null) {
+            LookupGuard.getInstance().setLookupTimeout(lookupTimeout);
+        }
+
+        Long beanLookupTimeout = getLongProperty(configuration, BEAN_LOOKUP_TIMEOUT);
+        if (beanLookupTimeout != null) {
+            LookupGuard.getInstance().setBeanTimeout(beanLookupTimeout);
+        }
+
+        Long circuitBreakerThreshold = getLongProperty(configuration, CIRCUIT_BREAKER_THRESHOLD);
+        if (circuitBreakerThreshold != null) {
+            LookupGuard.getInstance().setFailureThreshold(circuitBreakerThreshold.intValue());
+        }
 
-    /** Map of classes that have their mathods parsed. */
-    private static Map<Class<?>, Boolean> parsedMethodMap = new ConcurrentHashMap<Class<?>, Boolean>();
+        Long circuitBreakerOpenTime = getLongProperty(configuration, CIRCUIT_BREAKER_OPEN_TIME);
+        if (circuitBreakerOpenTime != null) {
+            LookupGuard.getInstance().setOpenTime(circuitBreakerOpenTime);
+        }
 
-    /** Lazily filled in map of Class to fields or methods annotated with @Inject. */
-    private static Map<Class<?>, Boolean> cdiTargetMap = new ConcurrentHashMap<Class<?>, Boolean>();
+        String circuitBreakerAction = configuration.getBootstrapPropertyResolver().getProperty(CIRCUIT_BREAKER_ACTION);
+        if (circuitBreakerAction != null && !"".equals(circuitBreakerAction.trim())) {
+            try {
+                LookupGuard.getInstance().setTripAction(
+                        LookupGuard.TripAction.valueOf(circuitBreakerAction.trim().toUpperCase(Locale.ENGLISH)));
+            } catch (IllegalArgumentException e) {
+                throw new StripesRuntimeException("Invalid value for " + CIRCUIT_BREAKER_ACTION + ": "
+                        + circuitBreakerAction, e);
+            }
+        }
 
-    /** Lazily filled in map of Class to fields annotated with @EJB. */
-    private static Map<Class<?>, Collection<Field>> ejbFieldMap = new ConcurrentHashMap<Class<?>, Collection<Field>>();
+        Boolean metrics = getBooleanProperty(configuration, METRICS);
+        if (metrics != null && metrics) {
+            InjectionMetrics.getInstance().setEnabled(true);
+            if (configuration.getServletContext() != null) {
+                InjectionMetrics.getInstance().register(configuration.getServletContext().getContextPath());
+            }
+        }
 
-    /** Lazily filled in map of Class to methods annotated with @EJB. */
-    private static Map<Class<?>, Collection<Method>> ejbMethodMap = new ConcurrentHashMap<Class<?>, Collection<Method>>();
+        InjectionIndex index = InjectionIndex.getInstance(Thread.currentThread().getContextClassLoader());
+        if (index.size() > 0) {
+            log.info("Using the build time injection index of ", index.size(), " classes");
+        }
 
-    /** Lazily filled in map of Class to fields annotated with @Resource. */
-    private static Map<Class<?>, Collection<Field>> resourceFieldMap = new ConcurrentHashMap<Class<?>, Collection<Field>>();
+        Boolean handlerScoped = getBooleanProperty(configuration, HANDLER_SCOPED);
+        if (handlerScoped != null) {
+            this.handlerScoped = handlerScoped;
+        }
 
-    /** Lazily filled in map of Class to methods annotated with @Resource. */
-    private static Map<Class<?>, Collection<Method>> resourceMethodMap = new ConcurrentHashMap<Class<?>, Collection<Method>>();
+        Boolean warmUp = getBooleanProperty(configuration, WARM_UP);
+        if (warmUp != null && warmUp && configuration.getActionResolver() != null) {
+            warmUp(configuration.getActionResolver().getActionBeanClasses());
+        }
+    }
 
     /**
      * Allows ActionBean resolution to proceed and then once the ActionBean has been located performs the injection
-     * enrichment.
+     * enrichment. If handler scoped injection is enabled, the enrichment is instead performed once the event handler
+     * has been resolved, with the plan of the handler. Once the request completes, releases the CDI creational context
+     * of the ActionBean.
+     * <p>
+     * Stripes registers the interceptor for all the stages of its {@link Intercepts} annotation, whatever the
+     * configuration, so the stage that does not inject only proceeds, and the request completion only looks for a
+     * creational context if CDI injection left any.
+     * </p>
      *
      * @param ctx the current execution context
      * @return the Resolution produced by calling context.proceed()
@@ -114,174 +320,227 @@ public class InjectionEnricher implements Interceptor {
      */
     @Override
     public Resolution intercept(ExecutionContext ctx) throws Exception {
+        LifecycleStage stage = ctx.getLifecycleStage();
+
+        if (stage == LifecycleStage.RequestComplete) {
+            return requestComplete(ctx);
+        }
+
+        if ((stage == LifecycleStage.HandlerResolution) != handlerScoped) {
+            return ctx.proceed();
+        }
+
         Resolution resolution = ctx.proceed();
         ActionBean bean = ctx.getActionBean();
-        log.debug("Running injection enricher for instance of ", bean.getClass().getSimpleName());
 
-        fillFieldMaps(bean.getClass());
-        fillMethodMaps(bean.getClass());
-
-        CDIInjectionEnricher.bind(bean, cdiTargetMap.get(bean.getClass()));
-        EJBInjectionEnricher.bind(bean, ejbFieldMap.get(bean.getClass()), ejbMethodMap.get(bean.getClass()));
-        ResourceInjectionEnricher.bind(bean, resourceFieldMap.get(bean.getClass()),
-                resourceMethodMap.get(bean.getClass()));
+        if (handlerScoped) {
+            inject(bean, getInjectionPlan(bean.getClass()).forHandler(ctx.getHandler()));
+        } else {
+            inject(bean, getInjectionPlan(bean.getClass()));
+        }
 
         return resolution;
     }
 
     /**
-     * Fetches the fields on a class that are annotated for injection. The first time it is called for a particular
-     * class it will introspect the class and cache the results. All non-overridden fields are examined, including
-     * protected and private fields. If a field is not public an attempt it made to make it accessible - if it fails it
-     * is removed from the collection and an error is logged.
+     * Injects the dependencies of an ActionBean. Only the enrichers with injection points in the plan are called, and
+     * nothing is done for an empty plan. The lookup budget of the ActionBean, if any, starts here, see
+     * {@link LookupGuard}.
      *
-     * @param clazz the class on which to look for annotated fields
+     * @param bean the ActionBean
+     * @param plan the injection plan of the ActionBean class, or of its event handler
+     * @throws Exception if the binding process produced unrecoverable errors
      */
-    protected void fillFieldMaps(Class<?> clazz) {
-        if (!parsedFieldMap.containsKey(clazz)) {
-            Collection<Field> ejbFields = null;
-            Collection<Field> resourceFields = null;
-            Collection<Field> fields = ReflectUtil.getFields(clazz);
-
-            for (Field field : fields) {
-                if (!cdiTargetMap.containsKey(clazz) && field.isAnnotationPresent(Inject.class)) {
-                    cdiTargetMap.put(clazz, Boolean.TRUE);
-                }
+    protected void inject(ActionBean bean, InjectionPlan plan) throws Exception {
+        if (plan.isEmpty()) {
+            return;
+        }
 
-                if (field.isAnnotationPresent(EJB.class)) {
-                    if (!field.isAccessible()) {
-                        // If the field isn't public, try to make it accessible
-                        try {
-                            field.setAccessible(true);
-                        } catch (SecurityException se) {
-                            throw new StripesRuntimeException("Field " + clazz.getName() + "." + field.getName()
-                                    + "is marked " + "with @EJB annotation and is not public. An attempt to call "
-                                    + "setAccessible(true) resulted in a SecurityException. Please "
-                                    + "either make the field public, annotate a public setter instead "
-                                    + "or modify your JVM security policy to allow Stripes to setAccessible(true).", se);
-                        }
-                    }
-
-                    if (ejbFields == null) {
-                        ejbFields = new ArrayList<Field>();
-                    }
-                    ejbFields.add(field);
-                }
+        log.debug("Running injection enricher for instance of ", bean.getClass().getName());
 
-                if (field.isAnnotationPresent(Resource.class)) {
-                    if (!field.isAccessible()) {
-                        // If the field isn't public, try to make it accessible
-                        try {
-                            field.setAccessible(true);
-                        } catch (SecurityException se) {
-                            throw new StripesRuntimeException("Field " + clazz.getName() + "." + field.getName()
-                                    + "is marked " + "with @Resource annotation and is not public. An attempt to call "
-                                    + "setAccessible(true) resulted in a SecurityException. Please "
-                                    + "either make the field public, annotate a public setter instead "
-                                    + "or modify your JVM security policy to allow Stripes to setAccessible(true).", se);
-                        }
-                    }
-
-                    if (resourceFields == null) {
-                        resourceFields = new ArrayList<Field>();
-                    }
-                    resourceFields.add(field);
-                }
-            }
+        InjectionMetrics metrics = InjectionMetrics.getInstance();
+        boolean timed = metrics.isEnabled();
+        long start = timed ? System.nanoTime() : 0L;
+        Object event = InjectionEvents.beginInjection();
+        long previousDeadline = LookupGuard.getInstance().startBean();
+        boolean success = false;
 
-            parsedFieldMap.put(clazz, Boolean.TRUE);
-            if (ejbFields != null) {
-                ejbFieldMap.put(clazz, ejbFields);
+        try {
+            if (plan.isCdiTarget()) {
+                CDIInjectionEnricher.bind(bean, true);
             }
-            if (resourceFields != null) {
-                resourceFieldMap.put(clazz, resourceFields);
+            if (plan.getEJBInjectionPoints().length > 0) {
+                EJBInjectionEnricher.bind(bean, plan.getEJBInjectionPoints());
             }
+            if (plan.getResourceInjectionPoints().length > 0) {
+                ResourceInjectionEnricher.bind(bean, plan.getResourceInjectionPoints());
+            }
+            success = true;
+        } finally {
+            LookupGuard.getInstance().endBean(previousDeadline);
+            InjectionEvents.endInjection(event, bean.getClass(), success);
+        }
+
+        if (timed) {
+            metrics.recordInjection(bean.getClass(), System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * Allows the request to complete and then releases the CDI creational context of the ActionBean, destroying the
+     * {@code @Dependent} objects injected into it.
+     *
+     * @param ctx the current execution context
+     * @return the Resolution produced by calling context.proceed()
+     * @throws Exception if the request completion produced unrecoverable errors
+     */
+    protected Resolution requestComplete(ExecutionContext ctx) throws Exception {
+        try {
+            return ctx.proceed();
+        } finally {
+            CDIInjectionEnricher.release(ctx.getActionBean());
         }
     }
 
     /**
-     * Fetches the methods on a class that are annotated for injection. The first time it is called for a particular
-     * class it will introspect the class and cache the results. All non-overridden methods are examined, including
-     * protected and private methods. If a method is not public an attempt it made to make it accessible - if it fails
-     * it is removed from the collection and an error is logged.
+     * Fetches the injection plan of a class. The first time it is called for a particular class it will introspect the
+     * class and cache the results. Concurrent first calls for the same class wait for a single introspection.
      *
-     * @param clazz the class on which to look for annotated methods
+     * @param clazz the class on which to look for annotated fields and methods
+     * @return the class injection plan
+     * @see InjectionPlan#compile(Class)
      */
-    protected void fillMethodMaps(Class<?> clazz) {
-        if (!parsedMethodMap.containsKey(clazz)) {
-            Collection<Method> ejbMethods = null;
-            Collection<Method> resourceMethods = null;
-            Collection<Method> methods = ReflectUtil.getMethods(clazz);
-
-            for (Method method : methods) {
-                if (!cdiTargetMap.containsKey(clazz) && method.isAnnotationPresent(Inject.class)) {
-                    cdiTargetMap.put(clazz, Boolean.TRUE);
+    protected InjectionPlan getInjectionPlan(Class<?> clazz) {
+        InjectionPlan plan = injectionPlanCache.get(clazz);
+
+        if (plan == null) {
+            injectionPlanCounter.miss();
+            plan = injectionPlanCache.get(clazz, new ClassCache.Loader<InjectionPlan>() {
+                @Override
+                public InjectionPlan load(Class<?> type) {
+                    return compileInjectionPlan(type);
                 }
+            });
+        } else {
+            injectionPlanCounter.hit();
+        }
+
+        return plan;
+    }
+
+    /**
+     * Compiles the injection plan of a class. Called once per class, even if several requests need the plan at the
+     * same time.
+     *
+     * @param clazz the class on which to look for annotated fields and methods
+     * @return the class injection plan
+     * @see InjectionPlan#compile(Class)
+     */
+    protected InjectionPlan compileInjectionPlan(Class<?> clazz) {
+        return InjectionPlan.compile(clazz);
+    }
 
-                if (method.isAnnotationPresent(EJB.class)) {
-                    // Ensure the method has only the one parameter
-                    if (method.getParameterTypes().length != 1) {
-                        throw new StripesRuntimeException("@EJB only allowed on single argument methods");
-                    }
-                    // Ensure the method starts with 'set'
-                    if (!method.getName().startsWith("set")) {
-                        throw new StripesRuntimeException("@EJB only allowed on 'set' methods");
-                    }
-                    // If the method isn't public, try to make it accessible
-                    if (!method.isAccessible()) {
-                        try {
-                            method.setAccessible(true);
-                        } catch (SecurityException se) {
-                            throw new StripesRuntimeException("Method " + clazz.getName() + "." + method.getName()
-                                    + "is marked " + "with @EJB annotation and is not public. An attempt to call "
-                                    + "setAccessible(true) resulted in a SecurityException. Please "
-                                    + "either make the method public or modify your JVM security "
-                                    + "policy to allow Stripes to setAccessible(true).", se);
-                        }
-                    }
-
-                    if (ejbMethods == null) {
-                        ejbMethods = new ArrayList<Method>();
-                    }
-                    ejbMethods.add(method);
+    /**
+     * Compiles the injection plans of the given classes in parallel, on a fork/join pool sized to the number of
+     * processors, and waits for them. A class that cannot be compiled is logged and left to fail again on its first
+     * request.
+     *
+     * @param classes the ActionBean classes found by the Stripes action resolver
+     * @throws InterruptedException if the startup thread is interrupted while waiting
+     */
+    protected void warmUp(Collection<Class<? extends ActionBean>> classes) throws InterruptedException {
+        if (classes == null || classes.isEmpty()) {
+            return;
+        }
+
+        long start = System.currentTimeMillis();
+        List<Callable<InjectionPlan>> tasks = new ArrayList<Callable<InjectionPlan>>(classes.size());
+
+        for (final Class<? extends ActionBean> clazz : classes) {
+            tasks.add(new Callable<InjectionPlan>() {
+                @Override
+                public InjectionPlan call() {
+                    return getInjectionPlan(clazz);
                 }
+            });
+        }
 
-                if (method.isAnnotationPresent(Resource.class)) {
-                    // Ensure the method has only the one parameter
-                    if (method.getParameterTypes().length != 1) {
-                        throw new StripesRuntimeException("@Resource only allowed on single argument methods");
-                    }
-                    // Ensure the method starts with 'set'
-                    if (!method.getName().startsWith("set")) {
-                        throw new StripesRuntimeException("@Resource only allowed on 'set' methods");
-                    }
-                    // If the method isn't public, try to make it accessible
-                    if (!method.isAccessible()) {
-                        try {
-                            method.setAccessible(true);
-                        } catch (SecurityException se) {
-                            throw new StripesRuntimeException("Method " + clazz.getName() + "." + method.getName()
-                                    + "is marked " + "with @Resource annotation and is not public. An attempt to call "
-                                    + "setAccessible(true) resulted in a SecurityException. Please "
-                                    + "either make the method public or modify your JVM security "
-                                    + "policy to allow Stripes to setAccessible(true).", se);
-                        }
-                    }
-
-                    if (resourceMethods == null) {
-                        resourceMethods = new ArrayList<Method>();
-                    }
-                    resourceMethods.add(method);
+        ForkJoinPool pool = new ForkJoinPool();
+        try {
+            for (Future<InjectionPlan> future : pool.invokeAll(tasks)) {
+                try {
+                    future.get();
+                } catch (ExecutionException e) {
+                    log.warn(e.getCause(), "Unable to compile an injection plan at startup");
                 }
             }
+        } finally {
+            pool.shutdown();
+        }
 
-            parsedMethodMap.put(clazz, Boolean.TRUE);
-            if (ejbMethods != null) {
-                ejbMethodMap.put(clazz, ejbMethods);
-            }
-            if (resourceMethods != null) {
-                resourceMethodMap.put(clazz, resourceMethods);
+        log.info("Compiled the injection plans of ", classes.size(), " ActionBeans in ",
+                System.currentTimeMillis() - start, " ms");
+    }
+
+    /**
+     * Reads a numeric initialization parameter.
+     *
+     * @param configuration the Stripes configuration
+     * @param key the parameter name
+     * @return the parameter value, or {@code null} if it is not set
+     */
+    private static Long getLongProperty(Configuration configuration, String key) {
+        String value = configuration.getBootstrapPropertyResolver().getProperty(key);
+
+        if (value == null || "".equals(value.trim())) {
+            return null;
+        }
+
+        try {
+            return Long.valueOf(value.trim());
+        } catch (NumberFormatException e) {
+            throw new StripesRuntimeException("Invalid value for " + key + ": " + value, e);
+        }
+    }
+
+    /**
+     * Reads a boolean initialization parameter.
+     *
+     * @param configuration the Stripes configuration
+     * @param key the parameter name
+     * @return the parameter value, or {@code null} if it is not set
+     */
+    private static Boolean getBooleanProperty(Configuration configuration, String key) {
+        String value = configuration.getBootstrapPropertyResolver().getProperty(key);
+
+        if (value == null || "".equals(value.trim())) {
+            return null;
+        }
+
+        return Boolean.valueOf(value.trim());
+    }
+
+    /**
+     * Reads a comma separated initialization parameter.
+     *
+     * @param configuration the Stripes configuration
+     * @param key the parameter name
+     * @return the trimmed non empty parameter values, or {@code null} if it is not set
+     */
+    private static List<String> getListProperty(Configuration configuration, String key) {
+        String value = configuration.getBootstrapPropertyResolver().getProperty(key);
+
+        if (value == null) {
+            return null;
+        }
+
+        List<String> values = new ArrayList<String>();
+        for (String item : value.split(",")) {
+            if (!"".equals(item.trim())) {
+                values.add(item.trim());
             }
         }
+
+        return values;
     }
 }
@@ -0,0 +1,112 @@
+/*
+ * $Id$
+ *
+ * Copyright 2011 samaxes.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.samaxes.stripes.inject;
+
+import java.util.Enumeration;
+
+import javax.servlet.ServletContextEvent;
+import javax.servlet.ServletContextListener;
+import javax.servlet.http.HttpSession;
+import javax.servlet.http.HttpSessionEvent;
+import javax.servlet.http.HttpSessionListener;
+
+import net.sourceforge.stripes.action.ActionBean;
+
+import com.samaxes.stripes.enricher.CDIInjectionEnricher;
+import com.samaxes.stripes.enricher.EJBInjectionEnricher;
+import com.samaxes.stripes.enricher.EJBReferenceCache;
+import com.samaxes.stripes.enricher.InjectionMetrics;
+import com.samaxes.stripes.enricher.InjectionStateRegistry;
+import com.samaxes.stripes.enricher.LookupExecutor;
+import com.samaxes.stripes.enricher.LookupFailureCache;
+import com.samaxes.stripes.enricher.LookupGuard;
+import com.samaxes.stripes.enricher.NamingContextProvider;
+import com.samaxes.stripes.enricher.ResourceCache;
+
+/**
+ * <p>
+ * Releases the resources held by the injection enricher when the web application shuts down, and the CDI dependents
+ * of session scoped ActionBeans when their session is destroyed.
+ * </p>
+ * <p>
+ * The listener is registered automatically by the library {@code web-fragment.xml} in Servlet 3.0 web applications. It
+ * must be declared in {@code web.xml} if web fragments are not scanned, for example when the library is shared by
+ * several web applications:
+ * </p>
+ *
+ * <pre>
+ * {@code
+ * <listener>
+ *     <listener-class>com.samaxes.stripes.inject.InjectionEnricherListener</listener-class>
+ * </listener>
+ * }
+ * </pre>
+ *
+ * @author Samuel Santos
+ * @version $Revision$
+ */
+public class InjectionEnricherListener implements ServletContextListener, HttpSessionListener {
+
+    @Override
+    public void contextInitialized(ServletContextEvent sce) {
+        // no-op
+    }
+
+    /**
+     * Discards the BeanManager, EJB JNDI names, references and resources cached for the web application, the
+     * remembered lookup failures and the circuit breakers, stops its lookup threads, closes its naming contexts and
+     * unregisters its metrics MBean.
+     *
+     * @param sce the servlet context event
+     */
+    @Override
+    public void contextDestroyed(ServletContextEvent sce) {
+        CDIInjectionEnricher.clear();
+        EJBInjectionEnricher.clear();
+        EJBReferenceCache.getInstance().clear();
+        ResourceCache.getInstance().clear();
+        LookupFailureCache.getInstance().clear();
+        LookupExecutor.clear();
+        LookupGuard.getInstance().clear();
+        NamingContextProvider.getInstance().close();
+        InjectionMetrics.getInstance().unregister(sce.getServletContext().getContextPath());
+    }
+
+    @Override
+    public void sessionCreated(HttpSessionEvent se) {
+        // no-op
+    }
+
+    /**
+     * Discards the injection state of the session scoped ActionBeans held by the session, releasing their CDI
+     * creational contexts.
+     *
+     * @param se the session event
+     */
+    @Override
+    public void sessionDestroyed(HttpSessionEvent se) {
+        HttpSession session = se.getSession();
+
+        for (Enumeration<String> names = session.getAttributeNames(); names.hasMoreElements();) {
+            Object attribute = session.getAttribute(names.nextElement());
+            if (attribute instanceof ActionBean) {
+                InjectionStateRegistry.getInstance().discard(attribute);
+            }
+        }
+    }
+}
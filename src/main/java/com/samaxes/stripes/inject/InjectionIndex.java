@@ -0,0 +1,428 @@
+/*
+ * $Id$
+ *
+ * Copyright 2011 samaxes.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.samaxes.stripes.inject;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.net.JarURLConnection;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+
+import net.sourceforge.stripes.util.Log;
+
+/**
+ * <p>
+ * Injection index built from the indexes shipped with the web application: the one generated at build time by the
+ * {@code stripes-injection-enricher-processor} annotation processor and, if Jandex is on the classpath, the Jandex
+ * annotation indexes ({@code META-INF/jandex.idx}). For each indexed class the index lists the fields and methods
+ * declared by that class which are annotated with {@code @EJB}, {@code @Resource} or {@code @Inject}.
+ * </p>
+ * <p>
+ * When every class of an ActionBean hierarchy is indexed, its annotated members are fetched directly by name instead
+ * of examining every field and method of the hierarchy. Otherwise, or if the index does not match the classes, the
+ * regular reflective scan is used.
+ * </p>
+ * <p>
+ * An index is stale if a class was compiled again without regenerating it, for example by an IDE that does not run
+ * the annotation processor. Such a class file is newer than the index that lists it, so classes whose file, in a
+ * directory or a jar, was modified more than {@value #COMPILATION_TIME} ms after their index are examined with
+ * reflection. The allowance covers the class files javac writes after the annotation processor wrote the index.
+ * </p>
+ *
+ * @author Samuel Santos
+ * @version $Revision$
+ */
+final class InjectionIndex {
+
+    /** Location of the index files, one per jar or classes directory. */
+    static final String RESOURCE_NAME = "META-INF/stripes-injection-enricher.index";
+
+    /** Time, in milliseconds, class files may be written after the index of the same compilation. */
+    static final long COMPILATION_TIME = 60 * 1000L;
+
+    private static final Log log = Log.getInstance(InjectionIndex.class);
+
+    private static final InjectionIndex EMPTY = new InjectionIndex(Collections.<String, String[]> emptyMap(),
+            Collections.<String, Long> emptyMap());
+
+    /** Lazily filled in map of class loader to the index files it can see. Entries only hold strings. */
+    private static Map<ClassLoader, InjectionIndex> indexMap = Collections
+            .synchronizedMap(new WeakHashMap<ClassLoader, InjectionIndex>());
+
+    /** Annotated members by declaring class name, fields as {@code name} and methods as {@code name(types)}. */
+    private final Map<String, String[]> membersMap;
+
+    /** Last modification time of the index listing each class, {@code 0} if unknown. */
+    private final Map<String, Long> indexTimeMap;
+
+    /** Whether each examined class is newer than its index, by class name. */
+    private final Map<String, Boolean> staleMap = new ConcurrentHashMap<String, Boolean>();
+
+    private InjectionIndex(Map<String, String[]> membersMap, Map<String, Long> indexTimeMap) {
+        this.membersMap = membersMap;
+        this.indexTimeMap = indexTimeMap;
+    }
+
+    /**
+     * Gets the injection index visible from a class loader, reading the index files the first time.
+     *
+     * @param classLoader the class loader of the examined classes
+     * @return the injection index, empty if no index file is found
+     */
+    static InjectionIndex getInstance(ClassLoader classLoader) {
+        if (classLoader == null) {
+            return EMPTY;
+        }
+
+        InjectionIndex index = indexMap.get(classLoader);
+
+        if (index == null) {
+            index = load(classLoader);
+            indexMap.put(classLoader, index);
+        }
+
+        return index;
+    }
+
+    /**
+     * Gets the number of indexed classes.
+     *
+     * @return the number of indexed classes
+     */
+    int size() {
+        return membersMap.size();
+    }
+
+    /**
+     * Gets the annotated fields of a class hierarchy, in the order {@link net.sourceforge.stripes.util.ReflectUtil}
+     * would return them.
+     *
+     * @param clazz the examined class
+     * @return the annotated fields, or {@code null} if a class of the hierarchy is not indexed or the index is stale
+     */
+    List<Field> getFields(Class<?> clazz) {
+        List<Field> fields = new ArrayList<Field>();
+
+        for (Class<?> c = clazz; c != null && c != Object.class; c = c.getSuperclass()) {
+            String[] members = getMembers(c);
+            if (members == null) {
+                return null;
+            }
+
+            for (String member : members) {
+                if (member.indexOf('(') < 0) {
+                    try {
+                        fields.add(c.getDeclaredField(member));
+                    } catch (NoSuchFieldException e) {
+                        log.debug("Stale injection index, field not found: ", c.getName(), ".", member);
+                        return null;
+                    }
+                }
+            }
+        }
+
+        return fields;
+    }
+
+    /**
+     * Gets the annotated methods of a class hierarchy which are not overridden by a subclass, in the order
+     * {@link net.sourceforge.stripes.util.ReflectUtil} would return them.
+     *
+     * @param clazz the examined class
+     * @return the annotated methods, or {@code null} if a class of the hierarchy is not indexed or the index is stale
+     */
+    List<Method> getMethods(Class<?> clazz) {
+        List<Method> methods = new ArrayList<Method>();
+
+        for (Class<?> c = clazz; c != null && c != Object.class; c = c.getSuperclass()) {
+            String[] members = getMembers(c);
+            if (members == null) {
+                return null;
+            }
+
+            for (String member : members) {
+                if (member.indexOf('(') >= 0) {
+                    Method method = findDeclaredMethod(c, member);
+                    if (method == null) {
+                        log.debug("Stale injection index, method not found: ", c.getName(), ".", member);
+                        return null;
+                    }
+                    if (!isOverridden(clazz, c, method)) {
+                        methods.add(method);
+                    }
+                }
+            }
+        }
+
+        return methods;
+    }
+
+    /**
+     * Gets the indexed members of a class, unless the class was compiled again after its index was written.
+     *
+     * @param clazz the examined class
+     * @return the annotated members, or {@code null} if the class is not indexed or is newer than its index
+     */
+    private String[] getMembers(Class<?> clazz) {
+        String[] members = membersMap.get(clazz.getName());
+
+        if (members == null) {
+            return null;
+        }
+
+        Boolean stale = staleMap.get(clazz.getName());
+        if (stale == null) {
+            stale = isNewerThanIndex(clazz);
+            staleMap.put(clazz.getName(), stale);
+        }
+
+        return stale ? null : members;
+    }
+
+    /**
+     * Whether the class file of a class was modified after the index listing it, beyond the compilation allowance.
+     *
+     * @param clazz the examined class
+     * @return {@code true} if the class was compiled again after its index was written
+     */
+    private boolean isNewerThanIndex(Class<?> clazz) {
+        Long indexTime = indexTimeMap.get(clazz.getName());
+        ClassLoader classLoader = clazz.getClassLoader();
+
+        if (indexTime == null || indexTime == 0L || classLoader == null) {
+            return false;
+        }
+
+        URL url = classLoader.getResource(clazz.getName().replace('.', '/') + ".class");
+        long classTime = url != null ? getLastModified(url) : 0L;
+
+        if (classTime > indexTime + COMPILATION_TIME) {
+            log.info("Stale injection index, ", clazz.getName(), " was compiled after the index, examining it with",
+                    " reflection");
+            return true;
+        }
+
+        return false;
+    }
+
+    /**
+     * Gets the last modification time of a file in a directory or in a jar.
+     *
+     * @param url the file location
+     * @return the last modification time, or {@code 0} if it is unknown
+     */
+    private static long getLastModified(URL url) {
+        try {
+            if ("file".equals(url.getProtocol())) {
+                return new File(url.toURI()).lastModified();
+            }
+
+            if ("jar".equals(url.getProtocol())) {
+                JarURLConnection connection = (JarURLConnection) url.openConnection();
+                // Do not keep the jar open, so that it can be replaced on redeployment
+                connection.setUseCaches(false);
+                JarFile jarFile = connection.getJarFile();
+                try {
+                    JarEntry entry = jarFile.getJarEntry(connection.getEntryName());
+                    return entry != null ? entry.getTime() : 0L;
+                } finally {
+                    jarFile.close();
+                }
+            }
+        } catch (IOException e) {
+            log.debug("Unable to read the modification time of ", url, ": ", e.getMessage());
+        } catch (URISyntaxException e) {
+            log.debug("Unable to read the modification time of ", url, ": ", e.getMessage());
+        } catch (IllegalArgumentException e) {
+            log.debug("Unable to read the modification time of ", url, ": ", e.getMessage());
+        }
+
+        return 0L;
+    }
+
+    /**
+     * Finds a method declared by a class from its indexed signature.
+     *
+     * @param clazz the declaring class
+     * @param signature the method name followed by its parameter class names, e.g. {@code setFoo(com.example.Foo)}
+     * @return the method, or {@code null} if the class does not declare it
+     */
+    private static Method findDeclaredMethod(Class<?> clazz, String signature) {
+        for (Method method : clazz.getDeclaredMethods()) {
+            if (signature.startsWith(method.getName()) && signature.equals(getSignature(method))) {
+                return method;
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * Whether a class between the examined class and the method declaring class declares a method with the same name
+     * and parameter types, in which case {@link net.sourceforge.stripes.util.ReflectUtil#getMethods(Class)} ignores
+     * the inherited one.
+     *
+     * @param clazz the examined class
+     * @param declaringClass the method declaring class
+     * @param method the inherited method
+     * @return {@code true} if the method is overridden
+     */
+    private static boolean isOverridden(Class<?> clazz, Class<?> declaringClass, Method method) {
+        for (Class<?> c = clazz; c != declaringClass; c = c.getSuperclass()) {
+            try {
+                c.getDeclaredMethod(method.getName(), method.getParameterTypes());
+                return true;
+            } catch (NoSuchMethodException e) {
+                // no-op, try superclass
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * Builds the indexed signature of a method.
+     *
+     * @param method the method
+     * @return the method name followed by its parameter class names
+     */
+    private static String getSignature(Method method) {
+        StringBuilder sb = new StringBuilder(method.getName()).append('(');
+        Class<?>[] parameterTypes = method.getParameterTypes();
+
+        for (int i = 0; i < parameterTypes.length; i++) {
+            if (i > 0) {
+                sb.append(';');
+            }
+            sb.append(parameterTypes[i].getName());
+        }
+
+        return sb.append(')').toString();
+    }
+
+    /**
+     * Reads and merges all the index files visible from a class loader. Jandex indexes are read first, so the
+     * annotation processor index wins if both list the same class.
+     *
+     * @param classLoader the class loader
+     * @return the merged index
+     */
+    private static InjectionIndex load(ClassLoader classLoader) {
+        Map<String, String[]> membersMap = new HashMap<String, String[]>();
+        Map<String, Long> indexTimeMap = new HashMap<String, Long>();
+
+        try {
+            if (JandexIndexReader.isAvailable()) {
+                Enumeration<URL> urls = classLoader.getResources(JandexIndexReader.RESOURCE_NAME);
+                while (urls.hasMoreElements()) {
+                    loadJandexIndex(urls.nextElement(), membersMap, indexTimeMap);
+                }
+            }
+
+            Enumeration<URL> urls = classLoader.getResources(RESOURCE_NAME);
+            while (urls.hasMoreElements()) {
+                URL url = urls.nextElement();
+                Properties properties = new Properties();
+                InputStream in = url.openStream();
+                try {
+                    properties.load(in);
+                } finally {
+                    in.close();
+                }
+
+                long indexTime = getLastModified(url);
+                for (String className : properties.stringPropertyNames()) {
+                    membersMap.put(className, split(properties.getProperty(className)));
+                    indexTimeMap.put(className, indexTime);
+                }
+                log.debug("Loaded injection index ", url);
+            }
+        } catch (IOException e) {
+            log.warn(e, "Unable to read the injection index, falling back to reflection");
+            return EMPTY;
+        }
+
+        if (membersMap.isEmpty()) {
+            return EMPTY;
+        }
+
+        return new InjectionIndex(membersMap, indexTimeMap);
+    }
+
+    /**
+     * Reads a Jandex index. An index that cannot be read, for example because it was written by a newer Jandex
+     * version, is ignored and the classes it covers are examined with reflection.
+     *
+     * @param url the Jandex index location
+     * @param membersMap the members read so far
+     * @param indexTimeMap the index modification times read so far
+     * @throws IOException if the index cannot be opened
+     */
+    private static void loadJandexIndex(URL url, Map<String, String[]> membersMap, Map<String, Long> indexTimeMap)
+            throws IOException {
+        InputStream in = url.openStream();
+        try {
+            Map<String, String[]> jandexMembersMap = new HashMap<String, String[]>();
+            JandexIndexReader.read(in, jandexMembersMap);
+            membersMap.putAll(jandexMembersMap);
+            long indexTime = getLastModified(url);
+            for (String className : jandexMembersMap.keySet()) {
+                indexTimeMap.put(className, indexTime);
+            }
+            log.debug("Loaded Jandex index ", url);
+        } catch (IOException e) {
+            log.warn("Ignoring unreadable Jandex index ", url, ": ", e.getMessage());
+        } catch (RuntimeException e) {
+            log.warn("Ignoring unreadable Jandex index ", url, ": ", e);
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Splits the comma separated members of an indexed class.
+     *
+     * @param value the indexed members
+     * @return the trimmed non empty members
+     */
+    private static String[] split(String value) {
+        List<String> members = new ArrayList<String>();
+
+        for (String member : value.split(",")) {
+            if (!"".equals(member.trim())) {
+                members.add(member.trim());
+            }
+        }
+
+        return members.toArray(new String[members.size()]);
+    }
+}
@@ -0,0 +1,333 @@
+/*
+ * $Id$
+ *
+ * Copyright 2011 samaxes.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.samaxes.stripes.inject;
+
+import java.beans.Introspector;
+import java.lang.reflect.Field;
+import java.lang.reflect.Member;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.annotation.Resource;
+import javax.ejb.EJB;
+import javax.inject.Inject;
+
+import net.sourceforge.stripes.exception.StripesRuntimeException;
+import net.sourceforge.stripes.util.ReflectUtil;
+
+import com.samaxes.stripes.enricher.EJBInjectionPoint;
+import com.samaxes.stripes.enricher.InjectionPoint;
+import com.samaxes.stripes.enricher.InjectorGenerator;
+import com.samaxes.stripes.enricher.ResourceInjectionPoint;
+
+/**
+ * <p>
+ * Immutable description of everything that must be injected into instances of a given class. A plan is compiled once
+ * per class, the first time an instance of that class is enriched, and then shared by all subsequent requests.
+ * </p>
+ * <p>
+ * Injection points are kept in flat arrays, fields first followed by methods, with their annotation attributes already
+ * parsed and their members already made accessible. If enabled, an injector is also generated for the class, see
+ * {@link InjectorGenerator}.
+ * </p>
+ * <p>
+ * Event handlers annotated with {@link HandlerDependencies} get a plan restricted to the dependencies they declare,
+ * see {@link #forHandler(Method)}.
+ * </p>
+ *
+ * @author Samuel Santos
+ * @version $Revision$
+ */
+public final class InjectionPlan {
+
+    private static final EJBInjectionPoint[] NO_EJB_INJECTION_POINTS = new EJBInjectionPoint[0];
+
+    private static final ResourceInjectionPoint[] NO_RESOURCE_INJECTION_POINTS = new ResourceInjectionPoint[0];
+
+    private final Class<?> beanClass;
+
+    private final boolean cdiTarget;
+
+    private final EJBInjectionPoint[] ejbInjectionPoints;
+
+    private final ResourceInjectionPoint[] resourceInjectionPoints;
+
+    private final boolean empty;
+
+    /** Lazily filled in map of event handler to its restricted plan. */
+    private final Map<Method, InjectionPlan> handlerPlanMap = new ConcurrentHashMap<Method, InjectionPlan>();
+
+    private InjectionPlan(Class<?> beanClass, boolean cdiTarget, EJBInjectionPoint[] ejbInjectionPoints,
+            ResourceInjectionPoint[] resourceInjectionPoints) {
+        this.beanClass = beanClass;
+        this.cdiTarget = cdiTarget;
+        this.ejbInjectionPoints = ejbInjectionPoints;
+        this.resourceInjectionPoints = resourceInjectionPoints;
+        this.empty = !cdiTarget && ejbInjectionPoints.length == 0 && resourceInjectionPoints.length == 0;
+    }
+
+    /**
+     * Gets the class this plan was compiled for.
+     *
+     * @return the examined class
+     */
+    public Class<?> getBeanClass() {
+        return beanClass;
+    }
+
+    /**
+     * Whether there is nothing to inject, i.e. no field or method of the class is annotated with @Inject, @EJB or
+     * @Resource. Instances of such classes skip injection entirely.
+     *
+     * @return {@code true} if the plan has no injection point
+     */
+    public boolean isEmpty() {
+        return empty;
+    }
+
+    /**
+     * Whether any field or method of the class is annotated with @Inject.
+     *
+     * @return {@code true} if instances must go through CDI injection
+     */
+    public boolean isCdiTarget() {
+        return cdiTarget;
+    }
+
+    /**
+     * Gets the fields and methods annotated with @EJB, fields first. The returned array is shared and must not be
+     * modified.
+     *
+     * @return the @EJB injection points, never {@code null}
+     */
+    public EJBInjectionPoint[] getEJBInjectionPoints() {
+        return ejbInjectionPoints;
+    }
+
+    /**
+     * Gets the fields and methods annotated with @Resource, fields first. The returned array is shared and must not be
+     * modified.
+     *
+     * @return the @Resource injection points, never {@code null}
+     */
+    public ResourceInjectionPoint[] getResourceInjectionPoints() {
+        return resourceInjectionPoints;
+    }
+
+    /**
+     * Gets the plan of an event handler. If the handler is annotated with {@link HandlerDependencies}, the plan only
+     * holds the injection points it declares. Otherwise it is this plan.
+     *
+     * @param handler the event handler method, may be {@code null}
+     * @return the handler injection plan
+     */
+    public InjectionPlan forHandler(Method handler) {
+        if (handler == null) {
+            return this;
+        }
+
+        InjectionPlan plan = handlerPlanMap.get(handler);
+
+        if (plan == null) {
+            HandlerDependencies dependencies = handler.getAnnotation(HandlerDependencies.class);
+            plan = dependencies == null ? this : restrict(handler, dependencies);
+            handlerPlanMap.put(handler, plan);
+        }
+
+        return plan;
+    }
+
+    /**
+     * Restricts this plan to the dependencies declared by an event handler.
+     *
+     * @param handler the event handler method
+     * @param dependencies the handler declared dependencies
+     * @return the restricted plan
+     */
+    private InjectionPlan restrict(Method handler, HandlerDependencies dependencies) {
+        Set<String> names = new HashSet<String>(Arrays.asList(dependencies.value()));
+        List<EJBInjectionPoint> ejbPoints = new ArrayList<EJBInjectionPoint>();
+        List<ResourceInjectionPoint> resourcePoints = new ArrayList<ResourceInjectionPoint>();
+        Set<String> found = new HashSet<String>();
+
+        for (EJBInjectionPoint injectionPoint : ejbInjectionPoints) {
+            String name = getDependencyName(injectionPoint);
+            if (names.contains(name)) {
+                ejbPoints.add(injectionPoint);
+                found.add(name);
+            }
+        }
+
+        for (ResourceInjectionPoint injectionPoint : resourceInjectionPoints) {
+            String name = getDependencyName(injectionPoint);
+            if (names.contains(name)) {
+                resourcePoints.add(injectionPoint);
+                found.add(name);
+            }
+        }
+
+        names.removeAll(found);
+        if (!names.isEmpty()) {
+            throw new StripesRuntimeException("Event handler " + beanClass.getName() + "." + handler.getName()
+                    + " declares unknown dependencies " + names + ". @HandlerDependencies must name @EJB or "
+                    + "@Resource fields or setter properties.");
+        }
+
+        return new InjectionPlan(beanClass, cdiTarget && dependencies.cdi(),
+                ejbPoints.toArray(new EJBInjectionPoint[ejbPoints.size()]),
+                resourcePoints.toArray(new ResourceInjectionPoint[resourcePoints.size()]));
+    }
+
+    /**
+     * Gets the name under which an injection point is declared by {@link HandlerDependencies}: the field name or the
+     * setter method property name.
+     *
+     * @param injectionPoint the injection point
+     * @return the dependency name
+     */
+    private static String getDependencyName(InjectionPoint injectionPoint) {
+        Member member = injectionPoint.getMember();
+        return injectionPoint.isField() ? member.getName() : Introspector.decapitalize(member.getName().substring(3));
+    }
+
+    /**
+     * Introspects a class and compiles its injection plan. All non-overridden fields and methods are examined,
+     * including protected and private ones. If a field or method is not public an attempt it made to make it
+     * accessible - if it fails a {@link StripesRuntimeException} is thrown. If the class hierarchy is covered by an
+     * {@link InjectionIndex}, only the indexed fields and methods are examined.
+     *
+     * @param clazz the class on which to look for annotated fields and methods
+     * @return the class injection plan
+     */
+    public static InjectionPlan compile(Class<?> clazz) {
+        boolean cdiTarget = false;
+        List<EJBInjectionPoint> ejbInjectionPoints = new ArrayList<EJBInjectionPoint>();
+        List<ResourceInjectionPoint> resourceInjectionPoints = new ArrayList<ResourceInjectionPoint>();
+
+        InjectionIndex index = InjectionIndex.getInstance(clazz.getClassLoader());
+        Collection<Field> fields = index.getFields(clazz);
+        Collection<Method> methods = fields != null ? index.getMethods(clazz) : null;
+
+        if (fields == null || methods == null) {
+            fields = ReflectUtil.getFields(clazz);
+            methods = ReflectUtil.getMethods(clazz);
+        }
+
+        for (Field field : fields) {
+            if (field.isAnnotationPresent(Inject.class)) {
+                cdiTarget = true;
+            }
+
+            if (field.isAnnotationPresent(EJB.class)) {
+                makeAccessible(clazz, field, "@EJB");
+                ejbInjectionPoints.add(new EJBInjectionPoint(field));
+            }
+
+            if (field.isAnnotationPresent(Resource.class)) {
+                makeAccessible(clazz, field, "@Resource");
+                resourceInjectionPoints.add(new ResourceInjectionPoint(field));
+            }
+        }
+
+        for (Method method : methods) {
+            if (method.isAnnotationPresent(Inject.class)) {
+                cdiTarget = true;
+            }
+
+            if (method.isAnnotationPresent(EJB.class)) {
+                makeAccessible(clazz, method, "@EJB");
+                ejbInjectionPoints.add(new EJBInjectionPoint(method));
+            }
+
+            if (method.isAnnotationPresent(Resource.class)) {
+                makeAccessible(clazz, method, "@Resource");
+                resourceInjectionPoints.add(new ResourceInjectionPoint(method));
+            }
+        }
+
+        if (InjectorGenerator.getInstance().isEnabled()) {
+            List<InjectionPoint> injectionPoints = new ArrayList<InjectionPoint>(ejbInjectionPoints);
+            injectionPoints.addAll(resourceInjectionPoints);
+            InjectorGenerator.getInstance().generate(clazz, injectionPoints);
+        }
+
+        return new InjectionPlan(clazz, cdiTarget,
+                ejbInjectionPoints.isEmpty() ? NO_EJB_INJECTION_POINTS : ejbInjectionPoints
+                        .toArray(new EJBInjectionPoint[ejbInjectionPoints.size()]),
+                resourceInjectionPoints.isEmpty() ? NO_RESOURCE_INJECTION_POINTS : resourceInjectionPoints
+                        .toArray(new ResourceInjectionPoint[resourceInjectionPoints.size()]));
+    }
+
+    /**
+     * If the field isn't public, try to make it accessible.
+     *
+     * @param clazz the examined class
+     * @param field the annotated field
+     * @param annotation the annotation name, for error reporting
+     */
+    private static void makeAccessible(Class<?> clazz, Field field, String annotation) {
+        if (!field.isAccessible()) {
+            try {
+                field.setAccessible(true);
+            } catch (SecurityException se) {
+                throw new StripesRuntimeException("Field " + clazz.getName() + "." + field.getName() + " is marked "
+                        + "with " + annotation + " annotation and is not public. An attempt to call "
+                        + "setAccessible(true) resulted in a SecurityException. Please "
+                        + "either make the field public, annotate a public setter instead "
+                        + "or modify your JVM security policy to allow Stripes to setAccessible(true).", se);
+            }
+        }
+    }
+
+    /**
+     * Ensure the method is a single argument setter and, if it isn't public, try to make it accessible.
+     *
+     * @param clazz the examined class
+     * @param method the annotated method
+     * @param annotation the annotation name, for error reporting
+     */
+    private static void makeAccessible(Class<?> clazz, Method method, String annotation) {
+        // Ensure the method has only the one parameter
+        if (method.getParameterTypes().length != 1) {
+            throw new StripesRuntimeException(annotation + " only allowed on single argument methods");
+        }
+        // Ensure the method starts with 'set'
+        if (!method.getName().startsWith("set")) {
+            throw new StripesRuntimeException(annotation + " only allowed on 'set' methods");
+        }
+        // If the method isn't public, try to make it accessible
+        if (!method.isAccessible()) {
+            try {
+                method.setAccessible(true);
+            } catch (SecurityException se) {
+                throw new StripesRuntimeException("Method " + clazz.getName() + "." + method.getName() + " is marked "
+                        + "with " + annotation + " annotation and is not public. An attempt to call "
+                        + "setAccessible(true) resulted in a SecurityException. Please "
+                        + "either make the method public or modify your JVM security "
+                        + "policy to allow Stripes to setAccessible(true).", se);
+            }
+        }
+    }
+}
@@ -0,0 +1,150 @@
+/*
+ * $Id$
+ *
+ * Copyright 2011 samaxes.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.samaxes.stripes.inject;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+
+import org.jboss.jandex.AnnotationInstance;
+import org.jboss.jandex.AnnotationTarget;
+import org.jboss.jandex.ClassInfo;
+import org.jboss.jandex.DotName;
+import org.jboss.jandex.FieldInfo;
+import org.jboss.jandex.Index;
+import org.jboss.jandex.IndexReader;
+import org.jboss.jandex.MethodInfo;
+import org.jboss.jandex.Type;
+
+/**
+ * <p>
+ * Reads a Jandex annotation index, {@value #RESOURCE_NAME}, into the members format of the {@link InjectionIndex}.
+ * Only the classes and the members annotated with {@code @EJB}, {@code @Resource} or {@code @Inject} are kept, the
+ * Jandex index itself is discarded once read.
+ * </p>
+ * <p>
+ * Jandex is an optional dependency, this class must only be used if {@link #isAvailable()} returns {@code true}.
+ * </p>
+ *
+ * @author Samuel Santos
+ * @version $Revision$
+ */
+final class JandexIndexReader {
+
+    /** Location of the Jandex index files, one per jar or classes directory. */
+    static final String RESOURCE_NAME = "META-INF/jandex.idx";
+
+    private static final String INDEX_READER = "org.jboss.jandex.IndexReader";
+
+    private static final String[] INJECTION_ANNOTATIONS = { "javax.ejb.EJB", "javax.annotation.Resource",
+            "javax.inject.Inject" };
+
+    private static final String[] NO_MEMBERS = new String[0];
+
+    /**
+     * Internal constructor; not to be called as this class provides static utilities only.
+     */
+    private JandexIndexReader() {
+        throw new UnsupportedOperationException("No instances permitted");
+    }
+
+    /**
+     * Whether Jandex is on the classpath of the enricher.
+     *
+     * @return {@code true} if Jandex indexes can be read
+     */
+    static boolean isAvailable() {
+        try {
+            Class.forName(INDEX_READER, false, JandexIndexReader.class.getClassLoader());
+            return true;
+        } catch (ClassNotFoundException e) {
+            return false;
+        } catch (LinkageError e) {
+            return false;
+        }
+    }
+
+    /**
+     * Reads a Jandex index and adds its classes to the injection index members. Every class known to the Jandex index
+     * is added, with the fields and methods it declares that are annotated for injection.
+     *
+     * @param in the Jandex index stream
+     * @param membersMap annotated members by declaring class name, fields as {@code name} and methods as
+     *            {@code name(types)}
+     * @throws IOException if the stream is not a Jandex index supported by the Jandex version on the classpath
+     */
+    static void read(InputStream in, Map<String, String[]> membersMap) throws IOException {
+        Index index = new IndexReader(in).read();
+        Map<String, Set<String>> annotatedMembersMap = new LinkedHashMap<String, Set<String>>();
+
+        for (String annotation : INJECTION_ANNOTATIONS) {
+            for (AnnotationInstance instance : index.getAnnotations(DotName.createSimple(annotation))) {
+                AnnotationTarget target = instance.target();
+
+                if (target.kind() == AnnotationTarget.Kind.FIELD) {
+                    FieldInfo field = target.asField();
+                    getMembers(annotatedMembersMap, field.declaringClass()).add(field.name());
+                } else if (target.kind() == AnnotationTarget.Kind.METHOD) {
+                    MethodInfo method = target.asMethod();
+                    getMembers(annotatedMembersMap, method.declaringClass()).add(getSignature(method));
+                }
+            }
+        }
+
+        for (ClassInfo classInfo : index.getKnownClasses()) {
+            String className = classInfo.name().toString();
+            Set<String> members = annotatedMembersMap.get(className);
+            membersMap.put(className, members == null ? NO_MEMBERS : members.toArray(new String[members.size()]));
+        }
+    }
+
+    private static Set<String> getMembers(Map<String, Set<String>> annotatedMembersMap, ClassInfo classInfo) {
+        String className = classInfo.name().toString();
+        Set<String> members = annotatedMembersMap.get(className);
+
+        if (members == null) {
+            members = new LinkedHashSet<String>();
+            annotatedMembersMap.put(className, members);
+        }
+
+        return members;
+    }
+
+    /**
+     * Builds the indexed signature of a method.
+     *
+     * @param method the method
+     * @return the method name followed by its parameter class names
+     */
+    private static String getSignature(MethodInfo method) {
+        StringBuilder sb = new StringBuilder(method.name()).append('(');
+        int i = 0;
+
+        for (Type parameterType : method.parameters()) {
+            if (i++ > 0) {
+                sb.append(';');
+            }
+            sb.append(parameterType.name());
+        }
+
+        return sb.append(')').toString();
+    }
+}
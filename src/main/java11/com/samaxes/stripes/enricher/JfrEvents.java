@@ -0,0 +1,191 @@
+/*
+ * $Id$
+ *
+ * Copyright 2011 samaxes.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.samaxes.stripes.enricher;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.EventType;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * Java Flight Recorder events of the injection enricher, used through {@link InjectionEvents}. This class is compiled
+ * for Java 11 into the {@code META-INF/versions/11} directory of the multi-release jar. On older Java versions, a
+ * version that creates no event is used instead.
+ *
+ * @author Samuel Santos
+ * @version $Revision$
+ */
+final class JfrEvents {
+
+    private static final EventType injectionType = EventType.getEventType(InjectionEvent.class);
+
+    private static final EventType bindType = EventType.getEventType(BindEvent.class);
+
+    private static final EventType jndiLookupType = EventType.getEventType(JndiLookupEvent.class);
+
+    private static final EventType cdiInjectType = EventType.getEventType(CdiInjectEvent.class);
+
+    /**
+     * Internal constructor; not to be called as this class provides static utilities only.
+     */
+    private JfrEvents() {
+        throw new UnsupportedOperationException("No instances permitted");
+    }
+
+    static Object beginInjection() {
+        if (!injectionType.isEnabled()) {
+            return null;
+        }
+
+        InjectionEvent event = new InjectionEvent();
+        event.begin();
+        return event;
+    }
+
+    static void endInjection(Object event, Class<?> beanClass, boolean success) {
+        InjectionEvent injectionEvent = (InjectionEvent) event;
+        injectionEvent.end();
+        if (injectionEvent.shouldCommit()) {
+            injectionEvent.beanClass = beanClass;
+            injectionEvent.success = success;
+            injectionEvent.commit();
+        }
+    }
+
+    static Object beginBind() {
+        if (!bindType.isEnabled()) {
+            return null;
+        }
+
+        BindEvent event = new BindEvent();
+        event.begin();
+        return event;
+    }
+
+    static void endBind(Object event, String enricher, Class<?> beanClass, int injectionPoints, boolean success) {
+        BindEvent bindEvent = (BindEvent) event;
+        bindEvent.end();
+        if (bindEvent.shouldCommit()) {
+            bindEvent.enricher = enricher;
+            bindEvent.beanClass = beanClass;
+            bindEvent.injectionPoints = injectionPoints;
+            bindEvent.success = success;
+            bindEvent.commit();
+        }
+    }
+
+    static Object beginJndiLookup() {
+        if (!jndiLookupType.isEnabled()) {
+            return null;
+        }
+
+        JndiLookupEvent event = new JndiLookupEvent();
+        event.begin();
+        return event;
+    }
+
+    static void endJndiLookup(Object event, String jndiName, boolean found) {
+        JndiLookupEvent lookupEvent = (JndiLookupEvent) event;
+        lookupEvent.end();
+        if (lookupEvent.shouldCommit()) {
+            lookupEvent.jndiName = jndiName;
+            lookupEvent.found = found;
+            lookupEvent.commit();
+        }
+    }
+
+    static Object beginCdiInject() {
+        if (!cdiInjectType.isEnabled()) {
+            return null;
+        }
+
+        CdiInjectEvent event = new CdiInjectEvent();
+        event.begin();
+        return event;
+    }
+
+    static void endCdiInject(Object event, Class<?> beanClass, boolean success) {
+        CdiInjectEvent injectEvent = (CdiInjectEvent) event;
+        injectEvent.end();
+        if (injectEvent.shouldCommit()) {
+            injectEvent.beanClass = beanClass;
+            injectEvent.success = success;
+            injectEvent.commit();
+        }
+    }
+
+    @Name("com.samaxes.stripes.Injection")
+    @Label("ActionBean Injection")
+    @Description("Injection of all the dependencies of an ActionBean")
+    @Category({ "Stripes", "Injection Enricher" })
+    static final class InjectionEvent extends Event {
+
+        @Label("Bean Class")
+        Class<?> beanClass;
+
+        @Label("Success")
+        boolean success;
+    }
+
+    @Name("com.samaxes.stripes.Bind")
+    @Label("Enricher Bind")
+    @Description("Injection of the @Inject, @EJB or @Resource dependencies of an ActionBean")
+    @Category({ "Stripes", "Injection Enricher" })
+    static final class BindEvent extends Event {
+
+        @Label("Enricher")
+        String enricher;
+
+        @Label("Bean Class")
+        Class<?> beanClass;
+
+        @Label("Injection Points")
+        int injectionPoints;
+
+        @Label("Success")
+        boolean success;
+    }
+
+    @Name("com.samaxes.stripes.JndiLookup")
+    @Label("JNDI Lookup")
+    @Description("JNDI lookup of an EJB candidate name or of a resource")
+    @Category({ "Stripes", "Injection Enricher" })
+    static final class JndiLookupEvent extends Event {
+
+        @Label("JNDI Name")
+        String jndiName;
+
+        @Label("Found")
+        boolean found;
+    }
+
+    @Name("com.samaxes.stripes.CdiInject")
+    @Label("CDI Inject")
+    @Description("CDI injection target inject call")
+    @Category({ "Stripes", "Injection Enricher" })
+    static final class CdiInjectEvent extends Event {
+
+        @Label("Bean Class")
+        Class<?> beanClass;
+
+        @Label("Success")
+        boolean success;
+    }
+}
@@ -0,0 +1,63 @@
+/*
+ * $Id$
+ *
+ * Copyright 2011 samaxes.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.samaxes.stripes.action;
+
+import javax.annotation.Resource;
+import javax.ejb.EJB;
+
+import net.sourceforge.stripes.action.DefaultHandler;
+import net.sourceforge.stripes.action.DontValidate;
+import net.sourceforge.stripes.action.Resolution;
+import net.sourceforge.stripes.action.StreamingResolution;
+
+import com.samaxes.stripes.business.FooService;
+
+/**
+ * Parallel lookups example action bean, with an EJB looked up by its global name, an EJB whose name is probed and a
+ * resource of the component environment.
+ *
+ * @author Samuel Santos
+ * @version $Revision$
+ */
+public class ParallelActionBean extends BaseActionBean {
+
+    @EJB(lookup = "java:global/stripes-enricher/business/FooServiceBean")
+    private FooService fooService;
+
+    @EJB
+    private FooService probedFooService;
+
+    @Resource(name = "greeting")
+    private String greeting;
+
+    /**
+     * Goes to the example list page.
+     *
+     * @return a character data stream to the client
+     */
+    @DontValidate
+    @DefaultHandler
+    public Resolution main() {
+        String name = "Earthlings";
+        if (!fooService.greet(name).equals(probedFooService.greet(name))) {
+            return new StreamingResolution("text/plain", "EJBs do not match");
+        }
+
+        return new StreamingResolution("text/plain", greeting + name);
+    }
+}
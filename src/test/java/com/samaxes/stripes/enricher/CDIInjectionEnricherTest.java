@@ -0,0 +1,145 @@
+/*
+ * $Id$
+ *
+ * Copyright 2011 samaxes.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.samaxes.stripes.enricher;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.enterprise.context.spi.CreationalContext;
+import javax.enterprise.inject.spi.BeanManager;
+import javax.enterprise.inject.spi.InjectionTarget;
+
+import org.junit.After;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.samaxes.stripes.action.CDIActionBean;
+import com.samaxes.stripes.naming.InMemoryInitialContextFactory;
+
+/**
+ * Injects ActionBeans with a stub BeanManager, and checks their creational contexts are released at the end of the
+ * request, or dropped with the ActionBeans when the request never completes. Also checks the BeanManager of a
+ * deployment is looked up once and kept until the deployment is undeployed.
+ *
+ * @author Samuel Santos
+ * @version $Revision$
+ */
+public class CDIInjectionEnricherTest {
+
+    private static final String BEAN_MANAGER_JNDI_NAME = "java:comp/BeanManager";
+
+    private final AtomicInteger releasedContexts = new AtomicInteger();
+
+    @BeforeClass
+    public static void installNaming() {
+        InMemoryInitialContextFactory.install();
+    }
+
+    @After
+    public void reset() {
+        CDIInjectionEnricher.clear();
+        InMemoryInitialContextFactory.clear();
+    }
+
+    @Test
+    public void shouldReleaseCreationalContextOnRelease() {
+        CDIActionBean bean = new CDIActionBean();
+        int outstanding = CDIInjectionEnricher.getOutstandingCreationalContextCount();
+
+        CDIInjectionEnricher.injectNonContextualInstance(createBeanManager(), createInjectionTarget(), bean);
+        assertEquals(outstanding + 1, CDIInjectionEnricher.getOutstandingCreationalContextCount());
+
+        CDIInjectionEnricher.release(bean);
+        assertEquals(outstanding, CDIInjectionEnricher.getOutstandingCreationalContextCount());
+        assertEquals(1, releasedContexts.get());
+    }
+
+    @Test
+    public void shouldDropCreationalContextOfCollectedBean() throws Exception {
+        int outstanding = CDIInjectionEnricher.getOutstandingCreationalContextCount();
+
+        CDIInjectionEnricher.injectNonContextualInstance(createBeanManager(), createInjectionTarget(),
+                new CDIActionBean());
+        assertEquals(outstanding + 1, CDIInjectionEnricher.getOutstandingCreationalContextCount());
+
+        for (int i = 0; i < 50 && CDIInjectionEnricher.getOutstandingCreationalContextCount() > outstanding; i++) {
+            System.gc();
+            Thread.sleep(20L);
+        }
+        assertEquals(outstanding, CDIInjectionEnricher.getOutstandingCreationalContextCount());
+    }
+
+    @Test
+    public void shouldKeepBeanManagerUntilCleared() throws Exception {
+        BeanManager beanManager = createBeanManager();
+        InMemoryInitialContextFactory.bind(BEAN_MANAGER_JNDI_NAME, beanManager);
+
+        assertSame(beanManager, CDIInjectionEnricher.getBeanManager());
+        InMemoryInitialContextFactory.unbind(BEAN_MANAGER_JNDI_NAME);
+        beanManager = null;
+        System.gc();
+        assertEquals(1, InMemoryInitialContextFactory.getLookupCount(BEAN_MANAGER_JNDI_NAME));
+        assertSame(CDIInjectionEnricher.getBeanManager(), CDIInjectionEnricher.getBeanManager());
+        assertEquals(1, InMemoryInitialContextFactory.getLookupCount(BEAN_MANAGER_JNDI_NAME));
+
+        CDIInjectionEnricher.clear();
+        InMemoryInitialContextFactory.bind(BEAN_MANAGER_JNDI_NAME, createBeanManager());
+        CDIInjectionEnricher.getBeanManager();
+        assertEquals(2, InMemoryInitialContextFactory.getLookupCount(BEAN_MANAGER_JNDI_NAME));
+    }
+
+    private BeanManager createBeanManager() {
+        return stub(BeanManager.class, new InvocationHandler() {
+            @Override
+            public Object invoke(Object proxy, Method method, Object[] args) {
+                if ("createCreationalContext".equals(method.getName())) {
+                    return stub(CreationalContext.class, new InvocationHandler() {
+                        @Override
+                        public Object invoke(Object proxy, Method method, Object[] args) {
+                            if ("release".equals(method.getName())) {
+                                releasedContexts.incrementAndGet();
+                            }
+                            return null;
+                        }
+                    });
+                }
+                throw new UnsupportedOperationException(method.getName());
+            }
+        });
+    }
+
+    @SuppressWarnings("unchecked")
+    private InjectionTarget<Object> createInjectionTarget() {
+        return stub(InjectionTarget.class, new InvocationHandler() {
+            @Override
+            public Object invoke(Object proxy, Method method, Object[] args) {
+                return null;
+            }
+        });
+    }
+
+    private static <T> T stub(Class<T> type, InvocationHandler handler) {
+        return type.cast(Proxy.newProxyInstance(CDIInjectionEnricherTest.class.getClassLoader(),
+                new Class<?>[] { type }, handler));
+    }
+}
@@ -0,0 +1,140 @@
+/*
+ * $Id$
+ *
+ * Copyright 2011 samaxes.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.samaxes.stripes.enricher;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import javax.naming.NamingException;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.samaxes.stripes.business.FooService;
+import com.samaxes.stripes.business.FooServiceBean;
+import com.samaxes.stripes.naming.InMemoryInitialContextFactory;
+
+/**
+ * Looks up an EJB without a lookup attribute, so that its JNDI name is probed, and checks the name found is remembered
+ * for the deployment that found it only. Also checks the application and module names the candidate names are built
+ * from are looked up once per deployment.
+ *
+ * @author Samuel Santos
+ * @version $Revision$
+ */
+public class EJBInjectionEnricherTest {
+
+    private static final String FIRST_CANDIDATE_NAME = "java:global/stripes-enricher/business/FooService!"
+            + FooService.class.getName();
+
+    private static final String EJB_JNDI_NAME = "java:global/stripes-enricher/business/FooServiceBean";
+
+    private ClassLoader classLoader;
+
+    @BeforeClass
+    public static void installNaming() {
+        InMemoryInitialContextFactory.install();
+    }
+
+    @Before
+    public void bindEJB() {
+        classLoader = Thread.currentThread().getContextClassLoader();
+        InMemoryInitialContextFactory.bind("java:app/AppName", "stripes-enricher");
+        InMemoryInitialContextFactory.bind("java:module/ModuleName", "business");
+        InMemoryInitialContextFactory.bind(EJB_JNDI_NAME, new FooServiceBean());
+    }
+
+    @After
+    public void reset() {
+        Thread.currentThread().setContextClassLoader(classLoader);
+        EJBInjectionEnricher.clear();
+        LookupFailureCache.getInstance().clear();
+        InMemoryInitialContextFactory.clear();
+    }
+
+    @Test
+    public void shouldLookUpResolvedNameOnly() throws Exception {
+        assertTrue(EJBInjectionEnricher.lookupEJB(FooService.class, null, null) instanceof FooServiceBean);
+        assertEquals(1, InMemoryInitialContextFactory.getLookupCount(FIRST_CANDIDATE_NAME));
+        assertEquals(1, InMemoryInitialContextFactory.getLookupCount(EJB_JNDI_NAME));
+
+        assertTrue(EJBInjectionEnricher.lookupEJB(FooService.class, null, null) instanceof FooServiceBean);
+        assertEquals(1, InMemoryInitialContextFactory.getLookupCount(FIRST_CANDIDATE_NAME));
+        assertEquals(2, InMemoryInitialContextFactory.getLookupCount(EJB_JNDI_NAME));
+        assertEquals(1, InMemoryInitialContextFactory.getLookupCount("java:app/AppName"));
+    }
+
+    @Test
+    public void shouldLookUpDeploymentNamesOncePerDeployment() throws Exception {
+        EJBInjectionEnricher.lookupEJB(FooService.class, null, null);
+        try {
+            EJBInjectionEnricher.lookupEJB(Runnable.class, null, null);
+            fail("Lookup of an unbound EJB succeeded");
+        } catch (NamingException e) {
+            assertTrue(e.getMessage().contains("java:global/stripes-enricher/business/Runnable!"
+                    + Runnable.class.getName()));
+        }
+        assertEquals(1, InMemoryInitialContextFactory.getLookupCount("java:app/AppName"));
+        assertEquals(1, InMemoryInitialContextFactory.getLookupCount("java:module/ModuleName"));
+
+        EJBInjectionEnricher.clear();
+        EJBInjectionEnricher.lookupEJB(FooService.class, null, null);
+        assertEquals(2, InMemoryInitialContextFactory.getLookupCount("java:app/AppName"));
+        assertEquals(2, InMemoryInitialContextFactory.getLookupCount("java:module/ModuleName"));
+    }
+
+    @Test
+    public void shouldNotShareResolvedNameBetweenDeployments() throws Exception {
+        EJBInjectionEnricher.lookupEJB(FooService.class, null, null);
+
+        ClassLoader otherDeployment = new ClassLoader(classLoader) {
+        };
+        Thread.currentThread().setContextClassLoader(otherDeployment);
+        EJBInjectionEnricher.lookupEJB(FooService.class, null, null);
+        assertEquals(2, InMemoryInitialContextFactory.getLookupCount(FIRST_CANDIDATE_NAME));
+        assertEquals(2, InMemoryInitialContextFactory.getLookupCount("java:app/AppName"));
+
+        EJBInjectionEnricher.lookupEJB(FooService.class, null, null);
+        assertEquals(2, InMemoryInitialContextFactory.getLookupCount(FIRST_CANDIDATE_NAME));
+        NamingContextProvider.getInstance().close();
+    }
+
+    @Test
+    public void shouldForgetResolvedNamesOfClearedDeploymentOnly() throws Exception {
+        EJBInjectionEnricher.lookupEJB(FooService.class, null, null);
+
+        ClassLoader otherDeployment = new ClassLoader(classLoader) {
+        };
+        Thread.currentThread().setContextClassLoader(otherDeployment);
+        EJBInjectionEnricher.lookupEJB(FooService.class, null, null);
+        EJBInjectionEnricher.clear();
+        NamingContextProvider.getInstance().close();
+        Thread.currentThread().setContextClassLoader(classLoader);
+
+        EJBInjectionEnricher.lookupEJB(FooService.class, null, null);
+        assertEquals(2, InMemoryInitialContextFactory.getLookupCount(FIRST_CANDIDATE_NAME));
+
+        Thread.currentThread().setContextClassLoader(otherDeployment);
+        EJBInjectionEnricher.lookupEJB(FooService.class, null, null);
+        assertEquals(3, InMemoryInitialContextFactory.getLookupCount(FIRST_CANDIDATE_NAME));
+        NamingContextProvider.getInstance().close();
+    }
+}
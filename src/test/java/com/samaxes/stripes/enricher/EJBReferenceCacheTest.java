@@ -0,0 +1,122 @@
+/*
+ * $Id$
+ *
+ * Copyright 2011 samaxes.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.samaxes.stripes.enricher;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+import java.util.Collections;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.samaxes.stripes.business.FooService;
+import com.samaxes.stripes.business.FooServiceBean;
+import com.samaxes.stripes.naming.InMemoryInitialContextFactory;
+
+/**
+ * Looks up the same EJB several times with the {@link EJBReferenceCache} enabled, and checks its reference is shared
+ * within a deployment only, unless it is not shareable or its name is excluded.
+ *
+ * @author Samuel Santos
+ * @version $Revision$
+ */
+public class EJBReferenceCacheTest {
+
+    private static final String EJB_JNDI_NAME = "java:global/stripes-enricher/business/FooServiceBean";
+
+    private final EJBReferenceCache cache = EJBReferenceCache.getInstance();
+
+    private ClassLoader classLoader;
+
+    @BeforeClass
+    public static void installNaming() {
+        InMemoryInitialContextFactory.install();
+    }
+
+    @Before
+    public void bindEJB() {
+        classLoader = Thread.currentThread().getContextClassLoader();
+        InMemoryInitialContextFactory.bind(EJB_JNDI_NAME, new FooServiceBean());
+    }
+
+    @After
+    public void reset() {
+        Thread.currentThread().setContextClassLoader(classLoader);
+        cache.setExcludedNames(Collections.<String> emptySet());
+        cache.setEnabled(false);
+        EJBInjectionEnricher.clear();
+        InMemoryInitialContextFactory.clear();
+    }
+
+    @Test
+    public void shouldNotCacheReferencesByDefault() throws Exception {
+        lookUp(true);
+        lookUp(true);
+
+        assertEquals(2, InMemoryInitialContextFactory.getLookupCount(EJB_JNDI_NAME));
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void shouldShareReferenceWithinDeployment() throws Exception {
+        cache.setEnabled(true);
+        Object reference = lookUp(true);
+
+        assertSame(reference, lookUp(true));
+        assertEquals(1, InMemoryInitialContextFactory.getLookupCount(EJB_JNDI_NAME));
+
+        ClassLoader otherDeployment = new ClassLoader(classLoader) {
+        };
+        Thread.currentThread().setContextClassLoader(otherDeployment);
+        InMemoryInitialContextFactory.bind(EJB_JNDI_NAME, new FooServiceBean());
+        Object otherReference = lookUp(true);
+        assertNotSame(reference, otherReference);
+        assertEquals(2, InMemoryInitialContextFactory.getLookupCount(EJB_JNDI_NAME));
+        assertEquals(2, cache.size());
+
+        cache.clear();
+        NamingContextProvider.getInstance().close();
+        assertEquals(1, cache.size());
+        Thread.currentThread().setContextClassLoader(classLoader);
+        assertSame(reference, lookUp(true));
+    }
+
+    @Test
+    public void shouldLookUpUnshareableAndExcludedReferencesEveryTime() throws Exception {
+        cache.setEnabled(true);
+        lookUp(false);
+        lookUp(false);
+        assertEquals(2, InMemoryInitialContextFactory.getLookupCount(EJB_JNDI_NAME));
+        assertEquals(0, cache.size());
+
+        lookUp(true);
+        assertEquals(1, cache.size());
+        cache.setExcludedNames(Collections.singleton(EJB_JNDI_NAME));
+        assertEquals(0, cache.size());
+        lookUp(true);
+        assertEquals(4, InMemoryInitialContextFactory.getLookupCount(EJB_JNDI_NAME));
+    }
+
+    private static Object lookUp(boolean shareable) throws Exception {
+        return EJBInjectionEnricher.lookupEJB(FooService.class, EJB_JNDI_NAME, null, shareable);
+    }
+}
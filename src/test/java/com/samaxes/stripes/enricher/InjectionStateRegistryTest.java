@@ -0,0 +1,146 @@
+/*
+ * $Id$
+ *
+ * Copyright 2011 samaxes.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.samaxes.stripes.enricher;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import javax.annotation.Resource;
+import javax.ejb.EJB;
+
+import net.sourceforge.stripes.action.ActionBean;
+import net.sourceforge.stripes.action.SessionScope;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.samaxes.stripes.action.BaseActionBean;
+import com.samaxes.stripes.business.FooService;
+import com.samaxes.stripes.business.FooServiceBean;
+import com.samaxes.stripes.inject.InjectionPlan;
+import com.samaxes.stripes.naming.InMemoryInitialContextFactory;
+
+/**
+ * Binds the same ActionBean instance twice, as Stripes does on each request for a session scoped ActionBean, and
+ * checks its dependencies are only looked up the first time, until its injection state is discarded. Request scoped
+ * ActionBeans are looked up every time.
+ *
+ * @author Samuel Santos
+ * @version $Revision$
+ */
+public class InjectionStateRegistryTest {
+
+    private static final String EJB_JNDI_NAME = "java:global/stripes-enricher/business/FooServiceBean";
+
+    private static final String GREETING_JNDI_NAME = "java:comp/env/greeting";
+
+    private static final InjectionPlan REQUEST_PLAN = InjectionPlan.compile(RequestActionBean.class);
+
+    private static final InjectionPlan SESSION_PLAN = InjectionPlan.compile(SessionActionBean.class);
+
+    @BeforeClass
+    public static void installNaming() {
+        InMemoryInitialContextFactory.install();
+    }
+
+    @Before
+    public void bindDependencies() {
+        InMemoryInitialContextFactory.bind(EJB_JNDI_NAME, new FooServiceBean());
+        InMemoryInitialContextFactory.bind(GREETING_JNDI_NAME, "Hello ");
+    }
+
+    @After
+    public void clearNaming() {
+        InMemoryInitialContextFactory.clear();
+    }
+
+    @Test
+    public void shouldInjectSessionScopedBeanOnce() throws Exception {
+        SessionActionBean bean = new SessionActionBean();
+
+        bind(bean);
+        bind(bean);
+
+        assertEquals(1, InMemoryInitialContextFactory.getLookupCount(EJB_JNDI_NAME));
+        assertEquals(1, InMemoryInitialContextFactory.getLookupCount(GREETING_JNDI_NAME));
+        assertEquals("Hello ", bean.greeting);
+        InjectionStateRegistry.getInstance().discard(bean);
+    }
+
+    @Test
+    public void shouldInjectRequestScopedBeanEveryTime() throws Exception {
+        RequestActionBean bean = new RequestActionBean();
+
+        bind(bean);
+        bind(bean);
+
+        assertNull(InjectionStateRegistry.getInstance().get(bean));
+        assertEquals(2, InMemoryInitialContextFactory.getLookupCount(EJB_JNDI_NAME));
+        assertEquals(2, InMemoryInitialContextFactory.getLookupCount(GREETING_JNDI_NAME));
+    }
+
+    @Test
+    public void shouldInjectAgainOnceStateIsDiscarded() throws Exception {
+        SessionActionBean bean = new SessionActionBean();
+        EJBInjectionPoint ejbInjectionPoint = SESSION_PLAN.getEJBInjectionPoints()[0];
+
+        bind(bean);
+        assertTrue(InjectionStateRegistry.getInstance().get(bean).isInjected(ejbInjectionPoint));
+
+        InjectionStateRegistry.getInstance().discard(bean);
+        assertFalse(InjectionStateRegistry.getInstance().get(bean).isInjected(ejbInjectionPoint));
+
+        bind(bean);
+        assertEquals(2, InMemoryInitialContextFactory.getLookupCount(EJB_JNDI_NAME));
+        assertEquals(2, InMemoryInitialContextFactory.getLookupCount(GREETING_JNDI_NAME));
+        InjectionStateRegistry.getInstance().discard(bean);
+    }
+
+    private static void bind(ActionBean bean) throws Exception {
+        InjectionPlan plan = bean instanceof SessionActionBean ? SESSION_PLAN : REQUEST_PLAN;
+        EJBInjectionEnricher.bind(bean, plan.getEJBInjectionPoints());
+        ResourceInjectionEnricher.bind(bean, plan.getResourceInjectionPoints());
+    }
+
+    /**
+     * Request scoped ActionBean with an EJB field and a resource setter, which is invoked on every bind.
+     */
+    public static class RequestActionBean extends BaseActionBean {
+
+        @EJB(lookup = EJB_JNDI_NAME)
+        FooService fooService;
+
+        String greeting;
+
+        @Resource(name = "greeting")
+        public void setGreeting(String greeting) {
+            this.greeting = greeting;
+        }
+    }
+
+    /**
+     * Session scoped ActionBean with the same dependencies.
+     */
+    @SessionScope
+    public static class SessionActionBean extends RequestActionBean {
+    }
+}
@@ -0,0 +1,167 @@
+/*
+ * $Id$
+ *
+ * Copyright 2011 samaxes.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.samaxes.stripes.enricher;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assume.assumeTrue;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.reflect.Method;
+
+import javax.annotation.Resource;
+import javax.ejb.EJB;
+
+import org.junit.After;
+import org.junit.Test;
+
+import com.samaxes.stripes.action.BaseActionBean;
+import com.samaxes.stripes.business.FooService;
+import com.samaxes.stripes.business.FooServiceBean;
+import com.samaxes.stripes.inject.InjectionPlan;
+
+/**
+ * Compiles the injection plan of ActionBeans with private, package private and primitive injection points declared at
+ * two levels of their hierarchy, and checks they are all injected through generated injectors. Generation tests are
+ * skipped before Java 15, where injectors cannot be hidden nestmates of the classes they inject.
+ *
+ * @author Samuel Santos
+ * @version $Revision$
+ */
+public class InjectorGeneratorTest {
+
+    @After
+    public void disableGeneration() {
+        InjectorGenerator.getInstance().setEnabled(false);
+    }
+
+    @Test
+    public void shouldNotGenerateInjectorsByDefault() {
+        InjectionPlan plan = InjectionPlan.compile(GeneratedActionBean.class);
+
+        for (InjectionPoint injectionPoint : plan.getResourceInjectionPoints()) {
+            assertNull(injectionPoint.getInjector());
+        }
+    }
+
+    @Test
+    public void shouldInjectPrivateMembersThroughGeneratedInjectors() throws Exception {
+        enableGeneration();
+        InjectionPlan plan = InjectionPlan.compile(GeneratedActionBean.class);
+        ResourceInjectionPoint[] resourceInjectionPoints = plan.getResourceInjectionPoints();
+        EJBInjectionPoint[] ejbInjectionPoints = plan.getEJBInjectionPoints();
+        assertEquals(3, resourceInjectionPoints.length);
+        assertEquals(1, ejbInjectionPoints.length);
+
+        GeneratedActionBean bean = new GeneratedActionBean();
+        FooService fooService = new FooServiceBean();
+        for (ResourceInjectionPoint injectionPoint : resourceInjectionPoints) {
+            assertNotNull(injectionPoint + " has no injector", injectionPoint.getInjector());
+            String name = injectionPoint.getMember().getName();
+            if ("greeting".equals(name)) {
+                injectionPoint.inject(bean, "Hello ");
+                assertEquals("Hello ", injectionPoint.getValue(bean));
+            } else if ("count".equals(name)) {
+                injectionPoint.inject(bean, 42);
+                assertEquals(42, injectionPoint.getValue(bean));
+            } else {
+                injectionPoint.inject(bean, new Secret());
+                assertNotNull(injectionPoint.getValue(bean));
+            }
+        }
+        assertNotNull(ejbInjectionPoints[0].getInjector());
+        ejbInjectionPoints[0].inject(bean, fooService);
+
+        assertEquals("Hello ", bean.getGreeting());
+        assertEquals(42, bean.count);
+        assertNotNull(bean.secret);
+        assertSame(fooService, bean.fooService);
+    }
+
+    @Test
+    public void shouldGenerateOneInjectorPerDeclaringClass() {
+        enableGeneration();
+        InjectionPlan plan = InjectionPlan.compile(GeneratedActionBean.class);
+        BeanInjector baseInjector = null;
+        BeanInjector injector = null;
+
+        for (ResourceInjectionPoint injectionPoint : plan.getResourceInjectionPoints()) {
+            if (injectionPoint.getMember().getDeclaringClass() == GeneratedBaseActionBean.class) {
+                baseInjector = injectionPoint.getInjector();
+            } else {
+                assertSame(injector == null ? injectionPoint.getInjector() : injector, injectionPoint.getInjector());
+                injector = injectionPoint.getInjector();
+            }
+        }
+
+        assertNotNull(baseInjector);
+        assertNotNull(injector);
+        assertNotSame(baseInjector, injector);
+        assertSame(injector, plan.getEJBInjectionPoints()[0].getInjector());
+    }
+
+    private static void enableGeneration() {
+        boolean hiddenClasses = false;
+        for (Method method : MethodHandles.Lookup.class.getMethods()) {
+            hiddenClasses |= "defineHiddenClass".equals(method.getName());
+        }
+        assumeTrue(hiddenClasses);
+        InjectorGenerator.getInstance().setEnabled(true);
+    }
+
+    /**
+     * Non public superclass with a private field.
+     */
+    static class GeneratedBaseActionBean extends BaseActionBean {
+
+        @Resource(name = "greeting")
+        private String greeting;
+
+        String getGreeting() {
+            return greeting;
+        }
+    }
+
+    /**
+     * Non public class with a package private primitive field, a private field of a private type and a private setter.
+     */
+    static class GeneratedActionBean extends GeneratedBaseActionBean {
+
+        @Resource(name = "count")
+        int count;
+
+        @Resource(name = "secret")
+        private Secret secret;
+
+        private FooService fooService;
+
+        @EJB(lookup = "java:global/stripes-enricher/business/FooServiceBean")
+        private void setFooService(FooService fooService) {
+            this.fooService = fooService;
+        }
+    }
+
+    /**
+     * Private injected type.
+     */
+    private static class Secret {
+    }
+}
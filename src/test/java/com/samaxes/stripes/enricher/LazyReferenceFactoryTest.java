@@ -0,0 +1,111 @@
+/*
+ * $Id$
+ *
+ * Copyright 2011 samaxes.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.samaxes.stripes.enricher;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import net.sourceforge.stripes.exception.StripesRuntimeException;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.samaxes.stripes.action.EJBActionBean;
+import com.samaxes.stripes.action.ResourceActionBean;
+import com.samaxes.stripes.business.FooService;
+import com.samaxes.stripes.business.FooServiceBean;
+import com.samaxes.stripes.inject.InjectionPlan;
+import com.samaxes.stripes.naming.InMemoryInitialContextFactory;
+
+/**
+ * Injects ActionBeans with lazy references enabled, and checks interface typed dependencies are only looked up when
+ * first used, and other dependencies when injected.
+ *
+ * @author Samuel Santos
+ * @version $Revision$
+ */
+public class LazyReferenceFactoryTest {
+
+    private static final String EJB_JNDI_NAME = "java:global/stripes-enricher/business/FooServiceBean";
+
+    private static final String GREETING_JNDI_NAME = "java:comp/env/greeting";
+
+    private final EJBInjectionPoint[] ejbInjectionPoints = InjectionPlan.compile(EJBActionBean.class)
+            .getEJBInjectionPoints();
+
+    @BeforeClass
+    public static void installNaming() {
+        InMemoryInitialContextFactory.install();
+    }
+
+    @Before
+    public void enableLazyReferences() {
+        LazyReferenceFactory.getInstance().setEnabled(true);
+    }
+
+    @After
+    public void reset() {
+        LazyReferenceFactory.getInstance().setEnabled(false);
+        EJBInjectionEnricher.clear();
+        InMemoryInitialContextFactory.clear();
+    }
+
+    @Test
+    public void shouldLookUpOnFirstUse() throws Exception {
+        InMemoryInitialContextFactory.bind(EJB_JNDI_NAME, new FooServiceBean());
+        EJBActionBean bean = new EJBActionBean();
+
+        EJBInjectionEnricher.bind(bean, ejbInjectionPoints);
+        FooService fooService = (FooService) ejbInjectionPoints[0].getValue(bean);
+        assertEquals(0, InMemoryInitialContextFactory.getLookupCount(EJB_JNDI_NAME));
+
+        String greeting = fooService.greet("Earthlings");
+        assertEquals(new FooServiceBean().greet("Earthlings"), greeting);
+        fooService.greet("Earthlings");
+        assertEquals(1, InMemoryInitialContextFactory.getLookupCount(EJB_JNDI_NAME));
+    }
+
+    @Test
+    public void shouldReportMissingDependencyOnFirstUse() throws Exception {
+        EJBActionBean bean = new EJBActionBean();
+
+        EJBInjectionEnricher.bind(bean, ejbInjectionPoints);
+        FooService fooService = (FooService) ejbInjectionPoints[0].getValue(bean);
+        try {
+            fooService.greet("Earthlings");
+            fail("Lazy reference to an unbound EJB resolved");
+        } catch (StripesRuntimeException e) {
+            assertTrue(e.getMessage().contains(FooService.class.getName()));
+        }
+    }
+
+    @Test
+    public void shouldLookUpClassTypedDependencyOnInjection() throws Exception {
+        InMemoryInitialContextFactory.bind(GREETING_JNDI_NAME, "Hello ");
+        ResourceInjectionPoint[] injectionPoints = InjectionPlan.compile(ResourceActionBean.class)
+                .getResourceInjectionPoints();
+        ResourceActionBean bean = new ResourceActionBean();
+
+        ResourceInjectionEnricher.bind(bean, injectionPoints);
+        assertEquals("Hello ", injectionPoints[0].getValue(bean));
+        assertEquals(1, InMemoryInitialContextFactory.getLookupCount(GREETING_JNDI_NAME));
+    }
+}
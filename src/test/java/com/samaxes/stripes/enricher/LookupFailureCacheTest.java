@@ -0,0 +1,119 @@
+/*
+ * $Id$
+ *
+ * Copyright 2011 samaxes.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.samaxes.stripes.enricher;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import javax.naming.NameNotFoundException;
+import javax.naming.NamingException;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.samaxes.stripes.action.ResourceActionBean;
+import com.samaxes.stripes.inject.InjectionPlan;
+import com.samaxes.stripes.naming.InMemoryInitialContextFactory;
+
+/**
+ * Looks up a resource that is not bound yet, and checks the failure is only remembered when the
+ * {@link LookupFailureCache} is enabled, until it expires and within the deployment that looked it up.
+ *
+ * @author Samuel Santos
+ * @version $Revision$
+ */
+public class LookupFailureCacheTest {
+
+    private static final String GREETING_JNDI_NAME = "java:comp/env/greeting";
+
+    private final ResourceInjectionPoint[] injectionPoints = InjectionPlan.compile(ResourceActionBean.class)
+            .getResourceInjectionPoints();
+
+    private ClassLoader classLoader;
+
+    @BeforeClass
+    public static void installNaming() {
+        InMemoryInitialContextFactory.install();
+    }
+
+    @Before
+    public void saveClassLoader() {
+        classLoader = Thread.currentThread().getContextClassLoader();
+    }
+
+    @After
+    public void reset() {
+        Thread.currentThread().setContextClassLoader(classLoader);
+        LookupFailureCache.getInstance().setTimeToLive(LookupFailureCache.DEFAULT_TIME_TO_LIVE);
+        LookupFailureCache.getInstance().clear();
+        InMemoryInitialContextFactory.clear();
+    }
+
+    @Test
+    public void shouldNotRememberFailuresByDefault() throws Exception {
+        assertLookupFails(NameNotFoundException.class);
+
+        InMemoryInitialContextFactory.bind(GREETING_JNDI_NAME, "Hello ");
+        ResourceInjectionEnricher.bind(new ResourceActionBean(), injectionPoints);
+        assertEquals(0, LookupFailureCache.getInstance().size());
+    }
+
+    @Test
+    public void shouldFailFastUntilFailureExpires() throws Exception {
+        LookupFailureCache.getInstance().setTimeToLive(200L);
+        assertLookupFails(NameNotFoundException.class);
+
+        InMemoryInitialContextFactory.bind(GREETING_JNDI_NAME, "Hello ");
+        assertLookupFails(NamingException.class);
+        assertEquals(1, InMemoryInitialContextFactory.getLookupCount(GREETING_JNDI_NAME));
+
+        Thread.sleep(300L);
+        ResourceInjectionEnricher.bind(new ResourceActionBean(), injectionPoints);
+        assertEquals(2, InMemoryInitialContextFactory.getLookupCount(GREETING_JNDI_NAME));
+    }
+
+    @Test
+    public void shouldRememberFailuresPerDeployment() throws Exception {
+        LookupFailureCache.getInstance().setTimeToLive(60 * 1000L);
+        assertLookupFails(NameNotFoundException.class);
+        InMemoryInitialContextFactory.bind(GREETING_JNDI_NAME, "Hello ");
+
+        ClassLoader otherDeployment = new ClassLoader(classLoader) {
+        };
+        Thread.currentThread().setContextClassLoader(otherDeployment);
+        ResourceInjectionEnricher.bind(new ResourceActionBean(), injectionPoints);
+        NamingContextProvider.getInstance().close();
+
+        Thread.currentThread().setContextClassLoader(classLoader);
+        assertLookupFails(NamingException.class);
+
+        LookupFailureCache.getInstance().clear();
+        ResourceInjectionEnricher.bind(new ResourceActionBean(), injectionPoints);
+    }
+
+    private void assertLookupFails(Class<? extends NamingException> exceptionClass) throws Exception {
+        try {
+            ResourceInjectionEnricher.bind(new ResourceActionBean(), injectionPoints);
+            fail("Lookup of an unbound resource succeeded");
+        } catch (NamingException e) {
+            assertEquals(exceptionClass, e.getClass());
+        }
+    }
+}
@@ -0,0 +1,133 @@
+/*
+ * $Id$
+ *
+ * Copyright 2011 samaxes.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.samaxes.stripes.enricher;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+import java.util.Hashtable;
+import java.util.concurrent.atomic.AtomicReference;
+
+import javax.naming.Context;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.samaxes.stripes.naming.InMemoryContext;
+import com.samaxes.stripes.naming.InMemoryInitialContextFactory;
+
+/**
+ * Gets naming contexts from several threads and deployments, and checks each thread reuses the context of its
+ * deployment until the deployment is closed or the environment changes.
+ *
+ * @author Samuel Santos
+ * @version $Revision$
+ */
+public class NamingContextProviderTest {
+
+    private final NamingContextProvider provider = NamingContextProvider.getInstance();
+
+    private ClassLoader classLoader;
+
+    @BeforeClass
+    public static void installNaming() {
+        InMemoryInitialContextFactory.install();
+    }
+
+    @Before
+    public void saveClassLoader() {
+        classLoader = Thread.currentThread().getContextClassLoader();
+        provider.close();
+    }
+
+    @After
+    public void reset() {
+        provider.setEnvironment(null);
+        provider.close();
+        Thread.currentThread().setContextClassLoader(classLoader);
+        provider.close();
+    }
+
+    @Test
+    public void shouldReuseContextOfThreadAndDeployment() throws Exception {
+        long createdContexts = provider.getCreatedContextCount();
+        Context context = provider.getContext();
+
+        assertSame(context, provider.getContext());
+        assertEquals(createdContexts + 1, provider.getCreatedContextCount());
+        assertNotSame(context, getContextOnOtherThread());
+        assertEquals(createdContexts + 2, provider.getCreatedContextCount());
+    }
+
+    @Test
+    public void shouldCloseContextsOfCurrentDeploymentOnly() throws Exception {
+        int openContexts = provider.getOpenContextCount();
+        Context context = provider.getContext();
+
+        ClassLoader otherDeployment = new ClassLoader(classLoader) {
+        };
+        Thread.currentThread().setContextClassLoader(otherDeployment);
+        Context otherContext = provider.getContext();
+        assertNotSame(context, otherContext);
+        assertEquals(openContexts + 2, provider.getOpenContextCount());
+
+        provider.close();
+        assertEquals(openContexts + 1, provider.getOpenContextCount());
+        assertNotSame(otherContext, provider.getContext());
+
+        Thread.currentThread().setContextClassLoader(classLoader);
+        assertSame(context, provider.getContext());
+    }
+
+    @Test
+    public void shouldReplaceContextWhenEnvironmentChanges() throws Exception {
+        Context context = provider.getContext();
+        int openContexts = provider.getOpenContextCount();
+
+        Hashtable<String, String> environment = new Hashtable<String, String>();
+        environment.put(InMemoryContext.READ_TIMEOUT, "1000");
+        provider.setEnvironment(environment);
+        Context newContext = provider.getContext();
+
+        assertNotSame(context, newContext);
+        assertEquals(openContexts, provider.getOpenContextCount());
+        assertEquals("1000", newContext.getEnvironment().get(InMemoryContext.READ_TIMEOUT));
+        assertSame(newContext, provider.getContext());
+    }
+
+    private Context getContextOnOtherThread() throws InterruptedException {
+        final AtomicReference<Context> context = new AtomicReference<Context>();
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    context.set(provider.getContext());
+                } catch (Exception e) {
+                    throw new IllegalStateException(e);
+                }
+            }
+        });
+        thread.setContextClassLoader(classLoader);
+        thread.start();
+        thread.join();
+        return context.get();
+    }
+}
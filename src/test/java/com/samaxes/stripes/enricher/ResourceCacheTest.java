@@ -0,0 +1,161 @@
+/*
+ * $Id$
+ *
+ * Copyright 2011 samaxes.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.samaxes.stripes.enricher;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import java.lang.ref.WeakReference;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.samaxes.stripes.action.ResourceActionBean;
+import com.samaxes.stripes.inject.InjectionPlan;
+import com.samaxes.stripes.naming.InMemoryInitialContextFactory;
+
+/**
+ * Injects a resource several times with the {@link ResourceCache} enabled, and checks it is only looked up again once
+ * expired, evicted or looked up by another deployment. Also checks the cache does not keep an undeployed deployment
+ * alive.
+ *
+ * @author Samuel Santos
+ * @version $Revision$
+ */
+public class ResourceCacheTest {
+
+    private static final String GREETING_JNDI_NAME = "java:comp/env/greeting";
+
+    private final ResourceInjectionPoint[] injectionPoints = InjectionPlan.compile(ResourceActionBean.class)
+            .getResourceInjectionPoints();
+
+    private final ResourceCache cache = ResourceCache.getInstance();
+
+    private ClassLoader classLoader;
+
+    @BeforeClass
+    public static void installNaming() {
+        InMemoryInitialContextFactory.install();
+    }
+
+    @Before
+    public void bindResource() {
+        classLoader = Thread.currentThread().getContextClassLoader();
+        InMemoryInitialContextFactory.bind(GREETING_JNDI_NAME, "Hello ");
+    }
+
+    @After
+    public void reset() {
+        Thread.currentThread().setContextClassLoader(classLoader);
+        cache.setTimeToLive(0L);
+        cache.setMaxEntries(ResourceCache.DEFAULT_MAX_ENTRIES);
+        InMemoryInitialContextFactory.clear();
+    }
+
+    @Test
+    public void shouldNotCacheResourcesByDefault() throws Exception {
+        inject();
+        inject();
+
+        assertEquals(2, InMemoryInitialContextFactory.getLookupCount(GREETING_JNDI_NAME));
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void shouldCacheResourceUntilItExpires() throws Exception {
+        cache.setTimeToLive(200L);
+        inject();
+        inject();
+        assertEquals(1, InMemoryInitialContextFactory.getLookupCount(GREETING_JNDI_NAME));
+
+        Thread.sleep(300L);
+        inject();
+        assertEquals(2, InMemoryInitialContextFactory.getLookupCount(GREETING_JNDI_NAME));
+    }
+
+    @Test
+    public void shouldEvictEntryClosestToExpiry() throws Exception {
+        cache.setTimeToLive(60 * 1000L);
+        cache.setMaxEntries(2);
+
+        cache.put("java:comp/env/first", "first");
+        Thread.sleep(10L);
+        cache.put("java:comp/env/second", "second");
+        Thread.sleep(10L);
+        cache.put("java:comp/env/third", "third");
+
+        assertEquals(2, cache.size());
+        assertNull(cache.get("java:comp/env/first"));
+        assertNotNull(cache.get("java:comp/env/second"));
+        assertNotNull(cache.get("java:comp/env/third"));
+    }
+
+    @Test
+    public void shouldCacheResourcesPerDeployment() throws Exception {
+        cache.setTimeToLive(60 * 1000L);
+        inject();
+
+        ClassLoader otherDeployment = new ClassLoader(classLoader) {
+        };
+        Thread.currentThread().setContextClassLoader(otherDeployment);
+        inject();
+        assertEquals(2, InMemoryInitialContextFactory.getLookupCount(GREETING_JNDI_NAME));
+        assertEquals(2, cache.size());
+
+        cache.clear();
+        NamingContextProvider.getInstance().close();
+        assertEquals(1, cache.size());
+        Thread.currentThread().setContextClassLoader(classLoader);
+        inject();
+        assertEquals(2, InMemoryInitialContextFactory.getLookupCount(GREETING_JNDI_NAME));
+    }
+
+    @Test
+    public void shouldNotKeepUndeployedDeploymentAlive() throws Exception {
+        cache.setTimeToLive(60 * 1000L);
+        WeakReference<ClassLoader> undeployed = cacheInOtherDeployment();
+
+        for (int i = 0; i < 50 && undeployed.get() != null; i++) {
+            System.gc();
+            Thread.sleep(10L);
+        }
+        assertNull(undeployed.get());
+
+        cache.clear();
+        assertEquals(0, cache.size());
+    }
+
+    private WeakReference<ClassLoader> cacheInOtherDeployment() {
+        ClassLoader otherDeployment = new ClassLoader(classLoader) {
+        };
+        Thread.currentThread().setContextClassLoader(otherDeployment);
+        cache.put(GREETING_JNDI_NAME, "Hello ");
+        Thread.currentThread().setContextClassLoader(classLoader);
+        assertEquals(1, cache.size());
+        return new WeakReference<ClassLoader>(otherDeployment);
+    }
+
+    private void inject() throws Exception {
+        ResourceActionBean bean = new ResourceActionBean();
+        ResourceInjectionEnricher.bind(bean, injectionPoints);
+        assertEquals("Hello ", injectionPoints[0].getValue(bean));
+    }
+}
@@ -0,0 +1,150 @@
+/*
+ * $Id$
+ *
+ * Copyright 2011 samaxes.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.samaxes.stripes.inject;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import javax.annotation.Resource;
+import javax.ejb.EJB;
+import javax.inject.Inject;
+
+import net.sourceforge.stripes.action.Resolution;
+import net.sourceforge.stripes.exception.StripesRuntimeException;
+
+import org.junit.After;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.samaxes.stripes.action.BaseActionBean;
+import com.samaxes.stripes.business.FooService;
+import com.samaxes.stripes.naming.InMemoryInitialContextFactory;
+
+/**
+ * Restricts the injection plan of an ActionBean to the dependencies declared by its event handlers, and checks a
+ * restricted plan only looks up the declared dependencies.
+ *
+ * @author Samuel Santos
+ * @version $Revision$
+ */
+public class HandlerDependenciesTest {
+
+    private static final String EJB_JNDI_NAME = "java:global/stripes-enricher/business/FooServiceBean";
+
+    private final InjectionPlan plan = InjectionPlan.compile(HandlerActionBean.class);
+
+    @BeforeClass
+    public static void installNaming() {
+        InMemoryInitialContextFactory.install();
+    }
+
+    @After
+    public void clearNaming() {
+        InMemoryInitialContextFactory.clear();
+    }
+
+    @Test
+    public void shouldRestrictPlanToDeclaredDependencies() throws Exception {
+        InjectionPlan viewPlan = plan.forHandler(HandlerActionBean.class.getMethod("view"));
+
+        assertFalse(viewPlan.isCdiTarget());
+        assertEquals(0, viewPlan.getEJBInjectionPoints().length);
+        assertEquals(2, viewPlan.getResourceInjectionPoints().length);
+        assertSame(viewPlan, plan.forHandler(HandlerActionBean.class.getMethod("view")));
+
+        InjectionPlan savePlan = plan.forHandler(HandlerActionBean.class.getMethod("save"));
+        assertTrue(savePlan.isCdiTarget());
+        assertEquals(1, savePlan.getEJBInjectionPoints().length);
+        assertEquals(0, savePlan.getResourceInjectionPoints().length);
+    }
+
+    @Test
+    public void shouldKeepFullPlanOfUndeclaredHandlers() throws Exception {
+        assertSame(plan, plan.forHandler(HandlerActionBean.class.getMethod("main")));
+        assertSame(plan, plan.forHandler(null));
+    }
+
+    @Test
+    public void shouldRejectUnknownDependencies() throws Exception {
+        try {
+            plan.forHandler(HandlerActionBean.class.getMethod("delete"));
+            fail("Unknown handler dependency accepted");
+        } catch (StripesRuntimeException e) {
+            assertTrue(e.getMessage().contains("orderService"));
+        }
+    }
+
+    @Test
+    public void shouldOnlyLookUpDeclaredDependencies() throws Exception {
+        InMemoryInitialContextFactory.bind("java:comp/env/greeting", "Hello ");
+        InMemoryInitialContextFactory.bind("java:comp/env/farewell", "Goodbye ");
+        HandlerActionBean bean = new HandlerActionBean();
+
+        new InjectionEnricher().inject(bean, plan.forHandler(HandlerActionBean.class.getMethod("view")));
+
+        assertEquals("Hello ", bean.greeting);
+        assertEquals("Goodbye ", bean.farewell);
+        assertNull(bean.fooService);
+        assertEquals(0, InMemoryInitialContextFactory.getLookupCount(EJB_JNDI_NAME));
+    }
+
+    /**
+     * ActionBean whose event handlers use different dependencies.
+     */
+    public static class HandlerActionBean extends BaseActionBean {
+
+        @EJB(lookup = EJB_JNDI_NAME)
+        FooService fooService;
+
+        @Inject
+        FooService cdiFooService;
+
+        @Resource(name = "greeting")
+        String greeting;
+
+        String farewell;
+
+        @Resource(name = "farewell")
+        public void setFarewell(String farewell) {
+            this.farewell = farewell;
+        }
+
+        public Resolution main() {
+            return null;
+        }
+
+        @HandlerDependencies(value = { "greeting", "farewell" }, cdi = false)
+        public Resolution view() {
+            return null;
+        }
+
+        @HandlerDependencies("fooService")
+        public Resolution save() {
+            return null;
+        }
+
+        @HandlerDependencies({ "fooService", "orderService" })
+        public Resolution delete() {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,134 @@
+/*
+ * $Id$
+ *
+ * Copyright 2011 samaxes.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.samaxes.stripes.inject;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertSame;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+/**
+ * Requests a burst of ActionBeans at the same time right after a deployment, and checks each ActionBean class is only
+ * introspected once and every request gets the same injection plan.
+ *
+ * @author Samuel Santos
+ * @version $Revision$
+ */
+public class InjectionEnricherConcurrencyTest {
+
+    private static final int THREADS = 64;
+
+    private static final String[] ACTION_BEANS = { "com.samaxes.stripes.action.CDIActionBean",
+            "com.samaxes.stripes.action.EJBActionBean", "com.samaxes.stripes.action.ResourceActionBean" };
+
+    @Test
+    public void shouldCompileEachInjectionPlanOnce() throws Exception {
+        ClassLoader classLoader = new DeploymentClassLoader(InjectionEnricherConcurrencyTest.class.getClassLoader());
+        final List<Class<?>> classes = new ArrayList<Class<?>>();
+        for (String className : ACTION_BEANS) {
+            classes.add(classLoader.loadClass(className));
+        }
+
+        final CountingInjectionEnricher enricher = new CountingInjectionEnricher();
+        final CountDownLatch start = new CountDownLatch(1);
+        ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+        List<Future<List<InjectionPlan>>> futures = new ArrayList<Future<List<InjectionPlan>>>();
+
+        try {
+            for (int i = 0; i < THREADS; i++) {
+                futures.add(executor.submit(new Callable<List<InjectionPlan>>() {
+                    @Override
+                    public List<InjectionPlan> call() throws InterruptedException {
+                        start.await();
+
+                        List<InjectionPlan> plans = new ArrayList<InjectionPlan>();
+                        for (Class<?> clazz : classes) {
+                            plans.add(enricher.getInjectionPlan(clazz));
+                        }
+                        return plans;
+                    }
+                }));
+            }
+
+            start.countDown();
+
+            List<InjectionPlan> expected = futures.get(0).get(30, TimeUnit.SECONDS);
+            for (Future<List<InjectionPlan>> future : futures) {
+                List<InjectionPlan> plans = future.get(30, TimeUnit.SECONDS);
+                for (int i = 0; i < classes.size(); i++) {
+                    assertNotNull(plans.get(i));
+                    assertSame(expected.get(i), plans.get(i));
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+
+        for (Class<?> clazz : classes) {
+            assertEquals("Injection plan of " + clazz.getName() + " compiled more than once", 1,
+                    enricher.getCompilations(clazz));
+        }
+    }
+
+    /**
+     * Enricher counting the injection plan compilations, which are made slow enough for the requests to overlap.
+     */
+    private static final class CountingInjectionEnricher extends InjectionEnricher {
+
+        private final ConcurrentMap<Class<?>, AtomicInteger> compilations =
+                new ConcurrentHashMap<Class<?>, AtomicInteger>();
+
+        @Override
+        protected InjectionPlan compileInjectionPlan(Class<?> clazz) {
+            AtomicInteger count = compilations.get(clazz);
+            if (count == null) {
+                AtomicInteger previous = compilations.putIfAbsent(clazz, count = new AtomicInteger());
+                if (previous != null) {
+                    count = previous;
+                }
+            }
+            count.incrementAndGet();
+
+            try {
+                Thread.sleep(50);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+
+            return super.compileInjectionPlan(clazz);
+        }
+
+        int getCompilations(Class<?> clazz) {
+            AtomicInteger count = compilations.get(clazz);
+            return count == null ? 0 : count.get();
+        }
+    }
+}
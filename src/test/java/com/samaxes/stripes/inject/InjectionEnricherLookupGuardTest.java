@@ -0,0 +1,309 @@
+/*
+ * $Id$
+ *
+ * Copyright 2011 samaxes.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.samaxes.stripes.inject;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.lang.reflect.Field;
+
+import javax.annotation.Resource;
+import javax.ejb.EJB;
+import javax.naming.ServiceUnavailableException;
+import javax.naming.TimeLimitExceededException;
+
+import net.sourceforge.stripes.action.ActionBean;
+import net.sourceforge.stripes.action.SessionScope;
+import net.sourceforge.stripes.exception.StripesRuntimeException;
+
+import org.junit.After;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.samaxes.stripes.action.BaseActionBean;
+import com.samaxes.stripes.action.EJBActionBean;
+import com.samaxes.stripes.action.ResourceActionBean;
+import com.samaxes.stripes.business.FooService;
+import com.samaxes.stripes.business.FooServiceBean;
+import com.samaxes.stripes.enricher.InjectionStateRegistry;
+import com.samaxes.stripes.enricher.LookupFailureCache;
+import com.samaxes.stripes.enricher.LookupGuard;
+import com.samaxes.stripes.enricher.NamingContextProvider;
+import com.samaxes.stripes.naming.InMemoryInitialContextFactory;
+
+/**
+ * Injects ActionBeans from a naming server made slow by {@link InMemoryInitialContextFactory#setLatency(String, long)},
+ * and checks the lookups are cut short by the timeouts and suspended by the circuit breakers of the
+ * {@link LookupGuard}, and that stubs of unavailable dependencies are replaced once they are available again. The
+ * naming contexts of the fixture honour the read timeout passed in their environment.
+ *
+ * @author Samuel Santos
+ * @version $Revision$
+ */
+public class InjectionEnricherLookupGuardTest {
+
+    private static final String EJB_JNDI_NAME = "java:global/stripes-enricher/business/FooServiceBean";
+
+    private static final String GREETING_JNDI_NAME = "java:comp/env/greeting";
+
+    private static final String FOO_SERVICE_JNDI_NAME = "java:comp/env/fooService";
+
+    private static final long LATENCY = 2000L;
+
+    private final InjectionEnricher enricher = new InjectionEnricher();
+
+    @BeforeClass
+    public static void installNaming() {
+        InMemoryInitialContextFactory.install();
+    }
+
+    @After
+    public void reset() {
+        LookupGuard guard = LookupGuard.getInstance();
+        guard.setLookupTimeout(0L);
+        guard.setBeanTimeout(0L);
+        guard.setFailureThreshold(0);
+        guard.setOpenTime(30 * 1000L);
+        guard.setTripAction(LookupGuard.TripAction.FAIL_FAST);
+        guard.clear();
+        LookupFailureCache.getInstance().clear();
+        InMemoryInitialContextFactory.clear();
+    }
+
+    @Test
+    public void shouldTimeOutSlowLookup() throws Exception {
+        InMemoryInitialContextFactory.bind(GREETING_JNDI_NAME, "Hello ");
+        InMemoryInitialContextFactory.setLatency(GREETING_JNDI_NAME, LATENCY);
+        LookupGuard.getInstance().setLookupTimeout(100L);
+
+        long start = System.currentTimeMillis();
+        try {
+            inject(new ResourceActionBean());
+            fail("Slow lookup did not time out");
+        } catch (TimeLimitExceededException e) {
+            assertTrue(System.currentTimeMillis() - start < LATENCY / 2);
+        }
+    }
+
+    @Test
+    public void shouldSuspendLookupsOnceCircuitOpens() throws Exception {
+        InMemoryInitialContextFactory.bind(GREETING_JNDI_NAME, "Hello ");
+        InMemoryInitialContextFactory.setLatency(GREETING_JNDI_NAME, LATENCY);
+        LookupGuard.getInstance().setLookupTimeout(100L);
+        LookupGuard.getInstance().setFailureThreshold(2);
+
+        for (int i = 0; i < 2; i++) {
+            try {
+                inject(new ResourceActionBean());
+                fail("Slow lookup did not time out");
+            } catch (TimeLimitExceededException e) {
+                // expected
+            }
+        }
+        assertTrue(LookupGuard.getInstance().isOpen(GREETING_JNDI_NAME));
+
+        long start = System.currentTimeMillis();
+        try {
+            inject(new ResourceActionBean());
+            fail("Lookup was not suspended");
+        } catch (ServiceUnavailableException e) {
+            assertTrue(System.currentTimeMillis() - start < 100L);
+        }
+    }
+
+    @Test
+    public void shouldResumeLookupsAfterOpenTime() throws Exception {
+        InMemoryInitialContextFactory.bind(GREETING_JNDI_NAME, "Hello ");
+        InMemoryInitialContextFactory.setLatency(GREETING_JNDI_NAME, LATENCY);
+        LookupGuard.getInstance().setLookupTimeout(100L);
+        LookupGuard.getInstance().setFailureThreshold(1);
+        LookupGuard.getInstance().setOpenTime(200L);
+
+        try {
+            inject(new ResourceActionBean());
+            fail("Slow lookup did not time out");
+        } catch (TimeLimitExceededException e) {
+            // expected
+        }
+        assertTrue(LookupGuard.getInstance().isOpen(GREETING_JNDI_NAME));
+
+        InMemoryInitialContextFactory.setLatency(GREETING_JNDI_NAME, 0L);
+        Thread.sleep(300L);
+
+        ResourceActionBean bean = new ResourceActionBean();
+        inject(bean);
+        assertEquals("Hello ", getField(bean, ResourceActionBean.class, "greeting"));
+        assertFalse(LookupGuard.getInstance().isOpen(GREETING_JNDI_NAME));
+    }
+
+    @Test
+    public void shouldSuspendLookupsOfFailingDeploymentOnly() throws Exception {
+        InMemoryInitialContextFactory.bind(GREETING_JNDI_NAME, "Hello ");
+        InMemoryInitialContextFactory.setLatency(GREETING_JNDI_NAME, LATENCY);
+        LookupGuard.getInstance().setLookupTimeout(100L);
+        LookupGuard.getInstance().setFailureThreshold(1);
+
+        try {
+            inject(new ResourceActionBean());
+            fail("Slow lookup did not time out");
+        } catch (TimeLimitExceededException e) {
+            // expected
+        }
+        assertTrue(LookupGuard.getInstance().isOpen(GREETING_JNDI_NAME));
+
+        ClassLoader classLoader = Thread.currentThread().getContextClassLoader();
+        Thread.currentThread().setContextClassLoader(new ClassLoader(classLoader) {
+        });
+        try {
+            assertFalse(LookupGuard.getInstance().isOpen(GREETING_JNDI_NAME));
+            InMemoryInitialContextFactory.setLatency(GREETING_JNDI_NAME, 0L);
+            ResourceActionBean bean = new ResourceActionBean();
+            inject(bean);
+            assertEquals("Hello ", getField(bean, ResourceActionBean.class, "greeting"));
+            NamingContextProvider.getInstance().close();
+        } finally {
+            Thread.currentThread().setContextClassLoader(classLoader);
+        }
+        assertTrue(LookupGuard.getInstance().isOpen(GREETING_JNDI_NAME));
+    }
+
+    @Test
+    public void shouldInjectStubOfUnavailableEJB() throws Exception {
+        InMemoryInitialContextFactory.bind(EJB_JNDI_NAME, new FooServiceBean());
+        InMemoryInitialContextFactory.setLatency(EJB_JNDI_NAME, LATENCY);
+        LookupGuard.getInstance().setLookupTimeout(100L);
+        LookupGuard.getInstance().setTripAction(LookupGuard.TripAction.STUB);
+
+        EJBActionBean bean = new EJBActionBean();
+        inject(bean);
+        FooService fooService = (FooService) getField(bean, EJBActionBean.class, "fooService");
+
+        try {
+            fooService.greet("Earthlings");
+            fail("Stub did not throw");
+        } catch (StripesRuntimeException e) {
+            assertTrue(e.getCause() instanceof TimeLimitExceededException);
+        }
+    }
+
+    @Test
+    public void shouldReplaceStubsOfSessionScopedBeanOnceAvailable() throws Exception {
+        InMemoryInitialContextFactory.bind(EJB_JNDI_NAME, new FooServiceBean());
+        InMemoryInitialContextFactory.bind(FOO_SERVICE_JNDI_NAME, new FooServiceBean());
+        InMemoryInitialContextFactory.setLatency(EJB_JNDI_NAME, LATENCY);
+        InMemoryInitialContextFactory.setLatency(FOO_SERVICE_JNDI_NAME, LATENCY);
+        LookupGuard.getInstance().setLookupTimeout(100L);
+        LookupGuard.getInstance().setTripAction(LookupGuard.TripAction.STUB);
+
+        SessionActionBean bean = new SessionActionBean();
+        try {
+            inject(bean);
+            assertTrue(LookupGuard.isStub(bean.fooService));
+            assertTrue(LookupGuard.isStub(bean.otherFooService));
+
+            InMemoryInitialContextFactory.setLatency(EJB_JNDI_NAME, 0L);
+            InMemoryInitialContextFactory.setLatency(FOO_SERVICE_JNDI_NAME, 0L);
+            inject(bean);
+            assertTrue(bean.fooService instanceof FooServiceBean);
+            assertTrue(bean.otherFooService instanceof FooServiceBean);
+
+            inject(bean);
+            assertEquals(2, InMemoryInitialContextFactory.getLookupCount(EJB_JNDI_NAME));
+            assertEquals(2, InMemoryInitialContextFactory.getLookupCount(FOO_SERVICE_JNDI_NAME));
+        } finally {
+            InjectionStateRegistry.getInstance().discard(bean);
+        }
+    }
+
+    @Test
+    public void shouldFailInjectionOfUnavailableResourceThatCannotBeStubbed() throws Exception {
+        InMemoryInitialContextFactory.bind(GREETING_JNDI_NAME, "Hello ");
+        InMemoryInitialContextFactory.setLatency(GREETING_JNDI_NAME, LATENCY);
+        LookupGuard.getInstance().setLookupTimeout(100L);
+        LookupGuard.getInstance().setTripAction(LookupGuard.TripAction.STUB);
+
+        ResourceActionBean bean = new ResourceActionBean();
+        try {
+            inject(bean);
+            fail("String resource was stubbed");
+        } catch (TimeLimitExceededException e) {
+            assertNull(getField(bean, ResourceActionBean.class, "greeting"));
+        }
+    }
+
+    @Test
+    public void shouldShareLookupBudgetBetweenDependencies() throws Exception {
+        InMemoryInitialContextFactory.bind("java:comp/env/first", "first");
+        InMemoryInitialContextFactory.bind("java:comp/env/second", "second");
+        InMemoryInitialContextFactory.setLatency("java:comp/env/first", 200L);
+        InMemoryInitialContextFactory.setLatency("java:comp/env/second", 200L);
+        LookupGuard.getInstance().setBeanTimeout(150L);
+        LookupGuard.getInstance().setFailureThreshold(1);
+
+        TwoResourcesActionBean bean = new TwoResourcesActionBean();
+        try {
+            inject(bean);
+            fail("Lookups exceeded the bean budget");
+        } catch (TimeLimitExceededException e) {
+            assertEquals("first", bean.first);
+            assertNull(bean.second);
+            assertEquals(0, InMemoryInitialContextFactory.getLookupCount("java:comp/env/second"));
+        }
+
+        // The budget of the bean ran out, which says nothing about the naming server
+        assertFalse(LookupGuard.getInstance().isOpen("java:comp/env/second"));
+    }
+
+    private void inject(ActionBean bean) throws Exception {
+        enricher.inject(bean, enricher.getInjectionPlan(bean.getClass()));
+    }
+
+    private static Object getField(Object target, Class<?> clazz, String name) throws Exception {
+        Field field = clazz.getDeclaredField(name);
+        field.setAccessible(true);
+        return field.get(target);
+    }
+
+    /**
+     * ActionBean with two slow dependencies.
+     */
+    public static class TwoResourcesActionBean extends BaseActionBean {
+
+        @Resource(name = "first")
+        String first;
+
+        @Resource(name = "second")
+        String second;
+    }
+
+    /**
+     * Session scoped ActionBean with an EJB and a resource typed with a public interface.
+     */
+    @SessionScope
+    public static class SessionActionBean extends BaseActionBean {
+
+        @EJB(lookup = EJB_JNDI_NAME)
+        FooService fooService;
+
+        @Resource(name = "fooService")
+        FooService otherFooService;
+    }
+}
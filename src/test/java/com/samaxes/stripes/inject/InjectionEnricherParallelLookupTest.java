@@ -0,0 +1,153 @@
+/*
+ * $Id$
+ *
+ * Copyright 2011 samaxes.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.samaxes.stripes.inject;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import javax.annotation.Resource;
+import javax.ejb.EJB;
+import javax.naming.NamingException;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.samaxes.stripes.action.BaseActionBean;
+import com.samaxes.stripes.business.FooService;
+import com.samaxes.stripes.business.FooServiceBean;
+import com.samaxes.stripes.enricher.LookupExecutor;
+import com.samaxes.stripes.naming.InMemoryInitialContextFactory;
+
+/**
+ * Injects an ActionBean with parallel lookups enabled, from a naming server which, like an application server, only
+ * resolves the component namespaces on the request thread. Checks the {@code java:global} lookups overlap and the
+ * other lookups stay on the request thread. Also checks each deployment configures and stops its own lookup threads.
+ *
+ * @author Samuel Santos
+ * @version $Revision$
+ */
+public class InjectionEnricherParallelLookupTest {
+
+    private static final String FIRST_EJB_JNDI_NAME = "java:global/stripes-enricher/business/FirstFooServiceBean";
+
+    private static final String SECOND_EJB_JNDI_NAME = "java:global/stripes-enricher/business/SecondFooServiceBean";
+
+    private static final long LATENCY = 300L;
+
+    private final InjectionEnricher enricher = new InjectionEnricher();
+
+    @BeforeClass
+    public static void installNaming() {
+        InMemoryInitialContextFactory.install();
+    }
+
+    @Before
+    public void enableParallelLookups() {
+        LookupExecutor.getInstance().setParallelism(4);
+        InMemoryInitialContextFactory.setComponentThreadsOnly(true);
+        InMemoryInitialContextFactory.enterComponent();
+        InMemoryInitialContextFactory.bind(FIRST_EJB_JNDI_NAME, new FooServiceBean());
+        InMemoryInitialContextFactory.bind(SECOND_EJB_JNDI_NAME, new FooServiceBean());
+        InMemoryInitialContextFactory.bind("java:comp/env/greeting", "Hello ");
+        InMemoryInitialContextFactory.bind("java:comp/env/farewell", "Goodbye ");
+        InMemoryInitialContextFactory.setLatency(FIRST_EJB_JNDI_NAME, LATENCY);
+        InMemoryInitialContextFactory.setLatency(SECOND_EJB_JNDI_NAME, LATENCY);
+    }
+
+    @After
+    public void reset() {
+        LookupExecutor.clear();
+        InMemoryInitialContextFactory.exitComponent();
+        InMemoryInitialContextFactory.clear();
+    }
+
+    @Test
+    public void shouldLookUpGlobalNamesConcurrently() throws Exception {
+        ParallelActionBean bean = new ParallelActionBean();
+
+        long start = System.currentTimeMillis();
+        enricher.inject(bean, enricher.getInjectionPlan(ParallelActionBean.class));
+        long elapsed = System.currentTimeMillis() - start;
+
+        assertNotNull(bean.firstFooService);
+        assertNotNull(bean.secondFooService);
+        assertEquals("Hello ", bean.greeting);
+        assertEquals("Goodbye ", bean.farewell);
+        assertTrue("Lookups took " + elapsed + " ms", elapsed < 2 * LATENCY);
+    }
+
+    @Test
+    public void shouldFailLikeSerialLookups() throws Exception {
+        InMemoryInitialContextFactory.unbind(SECOND_EJB_JNDI_NAME);
+        ParallelActionBean bean = new ParallelActionBean();
+
+        try {
+            enricher.inject(bean, enricher.getInjectionPlan(ParallelActionBean.class));
+            fail("Lookup of an unbound EJB succeeded");
+        } catch (NamingException e) {
+            assertTrue(e.getMessage().contains(SECOND_EJB_JNDI_NAME));
+            assertNotNull(bean.firstFooService);
+            assertNull(bean.secondFooService);
+        }
+    }
+
+    @Test
+    public void shouldScopeLookupThreadsToDeployment() throws Exception {
+        LookupExecutor executor = LookupExecutor.getInstance();
+        ClassLoader classLoader = Thread.currentThread().getContextClassLoader();
+
+        Thread.currentThread().setContextClassLoader(new ClassLoader(classLoader) {
+        });
+        try {
+            assertNotSame(executor, LookupExecutor.getInstance());
+            assertFalse(LookupExecutor.getInstance().isEnabled());
+            LookupExecutor.getInstance().setParallelism(1);
+            LookupExecutor.clear();
+        } finally {
+            Thread.currentThread().setContextClassLoader(classLoader);
+        }
+
+        assertEquals(4, LookupExecutor.getInstance().getParallelism());
+        shouldLookUpGlobalNamesConcurrently();
+    }
+
+    /**
+     * ActionBean with two slow global EJBs and two resources of the component environment.
+     */
+    public static class ParallelActionBean extends BaseActionBean {
+
+        @EJB(lookup = FIRST_EJB_JNDI_NAME)
+        FooService firstFooService;
+
+        @EJB(lookup = SECOND_EJB_JNDI_NAME)
+        FooService secondFooService;
+
+        @Resource(name = "greeting")
+        String greeting;
+
+        @Resource(name = "farewell")
+        String farewell;
+    }
+}
@@ -0,0 +1,156 @@
+/*
+ * $Id$
+ *
+ * Copyright 2011 samaxes.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.samaxes.stripes.inject;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.ref.WeakReference;
+import java.lang.reflect.Field;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.servlet.ServletContext;
+import javax.servlet.ServletContextEvent;
+
+import net.sourceforge.stripes.action.ActionBean;
+
+import org.junit.After;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.samaxes.stripes.naming.InMemoryInitialContextFactory;
+
+/**
+ * Redeploys a web application several times in a class loader of its own, while the enricher stays in the parent
+ * class loader as if it was installed in a shared library, and checks the class loaders of the undeployed web
+ * applications can be garbage collected.
+ *
+ * @author Samuel Santos
+ * @version $Revision$
+ */
+public class InjectionEnricherRedeployTest {
+
+    private static final int DEPLOYMENTS = 5;
+
+    private static final String EJB_JNDI_NAME = "java:global/stripes-enricher/business/FooServiceBean";
+
+    @BeforeClass
+    public static void installNaming() {
+        InMemoryInitialContextFactory.install();
+    }
+
+    @After
+    public void clearNaming() {
+        InMemoryInitialContextFactory.clear();
+    }
+
+    @Test
+    public void shouldReleaseUndeployedClassLoaders() throws Exception {
+        List<WeakReference<ClassLoader>> classLoaders = new ArrayList<WeakReference<ClassLoader>>();
+
+        for (int i = 0; i < DEPLOYMENTS; i++) {
+            classLoaders.add(new WeakReference<ClassLoader>(deployAndServe()));
+        }
+
+        assertTrue("Undeployed web application class loaders are still reachable", isCollected(classLoaders));
+    }
+
+    /**
+     * Deploys the example ActionBeans in a new class loader, injects them and undeploys them.
+     *
+     * @return the class loader of the deployment
+     */
+    private static ClassLoader deployAndServe() throws Exception {
+        Thread thread = Thread.currentThread();
+        ClassLoader previousClassLoader = thread.getContextClassLoader();
+        ClassLoader classLoader = new DeploymentClassLoader(InjectionEnricherRedeployTest.class.getClassLoader());
+        thread.setContextClassLoader(classLoader);
+
+        try {
+            InMemoryInitialContextFactory.bind(EJB_JNDI_NAME,
+                    classLoader.loadClass("com.samaxes.stripes.business.FooServiceBean").newInstance());
+            InMemoryInitialContextFactory.bind("java:comp/env/greeting", "Hello ");
+
+            InjectionEnricher enricher = new InjectionEnricher();
+            ActionBean ejbActionBean = inject(enricher, classLoader, "com.samaxes.stripes.action.EJBActionBean");
+            ActionBean resourceActionBean = inject(enricher, classLoader,
+                    "com.samaxes.stripes.action.ResourceActionBean");
+
+            Object fooService = getField(ejbActionBean, "fooService");
+            assertNotNull(fooService);
+            assertEquals(classLoader, fooService.getClass().getClassLoader());
+            assertEquals("Hello ", getField(resourceActionBean, "greeting"));
+
+            new InjectionEnricherListener().contextDestroyed(new ServletContextEvent(createServletContext()));
+        } finally {
+            InMemoryInitialContextFactory.clear();
+            thread.setContextClassLoader(previousClassLoader);
+        }
+
+        return classLoader;
+    }
+
+    private static ActionBean inject(InjectionEnricher enricher, ClassLoader classLoader, String className)
+            throws Exception {
+        ActionBean bean = (ActionBean) classLoader.loadClass(className).newInstance();
+        enricher.inject(bean, enricher.getInjectionPlan(bean.getClass()));
+        return bean;
+    }
+
+    private static Object getField(Object target, String name) throws Exception {
+        Field field = target.getClass().getDeclaredField(name);
+        field.setAccessible(true);
+        return field.get(target);
+    }
+
+    private static ServletContext createServletContext() {
+        return (ServletContext) Proxy.newProxyInstance(ServletContext.class.getClassLoader(),
+                new Class<?>[] { ServletContext.class }, new InvocationHandler() {
+                    @Override
+                    public Object invoke(Object proxy, Method method, Object[] args) {
+                        if ("getContextPath".equals(method.getName())) {
+                            return "/stripes-enricher";
+                        }
+                        throw new UnsupportedOperationException(method.getName());
+                    }
+                });
+    }
+
+    private static boolean isCollected(List<WeakReference<ClassLoader>> classLoaders) throws InterruptedException {
+        for (int i = 0; i < 50; i++) {
+            System.gc();
+
+            boolean collected = true;
+            for (WeakReference<ClassLoader> classLoader : classLoaders) {
+                collected &= classLoader.get() == null;
+            }
+            if (collected) {
+                return true;
+            }
+
+            Thread.sleep(100);
+        }
+
+        return false;
+    }
+}
@@ -0,0 +1,109 @@
+/*
+ * $Id$
+ *
+ * Copyright 2011 samaxes.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.samaxes.stripes.inject;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.annotation.Resource;
+import javax.ejb.EJB;
+
+import net.sourceforge.stripes.action.ActionBean;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.samaxes.stripes.action.BaseActionBean;
+import com.samaxes.stripes.business.FooService;
+import com.samaxes.stripes.enricher.InjectionMetrics;
+
+/**
+ * Warms up the injection plans of several ActionBeans, one of them invalid, and checks the valid plans are compiled
+ * at startup and found in the cache by the first requests.
+ *
+ * @author Samuel Santos
+ * @version $Revision$
+ */
+public class InjectionEnricherWarmUpTest {
+
+    private final InjectionEnricher enricher = new InjectionEnricher();
+
+    @Before
+    public void enableMetrics() {
+        InjectionMetrics.getInstance().setEnabled(true);
+        InjectionMetrics.getInstance().reset();
+    }
+
+    @After
+    public void disableMetrics() {
+        InjectionMetrics.getInstance().setEnabled(false);
+        InjectionMetrics.getInstance().reset();
+    }
+
+    @Test
+    public void shouldCompilePlansAtStartup() throws Exception {
+        List<Class<? extends ActionBean>> classes = new ArrayList<Class<? extends ActionBean>>();
+        classes.add(FirstWarmActionBean.class);
+        classes.add(SecondWarmActionBean.class);
+        classes.add(InvalidWarmActionBean.class);
+
+        enricher.warmUp(classes);
+        assertEquals(3, getPlanStatistics().getMisses());
+        assertEquals(0, getPlanStatistics().getHits());
+
+        assertEquals(1, enricher.getInjectionPlan(FirstWarmActionBean.class).getEJBInjectionPoints().length);
+        assertEquals(1, enricher.getInjectionPlan(SecondWarmActionBean.class).getResourceInjectionPoints().length);
+        assertEquals(3, getPlanStatistics().getMisses());
+        assertEquals(2, getPlanStatistics().getHits());
+    }
+
+    private static InjectionMetrics.CacheStatistics getPlanStatistics() {
+        return InjectionMetrics.getInstance().getCacheStatistics().get("InjectionPlan");
+    }
+
+    /**
+     * ActionBean with an @EJB field.
+     */
+    public static class FirstWarmActionBean extends BaseActionBean {
+
+        @EJB(lookup = "java:global/stripes-enricher/business/FooServiceBean")
+        FooService fooService;
+    }
+
+    /**
+     * ActionBean with a @Resource field.
+     */
+    public static class SecondWarmActionBean extends BaseActionBean {
+
+        @Resource(name = "greeting")
+        String greeting;
+    }
+
+    /**
+     * ActionBean with a @Resource method which is not a setter.
+     */
+    public static class InvalidWarmActionBean extends BaseActionBean {
+
+        @Resource(name = "greeting")
+        public void greet() {
+        }
+    }
+}
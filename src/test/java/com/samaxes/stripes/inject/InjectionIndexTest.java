@@ -0,0 +1,109 @@
+/*
+ * $Id$
+ *
+ * Copyright 2011 samaxes.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.samaxes.stripes.inject;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.reflect.Field;
+import java.net.URL;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.samaxes.stripes.action.BaseActionBean;
+import com.samaxes.stripes.action.ResourceActionBean;
+
+/**
+ * Reads an injection index written before and after the example ActionBeans were compiled, and checks the index is
+ * only used while the ActionBean class files are not newer than it.
+ *
+ * @author Samuel Santos
+ * @version $Revision$
+ */
+public class InjectionIndexTest {
+
+    private File indexFile;
+
+    @Before
+    public void writeIndex() throws IOException {
+        indexFile = File.createTempFile("stripes-injection-enricher", ".index");
+        OutputStream out = new FileOutputStream(indexFile);
+        try {
+            out.write((ResourceActionBean.class.getName() + "=greeting\n" + BaseActionBean.class.getName() + "=\n")
+                    .getBytes("ISO-8859-1"));
+        } finally {
+            out.close();
+        }
+    }
+
+    @After
+    public void deleteIndex() {
+        indexFile.delete();
+    }
+
+    @Test
+    public void shouldUseIndexNewerThanClasses() {
+        List<Field> fields = InjectionIndex.getInstance(new IndexClassLoader()).getFields(
+                ResourceActionBean.class);
+
+        assertNotNull(fields);
+        assertEquals(1, fields.size());
+        assertEquals("greeting", fields.get(0).getName());
+    }
+
+    @Test
+    public void shouldIgnoreIndexOlderThanClasses() {
+        long classTime = new File(ResourceActionBean.class.getResource("ResourceActionBean.class").getFile())
+                .lastModified();
+        indexFile.setLastModified(classTime - 2 * InjectionIndex.COMPILATION_TIME);
+        InjectionIndex index = InjectionIndex.getInstance(new IndexClassLoader());
+
+        assertEquals(2, index.size());
+        assertNull(index.getFields(ResourceActionBean.class));
+        assertNull(index.getMethods(ResourceActionBean.class));
+    }
+
+    /**
+     * Class loader that sees the test index only.
+     */
+    private class IndexClassLoader extends ClassLoader {
+
+        IndexClassLoader() {
+            super(InjectionIndexTest.class.getClassLoader());
+        }
+
+        @Override
+        public Enumeration<URL> getResources(String name) throws IOException {
+            if (InjectionIndex.RESOURCE_NAME.equals(name)) {
+                return Collections.enumeration(Collections.singleton(indexFile.toURI().toURL()));
+            }
+
+            return Collections.enumeration(Collections.<URL> emptyList());
+        }
+    }
+}
@@ -0,0 +1,180 @@
+/*
+ * $Id$
+ *
+ * Copyright 2011 samaxes.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.samaxes.stripes.inject;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.lang.management.ManagementFactory;
+
+import javax.ejb.EJB;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.naming.NamingException;
+
+import net.sourceforge.stripes.action.ActionBean;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.samaxes.stripes.action.BaseActionBean;
+import com.samaxes.stripes.action.EJBActionBean;
+import com.samaxes.stripes.action.ResourceActionBean;
+import com.samaxes.stripes.business.FooService;
+import com.samaxes.stripes.business.FooServiceBean;
+import com.samaxes.stripes.enricher.EJBInjectionEnricher;
+import com.samaxes.stripes.enricher.InjectionMetrics;
+import com.samaxes.stripes.enricher.NamingContextProvider;
+import com.samaxes.stripes.naming.InMemoryInitialContextFactory;
+
+/**
+ * Injects ActionBeans with metrics enabled, and checks the injection, JNDI lookup and cache counters read through the
+ * metrics MBean. Also checks EJB name probes are counted apart from lookups, and each deployment has its own metrics.
+ *
+ * @author Samuel Santos
+ * @version $Revision$
+ */
+public class InjectionMetricsTest {
+
+    private static final String CONTEXT_PATH = "/metrics-test";
+
+    private final InjectionEnricher enricher = new InjectionEnricher();
+
+    private final InjectionMetrics metrics = InjectionMetrics.getInstance();
+
+    private final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+
+    private ObjectName objectName;
+
+    @BeforeClass
+    public static void installNaming() {
+        InMemoryInitialContextFactory.install();
+    }
+
+    @Before
+    public void enableMetrics() throws Exception {
+        objectName = new ObjectName("com.samaxes.stripes:type=InjectionEnricher,context="
+                + ObjectName.quote(CONTEXT_PATH));
+        InMemoryInitialContextFactory.bind("java:global/stripes-enricher/business/FooServiceBean",
+                new FooServiceBean());
+        metrics.setEnabled(true);
+        metrics.reset();
+        metrics.register(CONTEXT_PATH);
+    }
+
+    @After
+    public void disableMetrics() {
+        metrics.unregister(CONTEXT_PATH);
+        metrics.setEnabled(false);
+        metrics.reset();
+        EJBInjectionEnricher.clear();
+        InMemoryInitialContextFactory.clear();
+    }
+
+    @Test
+    public void shouldCountInjectionsAndLookups() throws Exception {
+        inject(new EJBActionBean());
+        inject(new EJBActionBean());
+        try {
+            inject(new ResourceActionBean());
+            fail("Lookup of an unbound resource succeeded");
+        } catch (NamingException e) {
+            // expected, java:comp/env/greeting is not bound
+        }
+
+        assertEquals(2L, server.getAttribute(objectName, "EJBLookupCount"));
+        assertEquals(0L, server.getAttribute(objectName, "EJBLookupFailureCount"));
+        assertEquals(1L, server.getAttribute(objectName, "ResourceLookupCount"));
+        assertEquals(1L, server.getAttribute(objectName, "ResourceLookupFailureCount"));
+        assertEquals(2L, metrics.getInjectionStatistics().get(EJBActionBean.class.getName()).getCount());
+        assertFalse(metrics.getInjectionStatistics().containsKey(ResourceActionBean.class.getName()));
+
+        InjectionMetrics.CacheStatistics planStatistics = metrics.getCacheStatistics().get("InjectionPlan");
+        assertEquals(3L, planStatistics.getHits() + planStatistics.getMisses());
+        assertTrue(planStatistics.getSize() >= 2);
+
+        server.invoke(objectName, "reset", null, null);
+        assertEquals(0L, server.getAttribute(objectName, "EJBLookupCount"));
+        assertTrue(metrics.getInjectionStatistics().isEmpty());
+    }
+
+    @Test
+    public void shouldCountProbesApartFromLookups() throws Exception {
+        InMemoryInitialContextFactory.bind("java:app/AppName", "stripes-enricher");
+        InMemoryInitialContextFactory.bind("java:module/ModuleName", "business");
+
+        inject(new ProbedEJBActionBean());
+        assertEquals(4L, metrics.getEJBProbeCount());
+        assertEquals(3L, metrics.getEJBProbeMissCount());
+        assertEquals(0L, metrics.getEJBLookupCount());
+
+        inject(new ProbedEJBActionBean());
+        assertEquals(4L, metrics.getEJBProbeCount());
+        assertEquals(1L, metrics.getEJBLookupCount());
+        assertEquals(0L, metrics.getEJBLookupFailureCount());
+    }
+
+    @Test
+    public void shouldRecordMetricsPerDeployment() throws Exception {
+        ClassLoader classLoader = Thread.currentThread().getContextClassLoader();
+
+        Thread.currentThread().setContextClassLoader(new ClassLoader(classLoader) {
+        });
+        try {
+            InjectionMetrics otherMetrics = InjectionMetrics.getInstance();
+            assertNotSame(metrics, otherMetrics);
+            assertFalse(otherMetrics.isEnabled());
+            otherMetrics.setEnabled(true);
+            inject(new EJBActionBean());
+            assertEquals(1L, otherMetrics.getEJBLookupCount());
+            otherMetrics.unregister("/other-metrics-test");
+            NamingContextProvider.getInstance().close();
+        } finally {
+            Thread.currentThread().setContextClassLoader(classLoader);
+        }
+
+        assertEquals(0L, metrics.getEJBLookupCount());
+        assertTrue(metrics.getInjectionStatistics().isEmpty());
+    }
+
+    @Test
+    public void shouldUnregisterMBean() {
+        assertTrue(server.isRegistered(objectName));
+
+        metrics.unregister(CONTEXT_PATH);
+        assertFalse(server.isRegistered(objectName));
+    }
+
+    private void inject(ActionBean bean) throws Exception {
+        enricher.inject(bean, enricher.getInjectionPlan(bean.getClass()));
+    }
+
+    /**
+     * ActionBean with an EJB reference found by probing the candidate JNDI names.
+     */
+    public static class ProbedEJBActionBean extends BaseActionBean {
+
+        @EJB
+        FooService fooService;
+    }
+}
@@ -0,0 +1,129 @@
+/*
+ * $Id$
+ *
+ * Copyright 2011 samaxes.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.samaxes.stripes.inject;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import javax.annotation.Resource;
+import javax.ejb.EJB;
+
+import org.junit.After;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.samaxes.stripes.action.BaseActionBean;
+import com.samaxes.stripes.action.CDIActionBean;
+import com.samaxes.stripes.business.FooService;
+import com.samaxes.stripes.business.FooServiceBean;
+import com.samaxes.stripes.naming.InMemoryInitialContextFactory;
+
+/**
+ * Compiles the injection plans of ActionBeans with and without injection points, and injects an ActionBean with its
+ * plan from the in-memory naming server.
+ *
+ * @author Samuel Santos
+ * @version $Revision$
+ */
+public class InjectionPlanTest {
+
+    private static final String EJB_JNDI_NAME = "java:global/stripes-enricher/business/FooServiceBean";
+
+    private final InjectionEnricher enricher = new InjectionEnricher();
+
+    @BeforeClass
+    public static void installNaming() {
+        InMemoryInitialContextFactory.install();
+    }
+
+    @After
+    public void clearNaming() {
+        InMemoryInitialContextFactory.clear();
+    }
+
+    @Test
+    public void shouldCompileInjectionPoints() {
+        InjectionPlan plan = InjectionPlan.compile(PlannedActionBean.class);
+
+        assertSame(PlannedActionBean.class, plan.getBeanClass());
+        assertFalse(plan.isEmpty());
+        assertFalse(plan.isCdiTarget());
+        assertEquals(1, plan.getEJBInjectionPoints().length);
+        assertEquals(EJB_JNDI_NAME, plan.getEJBInjectionPoints()[0].getLookup());
+        assertEquals(2, plan.getResourceInjectionPoints().length);
+        assertTrue("Fields must come before methods", plan.getResourceInjectionPoints()[0].isField());
+        assertFalse(plan.getResourceInjectionPoints()[1].isField());
+    }
+
+    @Test
+    public void shouldCompileEmptyAndCdiPlans() {
+        InjectionPlan emptyPlan = InjectionPlan.compile(NoInjectionActionBean.class);
+        assertTrue(emptyPlan.isEmpty());
+        assertEquals(0, emptyPlan.getEJBInjectionPoints().length);
+        assertEquals(0, emptyPlan.getResourceInjectionPoints().length);
+
+        InjectionPlan cdiPlan = InjectionPlan.compile(CDIActionBean.class);
+        assertFalse(cdiPlan.isEmpty());
+        assertTrue(cdiPlan.isCdiTarget());
+    }
+
+    @Test
+    public void shouldCompilePlanOnceAndInjectWithIt() throws Exception {
+        InMemoryInitialContextFactory.bind(EJB_JNDI_NAME, new FooServiceBean());
+        InMemoryInitialContextFactory.bind("java:comp/env/greeting", "Hello ");
+        InMemoryInitialContextFactory.bind("java:comp/env/farewell", "Goodbye ");
+        InjectionPlan plan = enricher.getInjectionPlan(PlannedActionBean.class);
+        assertSame(plan, enricher.getInjectionPlan(PlannedActionBean.class));
+
+        PlannedActionBean bean = new PlannedActionBean();
+        enricher.inject(bean, plan);
+
+        assertTrue(bean.fooService instanceof FooServiceBean);
+        assertEquals("Hello ", bean.greeting);
+        assertEquals("Goodbye ", bean.farewell);
+    }
+
+    /**
+     * ActionBean with an @EJB field, a @Resource field and a @Resource setter.
+     */
+    public static class PlannedActionBean extends BaseActionBean {
+
+        @EJB(lookup = EJB_JNDI_NAME)
+        FooService fooService;
+
+        @Resource(name = "greeting")
+        String greeting;
+
+        String farewell;
+
+        @Resource(name = "farewell")
+        public void setFarewell(String farewell) {
+            this.farewell = farewell;
+        }
+    }
+
+    /**
+     * ActionBean without injection points.
+     */
+    public static class NoInjectionActionBean extends BaseActionBean {
+
+        FooService fooService;
+    }
+}
@@ -0,0 +1,247 @@
+/*
+ * $Id$
+ *
+ * Copyright 2011 samaxes.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.samaxes.stripes.naming;
+
+import java.util.Hashtable;
+import java.util.Map;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.naming.Binding;
+import javax.naming.CompositeName;
+import javax.naming.Context;
+import javax.naming.InterruptedNamingException;
+import javax.naming.Name;
+import javax.naming.NameClassPair;
+import javax.naming.NameNotFoundException;
+import javax.naming.NameParser;
+import javax.naming.NamingEnumeration;
+import javax.naming.NamingException;
+import javax.naming.OperationNotSupportedException;
+
+/**
+ * Flat, read mostly naming context backed by the bindings of {@link InMemoryInitialContextFactory}. Names are not
+ * parsed, {@code java:global/app/module/FooServiceBean} is a single binding. Only lookups and binds are supported.
+ * Lookups of a name take at least its latency, if it has one. Like the JDK LDAP provider, a lookup waits no longer
+ * than the {@value #READ_TIMEOUT} environment property, if set, and then fails.
+ *
+ * @author Samuel Santos
+ * @version $Revision$
+ */
+public class InMemoryContext implements Context {
+
+    /** Environment property of the time, in milliseconds, a lookup waits for its result. */
+    public static final String READ_TIMEOUT = "com.sun.jndi.ldap.read.timeout";
+
+    private final Map<String, Object> bindings;
+
+    private final Map<String, Long> latencies;
+
+    private final ConcurrentMap<String, AtomicInteger> lookupCounts;
+
+    private final Hashtable<Object, Object> environment;
+
+    InMemoryContext(Map<String, Object> bindings, Map<String, Long> latencies,
+            ConcurrentMap<String, AtomicInteger> lookupCounts, Hashtable<?, ?> environment) {
+        this.bindings = bindings;
+        this.latencies = latencies;
+        this.lookupCounts = lookupCounts;
+        this.environment = environment == null ? new Hashtable<Object, Object>() : new Hashtable<Object, Object>(
+                environment);
+    }
+
+    @Override
+    public Object lookup(String name) throws NamingException {
+        AtomicInteger count = lookupCounts.get(name);
+        if (count == null) {
+            AtomicInteger previous = lookupCounts.putIfAbsent(name, count = new AtomicInteger());
+            if (previous != null) {
+                count = previous;
+            }
+        }
+        count.incrementAndGet();
+
+        Long latency = latencies.get(name);
+        if (latency != null) {
+            Object readTimeout = environment.get(READ_TIMEOUT);
+            long timeout = readTimeout == null ? 0L : Long.parseLong(readTimeout.toString());
+            try {
+                Thread.sleep(timeout > 0 ? Math.min(latency, timeout) : latency);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedNamingException(name);
+            }
+            if (timeout > 0 && latency > timeout) {
+                throw new NamingException("Read of " + name + " timed out, timeout used: " + timeout + " ms");
+            }
+        }
+
+        Object object = InMemoryInitialContextFactory.isVisible(name) ? bindings.get(name) : null;
+
+        if (object == null) {
+            throw new NameNotFoundException(name);
+        }
+
+        return object;
+    }
+
+    @Override
+    public Object lookup(Name name) throws NamingException {
+        return lookup(name.toString());
+    }
+
+    @Override
+    public void bind(String name, Object obj) throws NamingException {
+        bindings.put(name, obj);
+    }
+
+    @Override
+    public void bind(Name name, Object obj) throws NamingException {
+        bind(name.toString(), obj);
+    }
+
+    @Override
+    public void rebind(String name, Object obj) throws NamingException {
+        bindings.put(name, obj);
+    }
+
+    @Override
+    public void rebind(Name name, Object obj) throws NamingException {
+        rebind(name.toString(), obj);
+    }
+
+    @Override
+    public void unbind(String name) throws NamingException {
+        bindings.remove(name);
+    }
+
+    @Override
+    public void unbind(Name name) throws NamingException {
+        unbind(name.toString());
+    }
+
+    @Override
+    public void rename(String oldName, String newName) throws NamingException {
+        throw new OperationNotSupportedException();
+    }
+
+    @Override
+    public void rename(Name oldName, Name newName) throws NamingException {
+        throw new OperationNotSupportedException();
+    }
+
+    @Override
+    public NamingEnumeration<NameClassPair> list(String name) throws NamingException {
+        throw new OperationNotSupportedException();
+    }
+
+    @Override
+    public NamingEnumeration<NameClassPair> list(Name name) throws NamingException {
+        throw new OperationNotSupportedException();
+    }
+
+    @Override
+    public NamingEnumeration<Binding> listBindings(String name) throws NamingException {
+        throw new OperationNotSupportedException();
+    }
+
+    @Override
+    public NamingEnumeration<Binding> listBindings(Name name) throws NamingException {
+        throw new OperationNotSupportedException();
+    }
+
+    @Override
+    public void destroySubcontext(String name) throws NamingException {
+        throw new OperationNotSupportedException();
+    }
+
+    @Override
+    public void destroySubcontext(Name name) throws NamingException {
+        throw new OperationNotSupportedException();
+    }
+
+    @Override
+    public Context createSubcontext(String name) throws NamingException {
+        throw new OperationNotSupportedException();
+    }
+
+    @Override
+    public Context createSubcontext(Name name) throws NamingException {
+        throw new OperationNotSupportedException();
+    }
+
+    @Override
+    public Object lookupLink(String name) throws NamingException {
+        return lookup(name);
+    }
+
+    @Override
+    public Object lookupLink(Name name) throws NamingException {
+        return lookup(name);
+    }
+
+    @Override
+    public NameParser getNameParser(String name) throws NamingException {
+        return new NameParser() {
+            @Override
+            public Name parse(String name) throws NamingException {
+                return new CompositeName(name);
+            }
+        };
+    }
+
+    @Override
+    public NameParser getNameParser(Name name) throws NamingException {
+        return getNameParser(name.toString());
+    }
+
+    @Override
+    public String composeName(String name, String prefix) throws NamingException {
+        return prefix + "/" + name;
+    }
+
+    @Override
+    public Name composeName(Name name, Name prefix) throws NamingException {
+        return ((Name) prefix.clone()).addAll(name);
+    }
+
+    @Override
+    public Object addToEnvironment(String propName, Object propVal) throws NamingException {
+        return environment.put(propName, propVal);
+    }
+
+    @Override
+    public Object removeFromEnvironment(String propName) throws NamingException {
+        return environment.remove(propName);
+    }
+
+    @Override
+    public Hashtable<?, ?> getEnvironment() throws NamingException {
+        return new Hashtable<Object, Object>(environment);
+    }
+
+    @Override
+    public void close() throws NamingException {
+        // no-op, bindings are shared
+    }
+
+    @Override
+    public String getNameInNamespace() throws NamingException {
+        return "";
+    }
+}
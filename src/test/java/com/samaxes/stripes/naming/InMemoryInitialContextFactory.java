@@ -0,0 +1,156 @@
+/*
+ * $Id$
+ *
+ * Copyright 2011 samaxes.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.samaxes.stripes.naming;
+
+import java.util.Hashtable;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.naming.Context;
+import javax.naming.NamingException;
+import javax.naming.spi.InitialContextFactory;
+
+/**
+ * <p>
+ * JNDI initial context factory serving in-memory bindings, so the enricher can be tested without an application
+ * server. All the contexts it creates share the same bindings. Lookups can be slowed down to simulate a remote naming
+ * server, see {@link #setLatency(String, long)}, and are counted, see {@link #getLookupCount(String)}.
+ * </p>
+ * <p>
+ * Like an application server, it can restrict the {@code java:comp}, {@code java:module} and {@code java:app}
+ * namespaces to the threads running a component, see {@link #setComponentThreadsOnly(boolean)}.
+ * </p>
+ * <p>
+ * It is installed with {@link #install()}, which sets the {@value Context#INITIAL_CONTEXT_FACTORY} system property.
+ * </p>
+ *
+ * @author Samuel Santos
+ * @version $Revision$
+ */
+public class InMemoryInitialContextFactory implements InitialContextFactory {
+
+    private static final Map<String, Object> bindings = new ConcurrentHashMap<String, Object>();
+
+    private static final Map<String, Long> latencies = new ConcurrentHashMap<String, Long>();
+
+    private static final ConcurrentMap<String, AtomicInteger> lookupCounts =
+            new ConcurrentHashMap<String, AtomicInteger>();
+
+    private static final ThreadLocal<Boolean> componentThreads = new ThreadLocal<Boolean>();
+
+    private static volatile boolean componentThreadsOnly;
+
+    @Override
+    public Context getInitialContext(Hashtable<?, ?> environment) throws NamingException {
+        return new InMemoryContext(bindings, latencies, lookupCounts, environment);
+    }
+
+    /**
+     * Makes {@code new InitialContext()} use this factory.
+     */
+    public static void install() {
+        System.setProperty(Context.INITIAL_CONTEXT_FACTORY, InMemoryInitialContextFactory.class.getName());
+    }
+
+    /**
+     * Binds an object.
+     *
+     * @param name the full JNDI name
+     * @param object the bound object
+     */
+    public static void bind(String name, Object object) {
+        bindings.put(name, object);
+    }
+
+    /**
+     * Removes a binding.
+     *
+     * @param name the full JNDI name
+     */
+    public static void unbind(String name) {
+        bindings.remove(name);
+    }
+
+    /**
+     * Slows down the lookups of a name, as a remote naming server would.
+     *
+     * @param name the full JNDI name, bound or not
+     * @param latency the time each lookup of the name takes, in milliseconds
+     */
+    public static void setLatency(String name, long latency) {
+        latencies.put(name, latency);
+    }
+
+    /**
+     * Gets the number of lookups of a name since the last {@link #clear()}, successful or not.
+     *
+     * @param name the full JNDI name
+     * @return the number of lookups
+     */
+    public static int getLookupCount(String name) {
+        AtomicInteger count = lookupCounts.get(name);
+        return count == null ? 0 : count.get();
+    }
+
+    /**
+     * Restricts the {@code java:comp}, {@code java:module} and {@code java:app} namespaces to the threads running a
+     * component, see {@link #enterComponent()}. Their names are not found on other threads.
+     *
+     * @param componentThreadsOnly whether the component namespaces are restricted
+     */
+    public static void setComponentThreadsOnly(boolean componentThreadsOnly) {
+        InMemoryInitialContextFactory.componentThreadsOnly = componentThreadsOnly;
+    }
+
+    /**
+     * Marks the current thread as running a component, as a container does for request threads.
+     */
+    public static void enterComponent() {
+        componentThreads.set(Boolean.TRUE);
+    }
+
+    /**
+     * Marks the current thread as no longer running a component.
+     */
+    public static void exitComponent() {
+        componentThreads.remove();
+    }
+
+    /**
+     * Whether a name resolves on the current thread.
+     *
+     * @param name the full JNDI name
+     * @return {@code false} if the name is in a component namespace and the thread is not running a component
+     */
+    static boolean isVisible(String name) {
+        return !componentThreadsOnly || componentThreads.get() != null
+                || !(name.startsWith("java:comp/") || name.startsWith("java:module/") || name.startsWith("java:app/"));
+    }
+
+    /**
+     * Removes all the bindings and latencies, resets the counters and lifts the namespace restriction.
+     */
+    public static void clear() {
+        bindings.clear();
+        latencies.clear();
+        lookupCounts.clear();
+        componentThreadsOnly = false;
+    }
+}
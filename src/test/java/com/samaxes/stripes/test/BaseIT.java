@@ -25,7 +25,9 @@ import java.net.URL;
 
 import org.jboss.arquillian.junit.Arquillian;
 import org.jboss.shrinkwrap.api.Archive;
+import org.jboss.shrinkwrap.api.ShrinkWrap;
 import org.jboss.shrinkwrap.api.exporter.ZipExporter;
+import org.jboss.shrinkwrap.api.spec.JavaArchive;
 import org.jboss.shrinkwrap.resolver.api.maven.Maven;
 import org.junit.runner.RunWith;
 
@@ -50,6 +52,17 @@ public abstract class BaseIT {
                 .withoutTransitivity().asSingleFile();
     }
 
+    /**
+     * Packages Stripes Injection Enricher as a library, with the web fragment that registers its listener.
+     *
+     * @return Stripes Injection Enricher library
+     */
+    protected static JavaArchive getEnricherLibrary() {
+        return ShrinkWrap.create(JavaArchive.class, "stripes-injection-enricher.jar")
+                .addPackage("com.samaxes.stripes.inject").addPackage("com.samaxes.stripes.enricher")
+                .addAsManifestResource("META-INF/web-fragment.xml", "web-fragment.xml");
+    }
+
     /**
      * Export an archive.
      *
@@ -51,9 +51,8 @@ public class CDIActionIT extends BaseIT {
     @Deployment(testable = false)
     public static WebArchive createDeployment() throws IOException {
         final WebArchive war = ShrinkWrap.create(WebArchive.class, "stripes-enricher.war")
-                .addPackage("com.samaxes.stripes.inject").addPackage("com.samaxes.stripes.enricher")
                 .addClasses(FooService.class, FooServiceBean.class, BaseActionBean.class, CDIActionBean.class)
-                .addAsLibrary(getStripesDependency()).setWebXML("web.xml")
+                .addAsLibrary(getEnricherLibrary()).addAsLibrary(getStripesDependency()).setWebXML("web.xml")
                 .addAsWebInfResource(EmptyAsset.INSTANCE, ArchivePaths.create("beans.xml"));
 
         LOGGER.info(war.toString(Formatters.VERBOSE));
@@ -52,8 +52,8 @@ public class EJBActionIT extends BaseIT {
     public static EnterpriseArchive createDeployment() throws IOException {
         final JavaArchive jar = ShrinkWrap.create(JavaArchive.class, "business.jar").addClasses(FooService.class,
                 FooServiceBean.class);
-        final WebArchive war = ShrinkWrap.create(WebArchive.class, "foo.war").addPackage("com.samaxes.stripes.inject")
-                .addPackage("com.samaxes.stripes.enricher").addClasses(BaseActionBean.class, EJBActionBean.class)
+        final WebArchive war = ShrinkWrap.create(WebArchive.class, "foo.war")
+                .addClasses(BaseActionBean.class, EJBActionBean.class).addAsLibrary(getEnricherLibrary())
                 .addAsLibrary(getStripesDependency()).setWebXML("web.xml");
         final EnterpriseArchive ear = ShrinkWrap.create(EnterpriseArchive.class, "stripes-enricher.ear")
                 .addAsModule(jar).addAsModule(war);
@@ -0,0 +1,85 @@
+/*
+ * $Id$
+ *
+ * Copyright 2011 samaxes.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.samaxes.stripes.test;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.URL;
+import java.util.logging.Logger;
+
+import org.jboss.arquillian.container.test.api.Deployment;
+import org.jboss.arquillian.test.api.ArquillianResource;
+import org.jboss.shrinkwrap.api.ShrinkWrap;
+import org.jboss.shrinkwrap.api.formatter.Formatters;
+import org.jboss.shrinkwrap.api.spec.EnterpriseArchive;
+import org.jboss.shrinkwrap.api.spec.JavaArchive;
+import org.jboss.shrinkwrap.api.spec.WebArchive;
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.samaxes.stripes.action.BaseActionBean;
+import com.samaxes.stripes.action.ParallelActionBean;
+import com.samaxes.stripes.business.FooService;
+import com.samaxes.stripes.business.FooServiceBean;
+
+/**
+ * EJB and resource injection test class, with parallel lookups enabled. The {@code java:comp} and {@code java:app}
+ * lookups must stay on the request thread.
+ *
+ * @author Samuel Santos
+ * @version $Revision$
+ */
+public class ParallelLookupIT extends BaseIT {
+
+    private static final Logger LOGGER = Logger.getLogger(ParallelLookupIT.class.getName());
+
+    @Deployment(testable = false)
+    public static EnterpriseArchive createDeployment() throws IOException {
+        final JavaArchive jar = ShrinkWrap.create(JavaArchive.class, "business.jar").addClasses(FooService.class,
+                FooServiceBean.class);
+        final WebArchive war = ShrinkWrap.create(WebArchive.class, "foo.war")
+                .addClasses(BaseActionBean.class, ParallelActionBean.class).addAsLibrary(getEnricherLibrary())
+                .addAsLibrary(getStripesDependency()).setWebXML("web-parallel.xml");
+        final EnterpriseArchive ear = ShrinkWrap.create(EnterpriseArchive.class, "stripes-enricher.ear")
+                .addAsModule(jar).addAsModule(war);
+
+        LOGGER.info(ear.toString(Formatters.VERBOSE));
+        exportArchive(ear);
+
+        return ear;
+    }
+
+    @Test
+    @Override
+    public void shouldGreetUserOnClientSide(@ArquillianResource URL baseURL) throws IOException {
+        final String name = "Earthlings";
+        final URL url = new URL(baseURL, "Parallel.action");
+        StringBuilder builder = new StringBuilder();
+        BufferedReader reader = new BufferedReader(new InputStreamReader(url.openStream()));
+        String line;
+
+        while ((line = reader.readLine()) != null) {
+            builder.append(line);
+        }
+        reader.close();
+
+        LOGGER.info("Returned response: " + builder.toString());
+        Assert.assertEquals(builder.toString(), FooService.GREETING + name);
+    }
+}
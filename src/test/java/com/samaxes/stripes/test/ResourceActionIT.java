@@ -48,9 +48,8 @@ public class ResourceActionIT extends BaseIT {
     @Deployment(testable = false)
     public static WebArchive createDeployment() throws IOException {
         final WebArchive war = ShrinkWrap.create(WebArchive.class, "stripes-enricher.war")
-                .addPackage("com.samaxes.stripes.inject").addPackage("com.samaxes.stripes.enricher")
-                .addClasses(BaseActionBean.class, ResourceActionBean.class).addAsLibrary(getStripesDependency())
-                .setWebXML("web.xml");
+                .addClasses(BaseActionBean.class, ResourceActionBean.class).addAsLibrary(getEnricherLibrary())
+                .addAsLibrary(getStripesDependency()).setWebXML("web.xml");
 
         LOGGER.info(war.toString(Formatters.VERBOSE));
         exportArchive(war);
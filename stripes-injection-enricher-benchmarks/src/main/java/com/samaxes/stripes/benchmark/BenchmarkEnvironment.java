@@ -0,0 +1,66 @@
+/*
+ * $Id$
+ *
+ * Copyright 2011 samaxes.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.samaxes.stripes.benchmark;
+
+import com.samaxes.stripes.benchmark.action.LookupEJBActionBean;
+import com.samaxes.stripes.benchmark.business.FooServiceBean;
+import com.samaxes.stripes.benchmark.cdi.StubBeanManager;
+import com.samaxes.stripes.enricher.InjectorGenerator;
+import com.samaxes.stripes.naming.InMemoryInitialContextFactory;
+
+/**
+ * Stands in for an application server: installs the in-memory JNDI context and binds the EJB, the resources and the
+ * CDI BeanManager used by the benchmark ActionBeans.
+ *
+ * @author Samuel Santos
+ * @version $Revision$
+ */
+public final class BenchmarkEnvironment {
+
+    /** Application and module name of the benchmark deployment. */
+    public static final String DEPLOYMENT_NAME = "benchmark";
+
+    /**
+     * Internal constructor; not to be called as this class provides static utilities only.
+     */
+    private BenchmarkEnvironment() {
+        throw new UnsupportedOperationException("No instances permitted");
+    }
+
+    /**
+     * Installs the in-memory JNDI context and binds the benchmark objects.
+     *
+     * @param generatedInjectors whether bytecode injectors are generated for the ActionBean classes
+     */
+    public static void setUp(boolean generatedInjectors) {
+        InMemoryInitialContextFactory.install();
+        InMemoryInitialContextFactory.clear();
+        InMemoryInitialContextFactory.bind("java:app/AppName", DEPLOYMENT_NAME);
+        InMemoryInitialContextFactory.bind("java:module/ModuleName", DEPLOYMENT_NAME);
+        InMemoryInitialContextFactory.bind("java:comp/BeanManager", StubBeanManager.create());
+        // Explicit lookup
+        InMemoryInitialContextFactory.bind(LookupEJBActionBean.LOOKUP, new FooServiceBean());
+        // Found after probing 15 candidate names, then looked up under the JNDI name remembered by the deployment
+        InMemoryInitialContextFactory.bind("java:module/FooService", new FooServiceBean());
+        InMemoryInitialContextFactory.bind("java:comp/env/greeting", "Hello");
+        InMemoryInitialContextFactory.bind("java:comp/env/maxResults", 100);
+        InMemoryInitialContextFactory.bind("java:comp/env/title", "Benchmark");
+
+        InjectorGenerator.getInstance().setEnabled(generatedInjectors);
+    }
+}
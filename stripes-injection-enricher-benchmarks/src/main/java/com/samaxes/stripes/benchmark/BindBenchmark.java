@@ -0,0 +1,128 @@
+/*
+ * $Id$
+ *
+ * Copyright 2011 samaxes.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.samaxes.stripes.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.samaxes.stripes.benchmark.action.CDIActionBean;
+import com.samaxes.stripes.benchmark.action.LookupEJBActionBean;
+import com.samaxes.stripes.benchmark.action.ProbedEJBActionBean;
+import com.samaxes.stripes.benchmark.action.ResourceActionBean;
+import com.samaxes.stripes.enricher.CDIInjectionEnricher;
+import com.samaxes.stripes.enricher.EJBInjectionEnricher;
+import com.samaxes.stripes.enricher.ResourceInjectionEnricher;
+import com.samaxes.stripes.inject.InjectionPlan;
+
+/**
+ * Measures each enricher {@code bind} method on its own, with the injection plans compiled beforehand. The probed EJB
+ * is measured twice: once with the JNDI names resolved by the deployment forgotten before each invocation, so that the
+ * candidate names are probed every time, and once looked up under the JNDI name remembered from an earlier probe.
+ *
+ * @author Samuel Santos
+ * @version $Revision$
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+public class BindBenchmark {
+
+    @Param({ "false", "true" })
+    private boolean generatedInjectors;
+
+    private InjectionPlan lookupEJBPlan;
+
+    private InjectionPlan probedEJBPlan;
+
+    private InjectionPlan resourcePlan;
+
+    private InjectionPlan cdiPlan;
+
+    @Setup
+    public void setUp() {
+        BenchmarkEnvironment.setUp(generatedInjectors);
+        lookupEJBPlan = InjectionPlan.compile(LookupEJBActionBean.class);
+        probedEJBPlan = InjectionPlan.compile(ProbedEJBActionBean.class);
+        resourcePlan = InjectionPlan.compile(ResourceActionBean.class);
+        cdiPlan = InjectionPlan.compile(CDIActionBean.class);
+    }
+
+    @Benchmark
+    public Object ejbLookup() throws Exception {
+        LookupEJBActionBean bean = new LookupEJBActionBean();
+        EJBInjectionEnricher.bind(bean, lookupEJBPlan.getEJBInjectionPoints());
+        return bean;
+    }
+
+    @Benchmark
+    public Object ejbProbed(ProbeState probeState) throws Exception {
+        ProbedEJBActionBean bean = new ProbedEJBActionBean();
+        EJBInjectionEnricher.bind(bean, probedEJBPlan.getEJBInjectionPoints());
+        return bean;
+    }
+
+    @Benchmark
+    public Object ejbResolved() throws Exception {
+        ProbedEJBActionBean bean = new ProbedEJBActionBean();
+        EJBInjectionEnricher.bind(bean, probedEJBPlan.getEJBInjectionPoints());
+        return bean;
+    }
+
+    @Benchmark
+    public Object resource() throws Exception {
+        ResourceActionBean bean = new ResourceActionBean();
+        ResourceInjectionEnricher.bind(bean, resourcePlan.getResourceInjectionPoints());
+        return bean;
+    }
+
+    @Benchmark
+    public Object cdi() throws Exception {
+        CDIActionBean bean = new CDIActionBean();
+        CDIInjectionEnricher.bind(bean, cdiPlan.isCdiTarget());
+        CDIInjectionEnricher.release(bean);
+        return bean;
+    }
+
+    /**
+     * Forgets the JNDI names resolved by the deployment before each invocation, so that the EJB is found by probing
+     * the candidate names, after looking up the application and module names again.
+     */
+    @State(Scope.Thread)
+    public static class ProbeState {
+
+        @Setup(Level.Invocation)
+        public void forgetResolvedNames() {
+            EJBInjectionEnricher.clear();
+        }
+    }
+}
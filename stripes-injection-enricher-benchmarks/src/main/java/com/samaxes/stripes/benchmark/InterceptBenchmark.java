@@ -0,0 +1,123 @@
+/*
+ * $Id$
+ *
+ * Copyright 2011 samaxes.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.samaxes.stripes.benchmark;
+
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+import net.sourceforge.stripes.action.ActionBean;
+import net.sourceforge.stripes.action.Resolution;
+import net.sourceforge.stripes.controller.ExecutionContext;
+import net.sourceforge.stripes.controller.Interceptor;
+import net.sourceforge.stripes.controller.LifecycleStage;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.samaxes.stripes.benchmark.action.CDIActionBean;
+import com.samaxes.stripes.benchmark.action.LookupEJBActionBean;
+import com.samaxes.stripes.benchmark.action.NoInjectionActionBean;
+import com.samaxes.stripes.benchmark.action.ProbedEJBActionBean;
+import com.samaxes.stripes.benchmark.action.ResourceActionBean;
+import com.samaxes.stripes.inject.InjectionEnricher;
+
+/**
+ * Measures a full request through {@link InjectionEnricher}: the ActionBeanResolution stage, which creates a new
+ * ActionBean and injects it, followed by the RequestComplete stage. The probed EJB is looked up under the JNDI name
+ * remembered from its first probe, see {@code BindBenchmark} for the cost of the probe itself.
+ *
+ * @author Samuel Santos
+ * @version $Revision$
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+public class InterceptBenchmark {
+
+    @Param({ "false", "true" })
+    private boolean generatedInjectors;
+
+    private InjectionEnricher enricher;
+
+    @Setup
+    public void setUp() {
+        BenchmarkEnvironment.setUp(generatedInjectors);
+        enricher = new InjectionEnricher();
+    }
+
+    @Benchmark
+    public ActionBean noInjection() throws Exception {
+        return request(NoInjectionActionBean.class);
+    }
+
+    @Benchmark
+    public ActionBean ejbLookup() throws Exception {
+        return request(LookupEJBActionBean.class);
+    }
+
+    @Benchmark
+    public ActionBean ejbResolved() throws Exception {
+        return request(ProbedEJBActionBean.class);
+    }
+
+    @Benchmark
+    public ActionBean resource() throws Exception {
+        return request(ResourceActionBean.class);
+    }
+
+    @Benchmark
+    public ActionBean cdi() throws Exception {
+        return request(CDIActionBean.class);
+    }
+
+    private ActionBean request(final Class<? extends ActionBean> beanClass) throws Exception {
+        ExecutionContext ctx = new ExecutionContext();
+        ctx.setInterceptors(Collections.<Interceptor> singletonList(enricher));
+
+        ctx.setLifecycleStage(LifecycleStage.ActionBeanResolution);
+        ctx.wrap(new Interceptor() {
+            @Override
+            public Resolution intercept(ExecutionContext context) throws Exception {
+                context.setActionBean(beanClass.newInstance());
+                return null;
+            }
+        });
+
+        ctx.setLifecycleStage(LifecycleStage.RequestComplete);
+        ctx.wrap(new Interceptor() {
+            @Override
+            public Resolution intercept(ExecutionContext context) {
+                return null;
+            }
+        });
+
+        return ctx.getActionBean();
+    }
+}
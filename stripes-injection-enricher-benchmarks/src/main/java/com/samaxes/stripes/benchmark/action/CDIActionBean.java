@@ -0,0 +1,44 @@
+/*
+ * $Id$
+ *
+ * Copyright 2011 samaxes.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.samaxes.stripes.benchmark.action;
+
+import javax.inject.Inject;
+
+import com.samaxes.stripes.benchmark.business.FooService;
+import com.samaxes.stripes.benchmark.cdi.StubBeanManager;
+
+/**
+ * ActionBean with a CDI injection point.
+ *
+ * @author Samuel Santos
+ * @version $Revision$
+ */
+public class CDIActionBean extends BaseActionBean implements StubBeanManager.Injectable {
+
+    @Inject
+    private FooService fooService;
+
+    public FooService getFooService() {
+        return fooService;
+    }
+
+    @Override
+    public void setFooService(FooService fooService) {
+        this.fooService = fooService;
+    }
+}
@@ -0,0 +1,137 @@
+/*
+ * $Id$
+ *
+ * Copyright 2011 samaxes.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.samaxes.stripes.benchmark.cdi;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Collections;
+import java.util.Set;
+
+import javax.enterprise.context.spi.CreationalContext;
+import javax.enterprise.inject.spi.BeanManager;
+import javax.enterprise.inject.spi.InjectionPoint;
+import javax.enterprise.inject.spi.InjectionTarget;
+
+import com.samaxes.stripes.benchmark.business.FooService;
+import com.samaxes.stripes.benchmark.business.FooServiceBean;
+
+/**
+ * <p>
+ * Minimal {@link BeanManager} standing in for a CDI container. It only supports the calls made by the enricher:
+ * {@code createAnnotatedType}, {@code createInjectionTarget} and {@code createCreationalContext}.
+ * </p>
+ * <p>
+ * The injection target sets a shared {@link FooService} on {@link Injectable} instances, so the benchmarks measure the
+ * enricher overhead rather than the one of a CDI implementation.
+ * </p>
+ *
+ * @author Samuel Santos
+ * @version $Revision$
+ */
+public final class StubBeanManager {
+
+    private static final FooService FOO_SERVICE = new FooServiceBean();
+
+    /**
+     * Internal constructor; not to be called as this class provides static utilities only.
+     */
+    private StubBeanManager() {
+        throw new UnsupportedOperationException("No instances permitted");
+    }
+
+    /**
+     * Creates a stub BeanManager.
+     *
+     * @return the stub BeanManager
+     */
+    public static BeanManager create() {
+        return (BeanManager) Proxy.newProxyInstance(StubBeanManager.class.getClassLoader(),
+                new Class<?>[] { BeanManager.class }, new InvocationHandler() {
+                    @Override
+                    public Object invoke(Object proxy, Method method, Object[] args) {
+                        if ("createAnnotatedType".equals(method.getName())) {
+                            return null;
+                        } else if ("createInjectionTarget".equals(method.getName())) {
+                            return new StubInjectionTarget();
+                        } else if ("createCreationalContext".equals(method.getName())) {
+                            return new StubCreationalContext();
+                        } else if ("toString".equals(method.getName())) {
+                            return "StubBeanManager";
+                        }
+                        throw new UnsupportedOperationException(method.getName());
+                    }
+                });
+    }
+
+    /**
+     * Implemented by the benchmark beans that receive CDI injections.
+     */
+    public interface Injectable {
+
+        void setFooService(FooService fooService);
+    }
+
+    private static final class StubInjectionTarget implements InjectionTarget<Object> {
+
+        @Override
+        public void inject(Object instance, CreationalContext<Object> ctx) {
+            if (instance instanceof Injectable) {
+                ((Injectable) instance).setFooService(FOO_SERVICE);
+            }
+        }
+
+        @Override
+        public void postConstruct(Object instance) {
+            // no-op
+        }
+
+        @Override
+        public void preDestroy(Object instance) {
+            // no-op
+        }
+
+        @Override
+        public Object produce(CreationalContext<Object> ctx) {
+            throw new UnsupportedOperationException("produce");
+        }
+
+        @Override
+        public void dispose(Object instance) {
+            // no-op
+        }
+
+        @Override
+        public Set<InjectionPoint> getInjectionPoints() {
+            return Collections.emptySet();
+        }
+    }
+
+    private static final class StubCreationalContext implements CreationalContext<Object> {
+
+        @Override
+        public void push(Object incompleteInstance) {
+            // no-op
+        }
+
+        @Override
+        public void release() {
+            // no-op
+        }
+    }
+}
@@ -0,0 +1,355 @@
+/*
+ * $Id$
+ *
+ * Copyright 2011 samaxes.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.samaxes.stripes.processor;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.TreeMap;
+
+import javax.annotation.processing.AbstractProcessor;
+import javax.annotation.processing.RoundEnvironment;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.AnnotationMirror;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ElementKind;
+import javax.lang.model.element.ExecutableElement;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.element.VariableElement;
+import javax.lang.model.type.ArrayType;
+import javax.lang.model.type.DeclaredType;
+import javax.lang.model.type.TypeKind;
+import javax.lang.model.type.TypeMirror;
+import javax.lang.model.util.ElementFilter;
+import javax.tools.Diagnostic;
+import javax.tools.FileObject;
+import javax.tools.StandardLocation;
+
+/**
+ * <p>
+ * Annotation processor that writes the Stripes Injection Enricher index, {@value #RESOURCE_NAME}, at build time. For
+ * each ActionBean class, each of its superclasses and each class declaring a field or method annotated with
+ * {@code @EJB}, {@code @Resource} or {@code @Inject}, the index lists the annotated fields and methods declared by that
+ * class. At runtime the enricher reads them directly instead of examining every member of the class hierarchy.
+ * </p>
+ * <p>
+ * The processor is registered as a service, so adding this artifact to the compile classpath, for example with the
+ * {@code provided} scope, is enough:
+ * </p>
+ *
+ * <pre>
+ * {@code
+ * <dependency>
+ *     <groupId>com.samaxes.stripes</groupId>
+ *     <artifactId>stripes-injection-enricher-processor</artifactId>
+ *     <version>VERSION</version>
+ *     <scope>provided</scope>
+ * </dependency>
+ * }
+ * </pre>
+ * <p>
+ * The index is a properties file whose keys are binary class names and whose values are the comma separated annotated
+ * members, fields as {@code name} and methods as {@code name(parameter class names)}.
+ * </p>
+ *
+ * @author Samuel Santos
+ * @version $Revision$
+ */
+public class InjectionIndexProcessor extends AbstractProcessor {
+
+    /** Location of the index, must match the one read by {@code com.samaxes.stripes.inject.InjectionIndex}. */
+    public static final String RESOURCE_NAME = "META-INF/stripes-injection-enricher.index";
+
+    private static final String ACTION_BEAN = "net.sourceforge.stripes.action.ActionBean";
+
+    private static final String[] INJECTION_ANNOTATIONS = { "javax.ejb.EJB", "javax.annotation.Resource",
+            "javax.inject.Inject" };
+
+    /** Indexed members by binary class name. */
+    private final Map<String, String> indexMap = new TreeMap<String, String>();
+
+    @Override
+    public Set<String> getSupportedAnnotationTypes() {
+        // ActionBeans without any annotation must be indexed too
+        return Collections.singleton("*");
+    }
+
+    @Override
+    public SourceVersion getSupportedSourceVersion() {
+        return SourceVersion.latestSupported();
+    }
+
+    @Override
+    public boolean process(Set<? extends TypeElement> annotations, RoundEnvironment roundEnv) {
+        if (roundEnv.processingOver()) {
+            writeIndex();
+            return false;
+        }
+
+        TypeElement actionBean = processingEnv.getElementUtils().getTypeElement(ACTION_BEAN);
+
+        for (TypeElement type : ElementFilter.typesIn(roundEnv.getRootElements())) {
+            processType(type, actionBean);
+        }
+
+        return false;
+    }
+
+    /**
+     * Indexes a type, its nested types and, if it is an ActionBean or declares annotated members, its superclasses.
+     *
+     * @param type the compiled type
+     * @param actionBean the ActionBean interface, or {@code null} if it is not on the classpath
+     */
+    private void processType(TypeElement type, TypeElement actionBean) {
+        for (TypeElement nestedType : ElementFilter.typesIn(type.getEnclosedElements())) {
+            processType(nestedType, actionBean);
+        }
+
+        if (type.getKind() != ElementKind.CLASS) {
+            return;
+        }
+
+        List<String> members = getAnnotatedMembers(type);
+        boolean isActionBean = actionBean != null
+                && processingEnv.getTypeUtils().isAssignable(type.asType(),
+                        processingEnv.getTypeUtils().erasure(actionBean.asType()));
+
+        if (!isActionBean && members.isEmpty()) {
+            return;
+        }
+
+        indexMap.put(getBinaryName(type), join(members, ","));
+
+        for (TypeElement superclass = getSuperclass(type); superclass != null; superclass = getSuperclass(superclass)) {
+            String superclassName = getBinaryName(superclass);
+            if (!indexMap.containsKey(superclassName)) {
+                indexMap.put(superclassName, join(getAnnotatedMembers(superclass), ","));
+            }
+        }
+    }
+
+    /**
+     * Gets the fields and methods declared by a type which are annotated for injection, in declaration order.
+     *
+     * @param type the examined type
+     * @return the indexed members
+     */
+    private List<String> getAnnotatedMembers(TypeElement type) {
+        List<String> members = new ArrayList<String>();
+
+        for (VariableElement field : ElementFilter.fieldsIn(type.getEnclosedElements())) {
+            if (isAnnotatedForInjection(field)) {
+                members.add(field.getSimpleName().toString());
+            }
+        }
+
+        for (ExecutableElement method : ElementFilter.methodsIn(type.getEnclosedElements())) {
+            if (isAnnotatedForInjection(method)) {
+                List<String> parameterTypes = new ArrayList<String>();
+                for (VariableElement parameter : method.getParameters()) {
+                    parameterTypes.add(getClassName(parameter.asType()));
+                }
+                members.add(method.getSimpleName() + "(" + join(parameterTypes, ";") + ")");
+            }
+        }
+
+        return members;
+    }
+
+    private boolean isAnnotatedForInjection(Element element) {
+        for (AnnotationMirror annotation : element.getAnnotationMirrors()) {
+            String annotationName = ((TypeElement) annotation.getAnnotationType().asElement()).getQualifiedName()
+                    .toString();
+            for (String injectionAnnotation : INJECTION_ANNOTATIONS) {
+                if (injectionAnnotation.equals(annotationName)) {
+                    return true;
+                }
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * Gets the superclass of a type.
+     *
+     * @param type the examined type
+     * @return the superclass, or {@code null} if the type is {@code java.lang.Object} or extends it directly
+     */
+    private TypeElement getSuperclass(TypeElement type) {
+        TypeMirror superclass = type.getSuperclass();
+
+        if (superclass.getKind() != TypeKind.DECLARED) {
+            return null;
+        }
+
+        TypeElement superclassElement = (TypeElement) ((DeclaredType) superclass).asElement();
+        if (Object.class.getName().equals(superclassElement.getQualifiedName().toString())) {
+            return null;
+        }
+
+        return superclassElement;
+    }
+
+    private String getBinaryName(TypeElement type) {
+        return processingEnv.getElementUtils().getBinaryName(type).toString();
+    }
+
+    /**
+     * Gets the name {@link Class#getName()} returns for the erasure of a type.
+     *
+     * @param type the type
+     * @return the runtime class name
+     */
+    private String getClassName(TypeMirror type) {
+        TypeMirror erasure = processingEnv.getTypeUtils().erasure(type);
+
+        switch (erasure.getKind()) {
+        case DECLARED:
+            return getBinaryName((TypeElement) ((DeclaredType) erasure).asElement());
+        case ARRAY:
+            return "[" + getDescriptor(((ArrayType) erasure).getComponentType());
+        default:
+            return erasure.getKind().name().toLowerCase();
+        }
+    }
+
+    /**
+     * Gets the name of an array component type as used by {@link Class#getName()} for arrays.
+     *
+     * @param type the array component type
+     * @return the component type descriptor
+     */
+    private String getDescriptor(TypeMirror type) {
+        TypeMirror erasure = processingEnv.getTypeUtils().erasure(type);
+
+        switch (erasure.getKind()) {
+        case BOOLEAN:
+            return "Z";
+        case BYTE:
+            return "B";
+        case CHAR:
+            return "C";
+        case SHORT:
+            return "S";
+        case INT:
+            return "I";
+        case LONG:
+            return "J";
+        case FLOAT:
+            return "F";
+        case DOUBLE:
+            return "D";
+        case ARRAY:
+            return getClassName(erasure);
+        default:
+            return "L" + getClassName(erasure) + ";";
+        }
+    }
+
+    /**
+     * Writes the index, sorted so that it is reproducible. Entries of an index left by a previous incremental
+     * compilation are kept unless the class was compiled again.
+     */
+    private void writeIndex() {
+        if (indexMap.isEmpty()) {
+            return;
+        }
+
+        Map<String, String> index = new TreeMap<String, String>();
+
+        try {
+            FileObject previous = processingEnv.getFiler().getResource(StandardLocation.CLASS_OUTPUT, "",
+                    RESOURCE_NAME);
+            Properties properties = new Properties();
+            InputStream in = previous.openInputStream();
+            try {
+                properties.load(in);
+            } finally {
+                in.close();
+            }
+            for (String className : properties.stringPropertyNames()) {
+                index.put(className, properties.getProperty(className));
+            }
+        } catch (IOException e) {
+            // no-op, no previous index
+        } catch (IllegalArgumentException e) {
+            // no-op, no previous index
+        }
+
+        index.putAll(indexMap);
+
+        try {
+            FileObject file = processingEnv.getFiler().createResource(StandardLocation.CLASS_OUTPUT, "",
+                    RESOURCE_NAME);
+            Writer out = new OutputStreamWriter(file.openOutputStream(), "ISO-8859-1");
+            try {
+                out.write("# Stripes Injection Enricher index\n");
+                for (Map.Entry<String, String> entry : index.entrySet()) {
+                    out.write(escape(entry.getKey()) + "=" + escape(entry.getValue()) + "\n");
+                }
+            } finally {
+                out.close();
+            }
+        } catch (IOException e) {
+            processingEnv.getMessager().printMessage(Diagnostic.Kind.WARNING,
+                    "Unable to write " + RESOURCE_NAME + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Escapes the characters Java identifiers may contain but ISO-8859-1 properties files cannot.
+     *
+     * @param string the key or value
+     * @return the escaped string
+     */
+    private static String escape(String string) {
+        StringBuilder sb = new StringBuilder();
+
+        for (char c : string.toCharArray()) {
+            if (c > 0x7e) {
+                sb.append(String.format("\\u%04x", (int) c));
+            } else {
+                sb.append(c);
+            }
+        }
+
+        return sb.toString();
+    }
+
+    private static String join(List<String> strings, String separator) {
+        StringBuilder sb = new StringBuilder();
+
+        for (String string : strings) {
+            if (sb.length() > 0) {
+                sb.append(separator);
+            }
+            sb.append(string);
+        }
+
+        return sb.toString();
+    }
+}